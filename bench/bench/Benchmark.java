@@ -0,0 +1,210 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A single benchmark. Each iteration of {@link #run()} performs a number of operations,
+ * and every operation ends with a call to {@link #endOperation()}.
+ * <p>
+ * A benchmark is measured in two passes over the same number of iterations. The first
+ * measures throughput and, when the JVM supports it, the bytes the benchmark thread
+ * allocates. The second samples the latency of every single operation, which costs a
+ * read of the clock per operation and so is kept out of the first pass.
+ * <p>
+ * Whatever a benchmark computes has to be handed to one of the {@code consume} methods,
+ * or the JIT compiler may find that it is never used and skip computing it.
+ */
+public abstract class Benchmark {
+  /** The most latency samples that are kept; beyond that, random samples are replaced. */
+  private static final int MAX_SAMPLES = 1 << 20;
+  
+  /** How often {@link #consume(Object)} stores the object it is handed. */
+  private static final int STORE_MASK = (1 << 16) - 1;
+  
+  private final String name;
+  
+  /** The latency samples of the current pass, or {@code null} if it isn't sampling. */
+  private long[] samples;
+  private int numSamples;
+  private long numOperations;
+  private long lastOperationEnd;
+  private final Random random = new Random(0);
+  
+  /** Read by the sinks, and never equal to what they are handed in practice. */
+  private volatile long guard = System.nanoTime();
+  private Object sink;
+  private int numConsumed;
+  
+  protected Benchmark(String name) {
+    this.name = name;
+  }
+  
+  public String getName() {
+    return name;
+  }
+  
+  /**
+   * Called once before the benchmark is run; not measured.
+   * 
+   * @throws Exception
+   */
+  public void setUp() throws Exception {}
+  
+  /**
+   * Runs one iteration of the benchmark.
+   * 
+   * @return the number of operations (e.g. packets) that the iteration performed, which
+   *    has to be the number of times it called {@link #endOperation()}
+   * @throws Exception
+   */
+  public abstract long run() throws Exception;
+  
+  /**
+   * Marks the end of an operation. While latency is being sampled, the time since the end
+   * of the previous operation, or since the start of the iteration for the first one, is
+   * taken as the latency of this one.
+   */
+  protected final void endOperation() {
+    if (samples == null) return;
+    
+    long now = System.nanoTime();
+    long latency = now - lastOperationEnd;
+    lastOperationEnd = now;
+    
+    numOperations++;
+    
+    if (numSamples < samples.length) {
+      samples[numSamples++] = latency;
+    } else {
+      // Reservoir sampling, so that every operation is equally likely to be kept.
+      long index = (long) (random.nextDouble() * numOperations);
+      if (index < samples.length) samples[(int) index] = latency;
+    }
+  }
+  
+  /**
+   * Hands a result to a sink, so that the code that computed it can't be dropped as
+   * dead. Every so often the object is stored in a field, which keeps escape analysis
+   * from doing away with its allocation.
+   */
+  protected final void consume(Object result) {
+    if ((++numConsumed & STORE_MASK) == 0) sink = result;
+  }
+  
+  /**
+   * @see #consume(Object)
+   */
+  protected final void consume(long result) {
+    if (result == guard) sink = this;
+  }
+  
+  /**
+   * @see #consume(Object)
+   */
+  protected final void consume(double result) {
+    consume(Double.doubleToRawLongBits(result));
+  }
+  
+  /**
+   * @param warmupIterations the number of iterations to run before measuring
+   * @param iterations the number of iterations to measure in each pass
+   * @return the measurements
+   * @throws Exception
+   */
+  public Result measure(int warmupIterations, int iterations) throws Exception {
+    setUp();
+    
+    for (int i = 0; i < warmupIterations; ++i) {
+      run();
+    }
+    
+    long totalOps = 0;
+    long totalNanos = 0;
+    
+    long allocatedBefore = getAllocatedBytes();
+    
+    for (int i = 0; i < iterations; ++i) {
+      long start = System.nanoTime();
+      totalOps += run();
+      totalNanos += System.nanoTime() - start;
+    }
+    
+    long allocated = getAllocatedBytes() - allocatedBefore;
+    
+    samples = new long[MAX_SAMPLES];
+    numSamples = 0;
+    numOperations = 0;
+    
+    for (int i = 0; i < iterations; ++i) {
+      lastOperationEnd = System.nanoTime();
+      run();
+    }
+    
+    long[] latencies = Arrays.copyOf(samples, numSamples);
+    samples = null;
+    
+    if (latencies.length == 0) throw new IllegalStateException(name + " never called endOperation()");
+    Arrays.sort(latencies);
+    
+    return new Result(name, totalOps * 1e9 / totalNanos, 
+        allocatedBefore < 0 ? -1 : (double) allocated / totalOps, latencies);
+  }
+  
+  /**
+   * @return the number of bytes this thread has allocated so far, or -1 if the JVM can't
+   *    tell
+   */
+  private static long getAllocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+    
+    return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+  
+  /**
+   * The measurements of a benchmark.
+   */
+  public static class Result {
+    public static final String HEADER = String.format("%-40s %14s %12s %10s %10s %10s",
+        "Benchmark", "ops/s", "B/op", "p50 ns/op", "p90 ns/op", "p99 ns/op");
+    
+    private final String name;
+    private final double opsPerSecond;
+    private final double bytesPerOp;
+    private final long[] sortedLatencies;
+    
+    Result(String name, double opsPerSecond, double bytesPerOp, long[] sortedLatencies) {
+      this.name = name;
+      this.opsPerSecond = opsPerSecond;
+      this.bytesPerOp = bytesPerOp;
+      this.sortedLatencies = sortedLatencies;
+    }
+    
+    public double getOpsPerSecond() {
+      return opsPerSecond;
+    }
+    
+    public double getBytesPerOp() {
+      return bytesPerOp;
+    }
+    
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency of a single operation at that percentile, in nanoseconds
+     */
+    public double getNanosPerOp(double percentile) {
+      int index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+      return sortedLatencies[Math.max(0, index)];
+    }
+    
+    @Override
+    public String toString() {
+      return String.format("%-40s %14.0f %12s %10.1f %10.1f %10.1f", name, opsPerSecond,
+          bytesPerOp < 0 ? "n/a" : String.format("%.1f", bytesPerOp),
+          getNanosPerOp(50), getNanosPerOp(90), getNanosPerOp(99));
+    }
+  }
+}
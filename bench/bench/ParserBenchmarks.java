@@ -0,0 +1,358 @@
+package bench;
+
+import header.DhcpHeader;
+import header.EthernetHeader;
+import header.EthernetHeader.EtherType;
+import header.Header;
+import header.IpHeader;
+import header.RecordHeader;
+import header.TcpHeader;
+import header.UdpHeader;
+import io.StreamReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import main.EthernetFrameList;
+import main.EthernetFrameList.Filter;
+import main.LibpcapParser;
+import main.PacketTable;
+import main.PacketVisitor;
+import stats.PacketStatistics;
+import bench.SyntheticCapture.Mix;
+import bench.SyntheticCapture.Protocol;
+import data.Packet;
+
+/**
+ * Benchmarks for the parse, filter and statistics paths, run against synthetic captures.
+ * <p>
+ * Usage: {@code ParserBenchmarks [numPackets] [iterations]}
+ */
+public class ParserBenchmarks {
+  private static final int WARMUP_ITERATIONS = 5;
+  
+  /** The number of headers decoded per iteration of the header benchmarks. */
+  private static final int HEADERS_PER_ITERATION = 10000;
+  
+  /** Keeps DHCP packets; shared with the JMH benchmarks. */
+  public static final Filter DHCP_FILTER = new Filter() {
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean shouldUse(Packet<EthernetHeader> packet) {
+      if (packet.getHeader().getType() != EtherType.IP) return false;
+      
+      Packet<IpHeader> ipPacket = (Packet<IpHeader>) packet.getData();
+      if (ipPacket.getHeader().getProtocol() != IpHeader.Protocol.UDP) return false;
+      
+      Packet<UdpHeader> udpPacket = (Packet<UdpHeader>) ipPacket.getData();
+      return udpPacket.getHeader().getProtocol() == UdpHeader.Protocol.DHCP;
+    }
+  };
+  
+  private static final Filter HTTP_FILTER = new Filter() {
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean shouldUse(Packet<EthernetHeader> packet) {
+      if (packet.getHeader().getType() != EtherType.IP) return false;
+      
+      Packet<IpHeader> ipPacket = (Packet<IpHeader>) packet.getData();
+      if (ipPacket.getHeader().getProtocol() != IpHeader.Protocol.TCP) return false;
+      
+      Packet<TcpHeader> tcpPacket = (Packet<TcpHeader>) ipPacket.getData();
+      return tcpPacket.getHeader().getDestPort() == 80;
+    }
+  };
+  
+  public static void main(String[] args) throws Exception {
+    int numPackets = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    
+    for (Mix mix : Mix.values()) {
+      File capture = File.createTempFile("bench-" + mix.name().toLowerCase(), ".pcap");
+      capture.deleteOnExit();
+      new SyntheticCapture(42).write(capture, numPackets, mix);
+      
+      benchmarks.add(parse(capture, mix, false, false));
+      benchmarks.add(parse(capture, mix, true, false));
+      benchmarks.add(parse(capture, mix, true, true));
+      benchmarks.add(parseReusing(capture, mix));
+      benchmarks.add(getAll(capture, mix, "dhcp", DHCP_FILTER));
+      benchmarks.add(getAll(capture, mix, "http", HTTP_FILTER));
+      benchmarks.add(getAveragePacketLength(capture, mix));
+      benchmarks.add(statistics(capture, mix));
+      benchmarks.add(tableGetAll(capture, mix));
+    }
+    
+    SyntheticCapture frames = new SyntheticCapture(42);
+    byte[] dhcpFrame = frames.frame(Protocol.DHCP);
+    byte[] tcpFrame = frames.frame(Protocol.TCP);
+    
+    benchmarks.add(parseHeader(EthernetHeader.class, dhcpFrame, 0));
+    benchmarks.add(parseHeader(IpHeader.class, dhcpFrame, 14));
+    benchmarks.add(parseHeader(UdpHeader.class, dhcpFrame, 34));
+    benchmarks.add(parseHeader(DhcpHeader.class, dhcpFrame, 42));
+    benchmarks.add(parseHeader(TcpHeader.class, tcpFrame, 34));
+    benchmarks.add(toBitArray(dhcpFrame));
+    
+    System.out.println(Benchmark.Result.HEADER);
+    for (Benchmark benchmark : benchmarks) {
+      System.out.println(benchmark.measure(WARMUP_ITERATIONS, iterations));
+    }
+  }
+  
+  /**
+   * {@link LibpcapParser#parse()}, gathering the packets with a visitor the way it does so
+   * that every packet can be timed; one operation is one packet.
+   */
+  private static Benchmark parse(final File capture, Mix mix, final boolean memoryMapped, final boolean lazy) {
+    String name = String.format("parse[%s,%s%s]", mix, memoryMapped ? "mapped" : "stream", lazy ? ",lazy" : "");
+    
+    return new Benchmark(name) {
+      @Override
+      public long run() throws Exception {
+        LibpcapParser parser = new LibpcapParser(capture, memoryMapped);
+        parser.setLazyDecoding(lazy);
+        final EthernetFrameList packets = new EthernetFrameList();
+        
+        try {
+          parser.parse(new PacketVisitor() {
+            @Override
+            public boolean visit(RecordHeader record, Packet<EthernetHeader> packet) {
+              packets.add(packet);
+              endOperation();
+              return true;
+            }
+          });
+        } finally {
+          parser.close();
+        }
+        
+        consume(packets);
+        return packets.size();
+      }
+    };
+  }
+  
+  /**
+   * {@link LibpcapParser#parseReusing(PacketVisitor)}; one operation is one packet.
+   */
+  private static Benchmark parseReusing(final File capture, Mix mix) {
+    return new Benchmark(String.format("parseReusing[%s,mapped]", mix)) {
+      @Override
+      public long run() throws Exception {
+        LibpcapParser parser = new LibpcapParser(capture, true);
+        final long[] count = new long[1];
+        
+        try {
+          parser.parseReusing(new PacketVisitor() {
+            @Override
+            public boolean visit(RecordHeader record, Packet<EthernetHeader> packet) {
+              consume(packet);
+              count[0]++;
+              endOperation();
+              return true;
+            }
+          });
+        } finally {
+          parser.close();
+        }
+        
+        return count[0];
+      }
+    };
+  }
+  
+  /**
+   * Streaming {@link EthernetFrameList#getAll(Iterable, Filter...)}; one operation is one
+   * packet of the capture.
+   */
+  private static Benchmark getAll(final File capture, Mix mix, String filterName, final Filter filter) {
+    return new Benchmark(String.format("getAll[%s,%s]", mix, filterName)) {
+      private long numPackets;
+      
+      @Override
+      public void setUp() throws Exception {
+        numPackets = countPackets(capture);
+      }
+      
+      @Override
+      public long run() throws Exception {
+        LibpcapParser parser = new LibpcapParser(capture, true);
+        parser.setLazyDecoding(true);
+        
+        try {
+          consume(EthernetFrameList.getAll(parser, new Filter() {
+            @Override
+            public boolean shouldUse(Packet<EthernetHeader> packet) {
+              boolean use = filter.shouldUse(packet);
+              endOperation();
+              return use;
+            }
+          }));
+          
+          return numPackets;
+        } finally {
+          parser.close();
+        }
+      }
+    };
+  }
+  
+  /**
+   * {@link EthernetFrameList#getAveragePacketLength()} over a parsed capture; one
+   * operation is one call, which goes over every packet.
+   */
+  private static Benchmark getAveragePacketLength(final File capture, Mix mix) {
+    return new Benchmark(String.format("getAveragePacketLength[%s]", mix)) {
+      private EthernetFrameList packets;
+      
+      @Override
+      public void setUp() throws Exception {
+        LibpcapParser parser = new LibpcapParser(capture, true);
+        packets = parser.parse();
+        parser.close();
+      }
+      
+      @Override
+      public long run() {
+        consume(packets.getAveragePacketLength());
+        endOperation();
+        return 1;
+      }
+    };
+  }
+  
+  /**
+   * {@link PacketStatistics#add(Packet)} of every packet of a parsed capture; one
+   * operation is one packet.
+   */
+  private static Benchmark statistics(final File capture, Mix mix) {
+    return new Benchmark(String.format("PacketStatistics.add[%s]", mix)) {
+      private EthernetFrameList packets;
+      
+      @Override
+      public void setUp() throws Exception {
+        LibpcapParser parser = new LibpcapParser(capture, true);
+        packets = parser.parse();
+        parser.close();
+      }
+      
+      @Override
+      public long run() {
+        PacketStatistics statistics = new PacketStatistics();
+        
+        for (Packet<EthernetHeader> packet : packets) {
+          statistics.add(packet);
+          endOperation();
+        }
+        
+        consume(statistics);
+        return packets.size();
+      }
+    };
+  }
+  
+  /**
+   * {@link PacketTable#getAll(PacketTable.Filter...)} over a loaded table with a DHCP
+   * filter; one operation is one packet.
+   */
+  private static Benchmark tableGetAll(final File capture, Mix mix) {
+    return new Benchmark(String.format("PacketTable.getAll[%s,dhcp]", mix)) {
+      private PacketTable table;
+      
+      @Override
+      public void setUp() throws Exception {
+        LibpcapParser parser = new LibpcapParser(capture, true);
+        table = new PacketTable();
+        parser.parse(table);
+        parser.close();
+      }
+      
+      @Override
+      public long run() {
+        consume(table.getAll(new PacketTable.Filter() {
+          @Override
+          public boolean shouldUse(PacketTable table, int row) {
+            boolean use = table.hasLayer(row, PacketTable.UDP) && 
+                (table.getSourcePort(row) == 67 || table.getDestPort(row) == 67);
+            
+            endOperation();
+            return use;
+          }
+        }));
+        
+        return table.size();
+      }
+    };
+  }
+  
+  /**
+   * {@link LibpcapParser#parse(Class)} of a single header type, including the headers
+   * nested in it; one operation is one header.
+   */
+  private static Benchmark parseHeader(final Class<? extends Header> type, byte[] frame, int offset) {
+    final byte[] headers = new byte[(frame.length - offset) * HEADERS_PER_ITERATION];
+    for (int i = 0; i < HEADERS_PER_ITERATION; ++i) {
+      System.arraycopy(frame, offset, headers, i * (frame.length - offset), frame.length - offset);
+    }
+    
+    return new Benchmark(String.format("parse(%s)", type.getSimpleName())) {
+      @Override
+      public long run() throws Exception {
+        LibpcapParser parser = new LibpcapParser(
+            new StreamReader(new ByteArrayInputStream(headers), headers.length));
+        
+        for (int i = 0; i < HEADERS_PER_ITERATION; ++i) {
+          consume(parser.parse(type));
+          skipToNextHeader(parser, headers.length / HEADERS_PER_ITERATION);
+          endOperation();
+        }
+        
+        return HEADERS_PER_ITERATION;
+      }
+    };
+  }
+  
+  /**
+   * {@link LibpcapParser#toBitArray(ByteBuffer)}; one operation is one frame.
+   */
+  private static Benchmark toBitArray(final byte[] frame) {
+    return new Benchmark("toBitArray") {
+      @Override
+      public long run() {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        
+        for (int i = 0; i < HEADERS_PER_ITERATION; ++i) {
+          consume(LibpcapParser.toBitArray(buffer));
+          endOperation();
+        }
+        
+        return HEADERS_PER_ITERATION;
+      }
+    };
+  }
+  
+  private static void skipToNextHeader(LibpcapParser parser, int stride) throws IOException {
+    long misalignment = parser.getOffset() % stride;
+    if (misalignment != 0) parser.getReader().skip(stride - misalignment);
+  }
+  
+  private static long countPackets(File capture) throws Exception {
+    LibpcapParser parser = new LibpcapParser(capture, true);
+    parser.setLazyDecoding(true);
+    
+    try {
+      long count = 0;
+      while (parser.nextRecord() != null) ++count;
+      return count;
+    } finally {
+      parser.close();
+    }
+  }
+}
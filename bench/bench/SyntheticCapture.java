@@ -0,0 +1,163 @@
+package bench;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Writes LibPcap files of a given size and protocol mix for the benchmarks.
+ */
+public class SyntheticCapture {
+  public enum Protocol {
+    DHCP,
+    DNS,
+    TCP,
+    ICMP,
+    ARP;
+  }
+  
+  /**
+   * Relative weights of the protocols in a capture, in the order of {@link Protocol}.
+   */
+  public enum Mix {
+    TYPICAL(5, 15, 65, 5, 10),
+    DHCP_HEAVY(50, 20, 20, 5, 5),
+    TCP_ONLY(0, 0, 100, 0, 0);
+    
+    private final int[] weights;
+    
+    private Mix(int...weights) {
+      this.weights = weights;
+    }
+    
+    private Protocol pick(Random random) {
+      int total = 0;
+      for (int weight : weights) total += weight;
+      
+      int choice = random.nextInt(total);
+      for (int i = 0; i < weights.length; ++i) {
+        choice -= weights[i];
+        if (choice < 0) return Protocol.values()[i];
+      }
+      
+      throw new IllegalStateException();
+    }
+  }
+  
+  private static final int DHCP_LENGTH = 244;
+  private static final int MIN_FRAME_LENGTH = 60;
+  
+  private final Random random;
+  
+  public SyntheticCapture(long seed) {
+    random = new Random(seed);
+  }
+  
+  /**
+   * Writes a capture to a file.
+   * 
+   * @param file the file to write
+   * @param numPackets the number of packets to write
+   * @param mix the protocol mix of the packets
+   * @throws IOException if the file couldn't be written
+   */
+  public void write(File file, int numPackets, Mix mix) throws IOException {
+    OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+    
+    try {
+      ByteBuffer globalHeader = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+      globalHeader.putInt(0xa1b2c3d4).putShort((short) 2).putShort((short) 4)
+          .putInt(0).putInt(0).putInt(65535).putInt(1);
+      output.write(globalHeader.array());
+      
+      ByteBuffer recordHeader = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+      long micros = 1500000000L * 1000000L;
+      
+      for (int i = 0; i < numPackets; ++i) {
+        byte[] frame = frame(mix.pick(random));
+        micros += 1 + random.nextInt(2000);
+        
+        recordHeader.clear();
+        recordHeader.putInt((int) (micros / 1000000L)).putInt((int) (micros % 1000000L))
+            .putInt(frame.length).putInt(frame.length);
+        
+        output.write(recordHeader.array());
+        output.write(frame);
+      }
+    } finally {
+      output.close();
+    }
+  }
+  
+  /**
+   * @param protocol the protocol of the frame
+   * @return the bytes of an ethernet frame that carries that protocol
+   */
+  public byte[] frame(Protocol protocol) {
+    switch (protocol) {
+      case DHCP:
+        return ethernet(0x0800, ip(17, udp(68, 67, dhcp())));
+      case DNS:
+        return ethernet(0x0800, ip(17, udp(40000 + random.nextInt(20000), 53, bytes(30))));
+      case TCP:
+        return ethernet(0x0800, ip(6, tcp(40000 + random.nextInt(20000), 80, bytes(random.nextInt(1400)))));
+      case ICMP:
+        return ethernet(0x0800, ip(1, bytes(12)));
+      default:
+        return ethernet(0x0806, bytes(28));
+    }
+  }
+  
+  private byte[] ethernet(int etherType, byte[] payload) {
+    ByteBuffer frame = ByteBuffer.allocate(Math.max(MIN_FRAME_LENGTH, 14 + payload.length));
+    frame.put(bytes(6)).put(bytes(6)).putShort((short) etherType).put(payload);
+    return frame.array();
+  }
+  
+  private byte[] ip(int protocol, byte[] payload) {
+    ByteBuffer packet = ByteBuffer.allocate(20 + payload.length);
+    packet.put((byte) 0x45).put((byte) 0).putShort((short) packet.capacity())
+        .putShort((short) random.nextInt()).putShort((short) 0)
+        .put((byte) 64).put((byte) protocol).putShort((short) 0)
+        .putInt(0x0a000000 | random.nextInt(1 << 16)).putInt(0xc0a80100 | random.nextInt(256))
+        .put(payload);
+    return packet.array();
+  }
+  
+  private byte[] udp(int sourcePort, int destPort, byte[] payload) {
+    ByteBuffer datagram = ByteBuffer.allocate(8 + payload.length);
+    datagram.putShort((short) sourcePort).putShort((short) destPort)
+        .putShort((short) datagram.capacity()).putShort((short) 0).put(payload);
+    return datagram.array();
+  }
+  
+  private byte[] tcp(int sourcePort, int destPort, byte[] payload) {
+    ByteBuffer segment = ByteBuffer.allocate(20 + payload.length);
+    segment.putShort((short) sourcePort).putShort((short) destPort)
+        .putInt(random.nextInt()).putInt(random.nextInt())
+        .putShort((short) (5 << 12 | 0x18)).putShort((short) 8192).putInt(0).put(payload);
+    return segment.array();
+  }
+  
+  private byte[] dhcp() {
+    ByteBuffer message = ByteBuffer.allocate(DHCP_LENGTH);
+    message.put((byte) 1).put((byte) 1).put((byte) 6).put((byte) 0).putInt(random.nextInt());
+    message.position(12);
+    message.putInt(0).putInt(0x0a000000 | random.nextInt(1 << 16)).putInt(0x0a000001).putInt(0);
+    message.position(236);
+    message.putInt(0x63825363).put((byte) 53).put((byte) 1).put((byte) (1 + random.nextInt(7)))
+        .put((byte) 255);
+    return message.array();
+  }
+  
+  private byte[] bytes(int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,44 @@
+package bench.jmh;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import main.LibpcapParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bench.SyntheticCapture;
+import bench.SyntheticCapture.Protocol;
+
+/**
+ * {@link LibpcapParser#toBitArray(ByteBuffer)} of the same DHCP frame as
+ * {@code bench.ParserBenchmarks} uses; one operation is one frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BitArrayBenchmarks {
+  private ByteBuffer frame;
+  
+  @Setup
+  public void setUp() {
+    frame = ByteBuffer.wrap(new SyntheticCapture(42).frame(Protocol.DHCP));
+  }
+  
+  @Benchmark
+  public short[] toBitArray() {
+    return LibpcapParser.toBitArray(frame);
+  }
+}
@@ -0,0 +1,99 @@
+package bench.jmh;
+
+import header.DhcpHeader;
+import header.EthernetHeader;
+import header.Header;
+import header.HeaderDecoder;
+import header.IpHeader;
+import header.TcpHeader;
+import header.UdpHeader;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bench.SyntheticCapture;
+import bench.SyntheticCapture.Protocol;
+
+/**
+ * Decoding of a single header, by its hand-written decoder and by the reference decoder
+ * compiled from its annotations, into a new header and into one that is reused. The
+ * latency percentiles are of single calls, so the lower ones are mostly the resolution
+ * of the timer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class HeaderDecodingBenchmarks {
+  @Param({"EthernetHeader", "IpHeader", "UdpHeader", "DhcpHeader", "TcpHeader"})
+  public String header;
+  
+  private HeaderDecoder<? extends Header> decoder;
+  private ByteBuffer data;
+  private Header reused;
+  
+  @Setup
+  public void setUp() throws Exception {
+    SyntheticCapture frames = new SyntheticCapture(42);
+    byte[] dhcpFrame = frames.frame(Protocol.DHCP);
+    byte[] tcpFrame = frames.frame(Protocol.TCP);
+    
+    Class<? extends Header> type;
+    byte[] frame = dhcpFrame;
+    int offset;
+    
+    if (header.equals("EthernetHeader")) {
+      type = EthernetHeader.class;
+      offset = 0;
+    } else if (header.equals("IpHeader")) {
+      type = IpHeader.class;
+      offset = 14;
+    } else if (header.equals("UdpHeader")) {
+      type = UdpHeader.class;
+      offset = 34;
+    } else if (header.equals("DhcpHeader")) {
+      type = DhcpHeader.class;
+      offset = 42;
+    } else {
+      type = TcpHeader.class;
+      frame = tcpFrame;
+      offset = 34;
+    }
+    
+    decoder = HeaderDecoder.forType(type);
+    data = ByteBuffer.wrap(frame);
+    data.position(offset);
+    reused = decoder.decode(data);
+  }
+  
+  @Benchmark
+  public Header decode() throws Exception {
+    return decoder.decode(data);
+  }
+  
+  @Benchmark
+  public Header decodeInPlace() throws Exception {
+    decoder.decode(data, reused);
+    return reused;
+  }
+  
+  @Benchmark
+  public Header decodeFromAnnotations() throws Exception {
+    decoder.decodeFromAnnotations(data, reused);
+    return reused;
+  }
+}
@@ -0,0 +1,171 @@
+package bench.jmh;
+
+import header.EthernetHeader;
+import header.RecordHeader;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import main.EthernetFrameList;
+import main.LibpcapParser;
+import main.PacketTable;
+import main.PacketVisitor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import stats.PacketStatistics;
+import bench.SyntheticCapture;
+import bench.SyntheticCapture.Mix;
+import data.Packet;
+
+/**
+ * The parse, filter and statistics paths of {@code bench.ParserBenchmarks}, run under JMH
+ * against the same synthetic captures. Every benchmark goes over a whole capture, and
+ * one operation is one packet of it, except for {@link #getAveragePacketLength()} where
+ * it is one call.
+ * <p>
+ * Benchmarks are run both for their average time and sampled for latency percentiles.
+ * A sample is one whole capture, divided by the number of packets in it, so the
+ * percentiles say how steady a whole pass is; the latency of single packets is only
+ * sampled by {@code bench.ParserBenchmarks}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(ParseBenchmarks.PACKETS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ParseBenchmarks {
+  static final int PACKETS = 20000;
+  
+  @Param({"TYPICAL", "DHCP_HEAVY", "TCP_ONLY"})
+  public Mix mix;
+  
+  private File capture;
+  private EthernetFrameList packets;
+  private PacketTable table;
+  
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    capture = File.createTempFile("jmh-" + mix.name().toLowerCase(), ".pcap");
+    new SyntheticCapture(42).write(capture, PACKETS, mix);
+    
+    LibpcapParser parser = new LibpcapParser(capture, true);
+    packets = parser.parse();
+    parser.close();
+    
+    parser = new LibpcapParser(capture, true);
+    table = new PacketTable();
+    parser.parse(table);
+    parser.close();
+  }
+  
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    capture.delete();
+  }
+  
+  @Benchmark
+  public void parseStream(Blackhole blackhole) throws Exception {
+    parse(false, false, blackhole);
+  }
+  
+  @Benchmark
+  public void parseMapped(Blackhole blackhole) throws Exception {
+    parse(true, false, blackhole);
+  }
+  
+  @Benchmark
+  public void parseMappedLazy(Blackhole blackhole) throws Exception {
+    parse(true, true, blackhole);
+  }
+  
+  @Benchmark
+  public void parseReusing(final Blackhole blackhole) throws Exception {
+    LibpcapParser parser = new LibpcapParser(capture, true);
+    
+    try {
+      parser.parseReusing(new PacketVisitor() {
+        @Override
+        public boolean visit(RecordHeader record, Packet<EthernetHeader> packet) {
+          blackhole.consume(packet);
+          return true;
+        }
+      });
+    } finally {
+      parser.close();
+    }
+  }
+  
+  @Benchmark
+  public EthernetFrameList getAllDhcp() throws Exception {
+    LibpcapParser parser = new LibpcapParser(capture, true);
+    parser.setLazyDecoding(true);
+    
+    try {
+      return EthernetFrameList.getAll(parser, bench.ParserBenchmarks.DHCP_FILTER);
+    } finally {
+      parser.close();
+    }
+  }
+  
+  @Benchmark
+  @OperationsPerInvocation(1)
+  public double getAveragePacketLength() {
+    return packets.getAveragePacketLength();
+  }
+  
+  @Benchmark
+  public PacketStatistics statistics() {
+    PacketStatistics statistics = new PacketStatistics();
+    
+    for (Packet<EthernetHeader> packet : packets) {
+      statistics.add(packet);
+    }
+    
+    return statistics;
+  }
+  
+  @Benchmark
+  public PacketTable tableGetAllDhcp() {
+    return table.getAll(new PacketTable.Filter() {
+      @Override
+      public boolean shouldUse(PacketTable table, int row) {
+        return table.hasLayer(row, PacketTable.UDP) &&
+            (table.getSourcePort(row) == 67 || table.getDestPort(row) == 67);
+      }
+    });
+  }
+  
+  private void parse(boolean memoryMapped, boolean lazy, final Blackhole blackhole) throws Exception {
+    LibpcapParser parser = new LibpcapParser(capture, memoryMapped);
+    parser.setLazyDecoding(lazy);
+    
+    try {
+      parser.parse(new PacketVisitor() {
+        @Override
+        public boolean visit(RecordHeader record, Packet<EthernetHeader> packet) {
+          blackhole.consume(packet);
+          return true;
+        }
+      });
+    } finally {
+      parser.close();
+    }
+  }
+}
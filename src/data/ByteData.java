@@ -1,19 +1,55 @@
 package data;
 
+import java.nio.ByteBuffer;
+
 
 public class ByteData implements Data {
-  private byte[] bytes;
+  private ByteBuffer buffer;
   
   public ByteData(byte[] bytes) {
-    this.bytes = bytes;
+    this(ByteBuffer.wrap(bytes));
+  }
+  
+  /**
+   * @param buffer the bytes of this blob, from the buffer's position to its limit. The
+   *    buffer is kept as is, so it can be a slice of a larger (e.g. mapped) buffer.
+   */
+  public ByteData(ByteBuffer buffer) {
+    this.buffer = buffer;
   }
   
+  /**
+   * @return the bytes of this blob. This is a copy unless the blob is backed by an array
+   *    of exactly its own length.
+   */
   public byte[] getBytes() {
+    if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 
+        && buffer.remaining() == buffer.array().length) {
+      return buffer.array();
+    }
+    
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
     return bytes;
   }
   
+  /**
+   * @return the bytes of this blob without copying them
+   */
+  public ByteBuffer getBuffer() {
+    return buffer.duplicate();
+  }
+  
+  /**
+   * @param buffer the new bytes of this blob, e.g. to reuse the blob for the data of
+   *    another packet
+   */
+  public void setBuffer(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+  
   @Override
   public long getLength() {
-    return bytes.length;
+    return buffer.remaining();
   }
 }
@@ -0,0 +1,90 @@
+package data;
+
+import header.Header;
+import header.HeaderDecoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packet that is a view over the raw bytes of a record. Its header is only decoded once
+ * one of the header's accessors is called, and its data is only decoded once
+ * {@link #getData()} is called, so a filter that only looks at the outer layers of a
+ * packet never pays for decoding the inner ones.
+ * <p>
+ * Views are not thread safe, and the bytes they are backed by have to stay valid until
+ * the packet has been fully decoded.
+ */
+public class LazyPacket<H extends Header> extends Packet<H> {
+  private ByteBuffer payload;
+  
+  /**
+   * @param type the type of the packet's header
+   * @param bytes the bytes of the packet (header and data), from the buffer's position
+   *    to its limit
+   * @return a view over the packet, or {@code null} if there aren't enough bytes for
+   *    the header
+   */
+  public static <H extends Header> LazyPacket<H> view(Class<H> type, ByteBuffer bytes) {
+    HeaderDecoder<H> decoder = HeaderDecoder.forType(type);
+    int headerLength = (int) decoder.getHeaderLength();
+    
+    if (bytes.remaining() < headerLength) return null;
+    
+    ByteBuffer payload = bytes.duplicate();
+    payload.position(payload.position() + headerLength);
+    
+    try {
+      return new LazyPacket<H>(decoder.view(bytes.duplicate()), payload);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  /**
+   * @param header the already decoded header of the packet
+   * @param payload the bytes of the packet's data, from the buffer's position to its
+   *    limit
+   * @return a packet whose data is only decoded once {@link #getData()} is called
+   */
+  public static <H extends Header> LazyPacket<H> wrap(H header, ByteBuffer payload) {
+    return new LazyPacket<H>(header, payload);
+  }
+  
+  private LazyPacket(H header, ByteBuffer payload) {
+    super(header, null);
+    this.payload = payload;
+  }
+  
+  /**
+   * Decodes the nested packet the first time it is called. If the header doesn't say
+   * what the data holds, or there isn't enough of it, the data is a blob of the
+   * remaining bytes.
+   */
+  @Override
+  public Data getData() {
+    if (payload != null) {
+      ByteBuffer bytes = payload;
+      payload = null;
+      
+      Class<? extends Header> type = getHeader().getDataPacketHeaderType();
+      Data data = type != null ? view(type, bytes) : null;
+      
+      setData(data != null ? data : new ByteData(bytes.slice()));
+    }
+    
+    return super.getData();
+  }
+  
+  @Override
+  public void setData(Data data) {
+    payload = null;
+    super.setData(data);
+  }
+  
+  @Override
+  public long getLength() {
+    if (payload != null) return getHeader().getHeaderLength() + payload.remaining();
+    
+    return super.getLength();
+  }
+}
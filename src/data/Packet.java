@@ -25,15 +25,16 @@ public class Packet<H extends Header> implements Data {
   }
   
   public boolean hasNestedPacket() {
-    return data instanceof Packet;
+    return getData() instanceof Packet;
   }
   
   public long getLength() {
+    Data data = getData();
     return header.getHeaderLength() + (data != null ? data.getLength() : 0);
   }
   
   @Override
   public String toString() {
-    return header.toString() + '\n' + data;
+    return header.toString() + '\n' + getData();
   }
 }
@@ -0,0 +1,453 @@
+package filter;
+
+import header.Ipv4;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles filter expressions into {@link RawFilter}s that read the fields they need
+ * straight out of the raw bytes of a frame at known offsets.
+ * <p>
+ * Expressions combine primitives with {@code and} ({@code &&}), {@code or}
+ * ({@code ||}), {@code not} ({@code !}) and parentheses. The primitives are:
+ * <ul>
+ * <li>{@code ip}, {@code arp}, {@code tcp}, {@code udp}, {@code icmp}</li>
+ * <li>{@code ether proto N}, {@code ip proto N}</li>
+ * <li>{@code [src|dst] host A.B.C.D}, {@code [src|dst] net A.B.C.D/N}</li>
+ * <li>{@code [src|dst] port N}, optionally preceded by {@code tcp} or {@code udp}</li>
+ * <li>comparisons of a field with a number, using {@code ==}, {@code !=}, {@code <},
+ *    {@code <=}, {@code >} or {@code >=}: {@code ether.type}, {@code ip.proto},
+ *    {@code ip.ttl}, {@code ip.len}, {@code tcp.srcport}, {@code tcp.dstport},
+ *    {@code udp.srcport}, {@code udp.dstport}, {@code frame.len}</li>
+ * <li>{@code ip.src}, {@code ip.dst} or {@code ip.addr} compared with {@code ==} or
+ *    {@code !=} to an address or a network, e.g. {@code ip.src == 10.0.0.0/8}</li>
+ * </ul>
+ * For example: {@code udp and port 67} or {@code ip.src == 10.0.0.0/8 and not tcp}.
+ * <p>
+ * Like BPF, ports only match the first fragment of a fragmented datagram.
+ */
+public class FilterCompiler {
+  private static final int ETHERTYPE_IP = 0x0800;
+  private static final int ETHERTYPE_ARP = 0x0806;
+  
+  private static final int PROTOCOL_ICMP = 1;
+  private static final int PROTOCOL_TCP = 6;
+  private static final int PROTOCOL_UDP = 17;
+  
+  private static final int IP_HEADER_MIN_LENGTH = 20;
+  private static final int IP_PROTOCOL_OFFSET = 9;
+  private static final int IP_SOURCE_OFFSET = 12;
+  private static final int IP_DEST_OFFSET = 16;
+  
+  /** Matches either the source or the destination of a packet. */
+  private static final int EITHER = 0;
+  private static final int SOURCE = 1;
+  private static final int DEST = 2;
+  
+  private final List<String> tokens;
+  private int position;
+  
+  /**
+   * @param expression the filter expression
+   * @return the compiled filter
+   * @throws IllegalArgumentException if the expression isn't valid
+   */
+  public static RawFilter compile(String expression) {
+    FilterCompiler compiler = new FilterCompiler(expression);
+    RawFilter filter = compiler.parseOr();
+    
+    if (compiler.position < compiler.tokens.size()) compiler.fail();
+    
+    return filter;
+  }
+  
+  private FilterCompiler(String expression) {
+    tokens = tokenize(expression);
+  }
+  
+  private RawFilter parseOr() {
+    RawFilter filter = parseAnd();
+    
+    while (accept("or") || accept("||")) {
+      final RawFilter left = filter;
+      final RawFilter right = parseAnd();
+      
+      filter = new RawFilter() {
+        @Override
+        public boolean matches(ByteBuffer frame, int etherType, int networkOffset) {
+          return left.matches(frame, etherType, networkOffset) || right.matches(frame, etherType, networkOffset);
+        }
+      };
+    }
+    
+    return filter;
+  }
+  
+  private RawFilter parseAnd() {
+    RawFilter filter = parseNot();
+    
+    while (accept("and") || accept("&&")) {
+      final RawFilter left = filter;
+      final RawFilter right = parseNot();
+      
+      filter = new RawFilter() {
+        @Override
+        public boolean matches(ByteBuffer frame, int etherType, int networkOffset) {
+          return left.matches(frame, etherType, networkOffset) && right.matches(frame, etherType, networkOffset);
+        }
+      };
+    }
+    
+    return filter;
+  }
+  
+  private RawFilter parseNot() {
+    if (accept("not") || accept("!")) {
+      final RawFilter negated = parseNot();
+      
+      return new RawFilter() {
+        @Override
+        public boolean matches(ByteBuffer frame, int etherType, int networkOffset) {
+          return !negated.matches(frame, etherType, networkOffset);
+        }
+      };
+    }
+    
+    if (accept("(")) {
+      RawFilter filter = parseOr();
+      expect(")");
+      return filter;
+    }
+    
+    return parsePrimitive();
+  }
+  
+  private RawFilter parsePrimitive() {
+    String token = next();
+    
+    if (token.equals("ether")) {
+      expect("proto");
+      return etherType(parseNumber(0xFFFF));
+    } else if (token.equals("arp")) {
+      return etherType(ETHERTYPE_ARP);
+    } else if (token.equals("ip")) {
+      return accept("proto") ? protocol(parseNumber(0xFF)) : etherType(ETHERTYPE_IP);
+    } else if (token.equals("icmp")) {
+      return protocol(PROTOCOL_ICMP);
+    } else if (token.equals("tcp") || token.equals("udp")) {
+      int protocol = token.equals("tcp") ? PROTOCOL_TCP : PROTOCOL_UDP;
+      
+      if (peek("src") || peek("dst") || peek("port")) {
+        int direction = parseDirection();
+        expect("port");
+        return port(protocol, direction, parseNumber(0xFFFF));
+      }
+      
+      return protocol(protocol);
+    } else if (token.equals("src") || token.equals("dst") || token.equals("host") 
+        || token.equals("net") || token.equals("port")) {
+      --position;
+      int direction = parseDirection();
+      String kind = next();
+      
+      if (kind.equals("port")) return port(-1, direction, parseNumber(0xFFFF));
+      if (kind.equals("host") || kind.equals("net")) return address(direction, parseNetwork(kind.equals("host")));
+      
+      --position;
+      fail();
+    } else if (token.equals("ip.src") || token.equals("ip.dst") || token.equals("ip.addr")) {
+      int direction = token.equals("ip.src") ? SOURCE : token.equals("ip.dst") ? DEST : EITHER;
+      String operator = next();
+      
+      if (!operator.equals("==") && !operator.equals("!=")) {
+        --position;
+        fail();
+      }
+      
+      RawFilter filter = address(direction, parseNetwork(false));
+      return operator.equals("==") ? filter : not(filter);
+    } else if (Field.forName(token) != null) {
+      return compare(Field.forName(token), next(), parseNumber(Integer.MAX_VALUE));
+    }
+    
+    --position;
+    fail();
+    return null;
+  }
+  
+  private int parseDirection() {
+    if (accept("src")) return SOURCE;
+    if (accept("dst")) return DEST;
+    return EITHER;
+  }
+  
+  private int parseNumber(int max) {
+    String token = next();
+    long value;
+    
+    try {
+      value = token.startsWith("0x") ? Long.parseLong(token.substring(2), 16) : Long.parseLong(token);
+    } catch (NumberFormatException e) {
+      value = -1;
+    }
+    
+    if (value < 0 || value > max) {
+      --position;
+      fail();
+    }
+    
+    return (int) value;
+  }
+  
+  /**
+   * @return the network address and its mask
+   */
+  private int[] parseNetwork(boolean host) {
+    String token = next();
+    
+    try {
+      if (host && token.indexOf('/') >= 0) throw new NumberFormatException();
+      
+      Ipv4.Network network = Ipv4.Network.parse(token);
+      return new int[] { network.getAddress(), network.getMask() };
+    } catch (NumberFormatException e) {
+      --position;
+      fail();
+      return null;
+    }
+  }
+  
+  private static RawFilter etherType(final int type) {
+    return new RawFilter() {
+      @Override
+      public boolean matches(ByteBuffer frame, int etherType, int networkOffset) {
+        return etherType == type;
+      }
+    };
+  }
+  
+  private static RawFilter protocol(final int protocol) {
+    return new RawFilter() {
+      @Override
+      public boolean matches(ByteBuffer frame, int etherType, int networkOffset) {
+        return isIp(frame, etherType, networkOffset) && 
+            (frame.get(networkOffset + IP_PROTOCOL_OFFSET) & 0xFF) == protocol;
+      }
+    };
+  }
+  
+  private static RawFilter address(final int direction, int[] network) {
+    final int address = network[0];
+    final int mask = network[1];
+    
+    return new RawFilter() {
+      @Override
+      public boolean matches(ByteBuffer frame, int etherType, int networkOffset) {
+        if (!isIp(frame, etherType, networkOffset)) return false;
+        
+        boolean source = (getInt(frame, networkOffset + IP_SOURCE_OFFSET) & mask) == address;
+        boolean dest = (getInt(frame, networkOffset + IP_DEST_OFFSET) & mask) == address;
+        
+        return direction == SOURCE ? source : direction == DEST ? dest : source || dest;
+      }
+    };
+  }
+  
+  /**
+   * @param protocol the transport protocol, or -1 for either TCP or UDP
+   */
+  private static RawFilter port(final int protocol, final int direction, final int port) {
+    return new RawFilter() {
+      @Override
+      public boolean matches(ByteBuffer frame, int etherType, int networkOffset) {
+        int transportOffset = getTransportOffset(frame, etherType, networkOffset, protocol);
+        if (transportOffset < 0) return false;
+        
+        boolean source = getShort(frame, transportOffset) == port;
+        boolean dest = getShort(frame, transportOffset + 2) == port;
+        
+        return direction == SOURCE ? source : direction == DEST ? dest : source || dest;
+      }
+    };
+  }
+  
+  private static RawFilter compare(final Field field, String operator, final int value) {
+    final int comparison;
+    
+    if (operator.equals("==")) comparison = 0;
+    else if (operator.equals("!=")) comparison = 1;
+    else if (operator.equals("<")) comparison = 2;
+    else if (operator.equals("<=")) comparison = 3;
+    else if (operator.equals(">")) comparison = 4;
+    else if (operator.equals(">=")) comparison = 5;
+    else throw new IllegalArgumentException("Expected a comparison but found '" + operator + "'");
+    
+    return new RawFilter() {
+      @Override
+      public boolean matches(ByteBuffer frame, int etherType, int networkOffset) {
+        int actual = field.get(frame, etherType, networkOffset);
+        if (actual < 0) return false;
+        
+        switch (comparison) {
+          case 0: return actual == value;
+          case 1: return actual != value;
+          case 2: return actual < value;
+          case 3: return actual <= value;
+          case 4: return actual > value;
+          default: return actual >= value;
+        }
+      }
+    };
+  }
+  
+  private static RawFilter not(final RawFilter filter) {
+    return new RawFilter() {
+      @Override
+      public boolean matches(ByteBuffer frame, int etherType, int networkOffset) {
+        return !filter.matches(frame, etherType, networkOffset);
+      }
+    };
+  }
+  
+  private static boolean isIp(ByteBuffer frame, int etherType, int networkOffset) {
+    return etherType == ETHERTYPE_IP && frame.limit() >= networkOffset + IP_HEADER_MIN_LENGTH;
+  }
+  
+  /**
+   * @param protocol the transport protocol, or -1 for either TCP or UDP
+   * @return the index of the transport header, or -1 if the frame doesn't hold the
+   *    first fragment of a datagram of that protocol
+   */
+  private static int getTransportOffset(ByteBuffer frame, int etherType, int networkOffset, int protocol) {
+    if (!isIp(frame, etherType, networkOffset)) return -1;
+    
+    int actualProtocol = frame.get(networkOffset + IP_PROTOCOL_OFFSET) & 0xFF;
+    if (protocol < 0 ? actualProtocol != PROTOCOL_TCP && actualProtocol != PROTOCOL_UDP : actualProtocol != protocol) {
+      return -1;
+    }
+    
+    // Only the first fragment holds the transport header.
+    if ((getShort(frame, networkOffset + 6) & 0x1FFF) != 0) return -1;
+    
+    int transportOffset = networkOffset + (frame.get(networkOffset) & 0x0F) * 4;
+    return frame.limit() >= transportOffset + 4 ? transportOffset : -1;
+  }
+  
+  private static int getShort(ByteBuffer frame, int index) {
+    return (frame.get(index) & 0xFF) << 8 | (frame.get(index + 1) & 0xFF);
+  }
+  
+  private static int getInt(ByteBuffer frame, int index) {
+    return getShort(frame, index) << 16 | getShort(frame, index + 2);
+  }
+  
+  /**
+   * Numeric fields that can be compared with a value.
+   */
+  private enum Field {
+    ETHER_TYPE("ether.type"),
+    IP_PROTOCOL("ip.proto"),
+    IP_TTL("ip.ttl"),
+    IP_LENGTH("ip.len"),
+    TCP_SOURCE_PORT("tcp.srcport"),
+    TCP_DEST_PORT("tcp.dstport"),
+    UDP_SOURCE_PORT("udp.srcport"),
+    UDP_DEST_PORT("udp.dstport"),
+    FRAME_LENGTH("frame.len");
+    
+    private final String name;
+    
+    private Field(String name) {
+      this.name = name;
+    }
+    
+    static Field forName(String name) {
+      for (Field field : values()) {
+        if (field.name.equals(name)) return field;
+      }
+      
+      return null;
+    }
+    
+    /**
+     * @return the value of the field, or -1 if the frame doesn't have it
+     */
+    int get(ByteBuffer frame, int etherType, int networkOffset) {
+      switch (this) {
+        case ETHER_TYPE:
+          return etherType;
+        case FRAME_LENGTH:
+          return frame.remaining();
+        case IP_PROTOCOL:
+          return isIp(frame, etherType, networkOffset) ? frame.get(networkOffset + IP_PROTOCOL_OFFSET) & 0xFF : -1;
+        case IP_TTL:
+          return isIp(frame, etherType, networkOffset) ? frame.get(networkOffset + 8) & 0xFF : -1;
+        case IP_LENGTH:
+          return isIp(frame, etherType, networkOffset) ? getShort(frame, networkOffset + 2) : -1;
+        default:
+          int protocol = this == TCP_SOURCE_PORT || this == TCP_DEST_PORT ? PROTOCOL_TCP : PROTOCOL_UDP;
+          int transportOffset = getTransportOffset(frame, etherType, networkOffset, protocol);
+          if (transportOffset < 0) return -1;
+          
+          boolean source = this == TCP_SOURCE_PORT || this == UDP_SOURCE_PORT;
+          return getShort(frame, source ? transportOffset : transportOffset + 2);
+      }
+    }
+  }
+  
+  private static List<String> tokenize(String expression) {
+    List<String> tokens = new ArrayList<String>();
+    int i = 0;
+    
+    while (i < expression.length()) {
+      char c = expression.charAt(i);
+      
+      if (Character.isWhitespace(c)) {
+        ++i;
+      } else if (c == '(' || c == ')') {
+        tokens.add(String.valueOf(c));
+        ++i;
+      } else if ("=!<>&|".indexOf(c) >= 0) {
+        int start = i++;
+        while (i < expression.length() && "=&|".indexOf(expression.charAt(i)) >= 0) ++i;
+        tokens.add(expression.substring(start, i));
+      } else {
+        int start = i;
+        while (i < expression.length() && !Character.isWhitespace(expression.charAt(i)) 
+            && "()=!<>&|".indexOf(expression.charAt(i)) < 0) {
+          ++i;
+        }
+        tokens.add(expression.substring(start, i).toLowerCase());
+      }
+    }
+    
+    return tokens;
+  }
+  
+  private boolean peek(String token) {
+    return position < tokens.size() && tokens.get(position).equals(token);
+  }
+  
+  private boolean accept(String token) {
+    if (!peek(token)) return false;
+    
+    ++position;
+    return true;
+  }
+  
+  private void expect(String token) {
+    if (!accept(token)) fail();
+  }
+  
+  private String next() {
+    if (position >= tokens.size()) fail();
+    return tokens.get(position++);
+  }
+  
+  private void fail() {
+    if (position >= tokens.size()) throw new IllegalArgumentException("Unexpected end of filter expression");
+    throw new IllegalArgumentException("Unexpected '" + tokens.get(position) + "' in filter expression");
+  }
+}
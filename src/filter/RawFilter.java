@@ -0,0 +1,21 @@
+package filter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Filter that is run against the raw bytes of a record before any headers are decoded,
+ * so that records that don't match can be dropped without paying for decoding them.
+ * 
+ * @see FilterCompiler
+ */
+public interface RawFilter {
+  /**
+   * @param frame the bytes of the frame, from the buffer's position to its limit.
+   *    Offsets into the frame are absolute indexes into the buffer.
+   * @param etherType the type of the network layer packet in the frame
+   * @param networkOffset the index in {@code frame} at which the network layer packet
+   *    starts
+   * @return whether or not the record should be kept
+   */
+  public boolean matches(ByteBuffer frame, int etherType, int networkOffset);
+}
@@ -0,0 +1,17 @@
+package flow;
+
+/**
+ * Callback interface for the flows aggregated by a {@link FlowTable}.
+ */
+public interface FlowListener {
+  /**
+   * Called when a flow is removed from the table, either because it has been idle for
+   * longer than the idle timeout or because the table is being flushed. The flow's fields
+   * can be read through the table's accessors until this method returns, after which the
+   * row may be reused for another flow.
+   * 
+   * @param table the table the flow belongs to
+   * @param flow the row of the flow
+   */
+  public void onExpire(FlowTable table, int flow);
+}
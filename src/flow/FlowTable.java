@@ -0,0 +1,397 @@
+package flow;
+
+import header.EthernetHeader;
+import header.Header;
+import header.IpHeader;
+import header.RecordHeader;
+import header.TcpHeader;
+import header.UdpHeader;
+
+import java.util.Arrays;
+
+import main.PacketVisitor;
+import util.LongPairIntMap;
+import data.Data;
+import data.Packet;
+
+/**
+ * Aggregates IP packets into flows keyed by their 5-tuple: source and destination
+ * address, source and destination port, and protocol. Every flow keeps the capture
+ * times of its first and last packet, its packet and byte counts and, for TCP, the
+ * flags seen in any of its segments.
+ * <p>
+ * Like {@link main.PacketTable}, the flows are kept in primitive arrays with one element
+ * per flow, and they are looked up through a {@link LongPairIntMap}, so adding a packet
+ * to an existing flow doesn't allocate anything. Flows are referred to by their row in
+ * those arrays; rows of expired flows are reused for new ones.
+ * <p>
+ * Flows that haven't been seen for longer than the idle timeout, measured in capture
+ * time, are expired and handed to the {@link FlowListener}, if there is one. Packets
+ * without ports are counted with both ports set to 0. That includes every fragment of a
+ * fragmented datagram, the first one too, since fragments aren't decoded past their IP
+ * header; to count such datagrams under their ports, pass the packets through a
+ * {@link reassembly.IpDefragmenter} first. Directions are kept apart, so a connection
+ * usually makes up two flows.
+ */
+public class FlowTable implements PacketVisitor {
+  /** The default idle timeout, in milliseconds. */
+  public static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+  
+  /** The row returned for flows that aren't in the table. */
+  public static final int NO_FLOW = -1;
+  
+  private static final int DEFAULT_CAPACITY = 1024;
+  
+  private final FlowListener listener;
+  private long idleTimeout = DEFAULT_IDLE_TIMEOUT * 1000000L;
+  
+  private final LongPairIntMap index;
+  private int size;
+  private int numRows;
+  private int[] freeRows;
+  private int numFreeRows;
+  
+  private int[] sourceIpAddresses;
+  private int[] destIpAddresses;
+  private short[] sourcePorts;
+  private short[] destPorts;
+  private byte[] protocols;
+  private long[] firstSeen;
+  private long[] lastSeen;
+  private long[] packets;
+  private long[] bytes;
+  private short[] tcpFlags;
+  
+  /** The rows of the flows seen before and after each flow, or {@link #NO_FLOW}. */
+  private int[] older;
+  private int[] newer;
+  private int oldest = NO_FLOW;
+  private int newest = NO_FLOW;
+  
+  public FlowTable() {
+    this(null);
+  }
+  
+  /**
+   * @param listener the listener to hand the expired flows to, or {@code null} to drop
+   *    them
+   */
+  public FlowTable(FlowListener listener) {
+    this(listener, DEFAULT_CAPACITY);
+  }
+  
+  /**
+   * @param listener the listener to hand the expired flows to, or {@code null} to drop
+   *    them
+   * @param capacity the number of flows to make room for up front
+   */
+  public FlowTable(FlowListener listener, int capacity) {
+    this.listener = listener;
+    
+    index = new LongPairIntMap(capacity);
+    freeRows = new int[capacity];
+    
+    sourceIpAddresses = new int[capacity];
+    destIpAddresses = new int[capacity];
+    sourcePorts = new short[capacity];
+    destPorts = new short[capacity];
+    protocols = new byte[capacity];
+    firstSeen = new long[capacity];
+    lastSeen = new long[capacity];
+    packets = new long[capacity];
+    bytes = new long[capacity];
+    tcpFlags = new short[capacity];
+    older = new int[capacity];
+    newer = new int[capacity];
+  }
+  
+  @Override
+  public boolean visit(RecordHeader record, Packet<EthernetHeader> packet) {
+    add(record, packet);
+    return true;
+  }
+  
+  /**
+   * Adds a packet to its flow, creating the flow if it is new. Packets that aren't IP
+   * packets are ignored.
+   * 
+   * @param record the record header of the packet
+   * @param packet the packet
+   */
+  public void add(RecordHeader record, Packet<EthernetHeader> packet) {
+    long now = record.getTimestampNanos();
+    expire(now);
+    
+    Data data = packet.getData();
+    if (!(data instanceof Packet) || !(((Packet<?>) data).getHeader() instanceof IpHeader)) return;
+    
+    Packet<?> ipPacket = (Packet<?>) data;
+    IpHeader ipHeader = (IpHeader) ipPacket.getHeader();
+    
+    int sourcePort = 0;
+    int destPort = 0;
+    int flags = 0;
+    
+    if (ipPacket.hasNestedPacket()) {
+      Header transportHeader = ((Packet<?>) ipPacket.getData()).getHeader();
+      
+      if (transportHeader instanceof TcpHeader) {
+        TcpHeader tcpHeader = (TcpHeader) transportHeader;
+        
+        sourcePort = tcpHeader.getSourcePort();
+        destPort = tcpHeader.getDestPort();
+        flags = tcpHeader.getFlags();
+      } else if (transportHeader instanceof UdpHeader) {
+        UdpHeader udpHeader = (UdpHeader) transportHeader;
+        
+        sourcePort = udpHeader.getSourcePort();
+        destPort = udpHeader.getDestPort();
+      }
+    }
+    
+    add(ipHeader.getSourceIpAddress(), ipHeader.getDestIpAddress(), sourcePort, destPort,
+        ipHeader.getProtocolNumber(), ipHeader.getTotalLength(), flags, now);
+  }
+  
+  /**
+   * Adds a packet to its flow, creating the flow if it is new.
+   * 
+   * @param sourceAddress the source IP address as a big-endian int
+   * @param destAddress the destination IP address as a big-endian int
+   * @param length the length of the IP datagram, in bytes
+   * @param flags the TCP flags of the packet, or 0 if it isn't a TCP segment
+   * @param now the capture time of the packet, in nanoseconds
+   * @return the row of the flow
+   */
+  public int add(int sourceAddress, int destAddress, int sourcePort, int destPort, int protocol,
+      long length, int flags, long now) {
+    
+    long first = firstKey(sourceAddress, destAddress);
+    long second = secondKey(sourcePort, destPort, protocol);
+    int flow = index.get(first, second);
+    
+    if (flow == LongPairIntMap.NO_VALUE) {
+      flow = open(first, second);
+      
+      sourceIpAddresses[flow] = sourceAddress;
+      destIpAddresses[flow] = destAddress;
+      sourcePorts[flow] = (short) sourcePort;
+      destPorts[flow] = (short) destPort;
+      protocols[flow] = (byte) protocol;
+      firstSeen[flow] = now;
+      packets[flow] = 0;
+      bytes[flow] = 0;
+      tcpFlags[flow] = 0;
+    }
+    
+    lastSeen[flow] = now;
+    packets[flow]++;
+    bytes[flow] += length;
+    tcpFlags[flow] |= flags;
+    touch(flow);
+    
+    return flow;
+  }
+  
+  /**
+   * Expires the flows that haven't been seen for longer than the idle timeout.
+   * 
+   * @param now the current capture time, in nanoseconds
+   */
+  public void expire(long now) {
+    while (oldest != NO_FLOW && now - lastSeen[oldest] > idleTimeout) {
+      close(oldest);
+    }
+  }
+  
+  /**
+   * Expires every flow. Should be called once the end of the capture has been reached,
+   * so that the listener sees the flows that were still active.
+   */
+  public void flush() {
+    while (oldest != NO_FLOW) {
+      close(oldest);
+    }
+  }
+  
+  /**
+   * @return the row of the flow, or {@link #NO_FLOW} if the table doesn't hold it
+   */
+  public int find(int sourceAddress, int destAddress, int sourcePort, int destPort, int protocol) {
+    int flow = index.get(firstKey(sourceAddress, destAddress), secondKey(sourcePort, destPort, protocol));
+    return flow == LongPairIntMap.NO_VALUE ? NO_FLOW : flow;
+  }
+  
+  private int open(long first, long second) {
+    int flow;
+    
+    if (numFreeRows > 0) {
+      flow = freeRows[--numFreeRows];
+    } else {
+      if (numRows == packets.length) grow();
+      flow = numRows++;
+    }
+    
+    index.put(first, second, flow);
+    older[flow] = NO_FLOW;
+    newer[flow] = NO_FLOW;
+    size++;
+    
+    return flow;
+  }
+  
+  private void close(int flow) {
+    if (listener != null) listener.onExpire(this, flow);
+    
+    unlink(flow);
+    index.remove(firstKey(sourceIpAddresses[flow], destIpAddresses[flow]),
+        secondKey(getSourcePort(flow), getDestPort(flow), getProtocol(flow)));
+    
+    packets[flow] = 0;
+    freeRows[numFreeRows++] = flow;
+    size--;
+  }
+  
+  /**
+   * Moves a flow to the most recently seen end of the list of flows.
+   */
+  private void touch(int flow) {
+    if (flow == newest) return;
+    
+    unlink(flow);
+    
+    older[flow] = newest;
+    if (newest != NO_FLOW) newer[newest] = flow;
+    newest = flow;
+    
+    if (oldest == NO_FLOW) oldest = flow;
+  }
+  
+  private void unlink(int flow) {
+    if (older[flow] != NO_FLOW) newer[older[flow]] = newer[flow];
+    if (newer[flow] != NO_FLOW) older[newer[flow]] = older[flow];
+    if (flow == oldest) oldest = newer[flow];
+    if (flow == newest) newest = older[flow];
+    
+    older[flow] = NO_FLOW;
+    newer[flow] = NO_FLOW;
+  }
+  
+  private void grow() {
+    int capacity = Math.max(DEFAULT_CAPACITY, packets.length * 2);
+    
+    freeRows = Arrays.copyOf(freeRows, capacity);
+    sourceIpAddresses = Arrays.copyOf(sourceIpAddresses, capacity);
+    destIpAddresses = Arrays.copyOf(destIpAddresses, capacity);
+    sourcePorts = Arrays.copyOf(sourcePorts, capacity);
+    destPorts = Arrays.copyOf(destPorts, capacity);
+    protocols = Arrays.copyOf(protocols, capacity);
+    firstSeen = Arrays.copyOf(firstSeen, capacity);
+    lastSeen = Arrays.copyOf(lastSeen, capacity);
+    packets = Arrays.copyOf(packets, capacity);
+    bytes = Arrays.copyOf(bytes, capacity);
+    tcpFlags = Arrays.copyOf(tcpFlags, capacity);
+    older = Arrays.copyOf(older, capacity);
+    newer = Arrays.copyOf(newer, capacity);
+  }
+  
+  private static long firstKey(int sourceAddress, int destAddress) {
+    return (long) sourceAddress << 32 | (destAddress & 0xFFFFFFFFL);
+  }
+  
+  private static long secondKey(int sourcePort, int destPort, int protocol) {
+    return (long) sourcePort << 24 | destPort << 8 | protocol;
+  }
+  
+  /**
+   * @param idleTimeout the capture time after which a flow that hasn't been seen is
+   *    expired, in milliseconds
+   */
+  public void setIdleTimeout(long idleTimeout) {
+    this.idleTimeout = idleTimeout * 1000000L;
+  }
+  
+  public long getIdleTimeout() {
+    return idleTimeout / 1000000L;
+  }
+  
+  /**
+   * @return the number of active flows
+   */
+  public int size() {
+    return size;
+  }
+  
+  /**
+   * @return the number of rows in use, active or not. Every active flow has a row below
+   *    this number.
+   */
+  public int getRowCount() {
+    return numRows;
+  }
+  
+  /**
+   * @return whether or not the row holds an active flow
+   */
+  public boolean isActive(int flow) {
+    return packets[flow] != 0;
+  }
+  
+  /**
+   * @return the source IP address as a big-endian int
+   */
+  public int getSourceIpAddress(int flow) {
+    return sourceIpAddresses[flow];
+  }
+  
+  /**
+   * @return the destination IP address as a big-endian int
+   */
+  public int getDestIpAddress(int flow) {
+    return destIpAddresses[flow];
+  }
+  
+  public int getSourcePort(int flow) {
+    return Header.u(sourcePorts[flow]);
+  }
+  
+  public int getDestPort(int flow) {
+    return Header.u(destPorts[flow]);
+  }
+  
+  public int getProtocol(int flow) {
+    return Header.u(protocols[flow]);
+  }
+  
+  /**
+   * @return the capture time of the first packet of the flow, in nanoseconds
+   */
+  public long getFirstSeen(int flow) {
+    return firstSeen[flow];
+  }
+  
+  /**
+   * @return the capture time of the last packet of the flow, in nanoseconds
+   */
+  public long getLastSeen(int flow) {
+    return lastSeen[flow];
+  }
+  
+  public long getPacketCount(int flow) {
+    return packets[flow];
+  }
+  
+  /**
+   * @return the sum of the IP total lengths of the packets of the flow
+   */
+  public long getByteCount(int flow) {
+    return bytes[flow];
+  }
+  
+  /**
+   * @return the TCP flags seen in any of the segments of the flow
+   */
+  public int getTcpFlags(int flow) {
+    return tcpFlags[flow];
+  }
+}
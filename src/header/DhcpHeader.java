@@ -1,16 +1,48 @@
 package header;
 
-import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public class DhcpHeader extends Header {
   public enum MessageType {
-    DISCOVER,
-    OFFER,
-    REQUEST,
-    DECLINE,
-    ACK,
-    NACK,
-    RELEASE;
+    DISCOVER(1),
+    OFFER(2),
+    REQUEST(3),
+    DECLINE(4),
+    ACK(5),
+    NACK(6),
+    RELEASE(7),
+    UNKNOWN;
+    
+    private static final MessageType[] byCode = new MessageType[1 << 8];
+    
+    static {
+      for (MessageType type : values()) {
+        if (type.code >= 0) byCode[type.code] = type;
+      }
+    }
+    
+    private final int code;
+    
+    private MessageType() {
+      this(-1);
+    }
+    
+    private MessageType(int code) {
+      this.code = code;
+    }
+    
+    public int getCode() {
+      return code;
+    }
+    
+    /**
+     * @param code a DHCP message type, as carried in option 53
+     * @return the matching {@link MessageType}, or {@link #UNKNOWN} if there is none
+     */
+    public static MessageType forCode(int code) {
+      MessageType type = code >= 0 && code < byCode.length ? byCode[code] : null;
+      return type != null ? type : UNKNOWN;
+    }
   }
   
   @SuppressWarnings("unused")
@@ -18,62 +50,105 @@ public class DhcpHeader extends Header {
   private byte[] preamble;
   
   @HeaderField(offset = 96, numBits = 32)
-  private InetAddress clientIpAddress;
+  private int clientIpAddress;
   
   @HeaderField(offset = 128, numBits = 32)
-  private InetAddress thisIpAddress;
+  private int thisIpAddress;
   
   @HeaderField(offset = 160, numBits = 32)
-  private InetAddress serverIpAddress;
+  private int serverIpAddress;
   
   @HeaderField(offset = 192, numBits = 32)
-  private InetAddress routerIpAddress;
+  private int routerIpAddress;
   
   @SuppressWarnings("unused")
   @HeaderField(offset = 224, numBits = 1712)
   private byte[] ignored;  
   
+  /** The message type code, mapped to a {@link MessageType} when it is asked for. */
   @HeaderField(offset = 1936, numBits = 8)
-  private MessageType dhcpMessageType;
+  private short dhcpMessageType;
+  
+  private static final DirectDecoder<DhcpHeader> DECODER = new DirectDecoder<DhcpHeader>() {
+    @Override
+    DhcpHeader newHeader() {
+      return new DhcpHeader();
+    }
+    
+    @Override
+    void decode(DhcpHeader header, ByteBuffer data, int base) {
+      header.preamble = bytes(data, base, 12, header.preamble);
+      header.clientIpAddress = s32(data, base + 12);
+      header.thisIpAddress = s32(data, base + 16);
+      header.serverIpAddress = s32(data, base + 20);
+      header.routerIpAddress = s32(data, base + 24);
+      header.ignored = bytes(data, base + 28, 214, header.ignored);
+      header.dhcpMessageType = u8(data, base + 242);
+    }
+  };
   
   @TypeMapper(MessageType.class)
-  public static MessageType makeMessageType(byte[] bytes) {
-    return MessageType.values()[bytes[0] - 1];
+  public static MessageType makeMessageType(long value) {
+    return MessageType.forCode((int) value);
   }
   
   @Override
   public Class<? extends Header> getDataPacketHeaderType() {
+    materialize();
     return null;
   }
+  
+  @Override
+  DirectDecoder<DhcpHeader> getDirectDecoder() {
+    return DECODER;
+  }
 
-  public InetAddress getClientIpAddress() {
+  /**
+   * @return the address the client already has, see {@link Ipv4} for working with it
+   */
+  public int getClientIpAddress() {
+    materialize();
     return clientIpAddress;
   }
 
-  public InetAddress getThisIpAddress() {
+  public int getThisIpAddress() {
+    materialize();
     return thisIpAddress;
   }
 
-  public InetAddress getServerIpAddress() {
+  public int getServerIpAddress() {
+    materialize();
     return serverIpAddress;
   }
 
-  public InetAddress getRouterIpAddress() {
+  public int getRouterIpAddress() {
+    materialize();
     return routerIpAddress;
   }
 
+  /**
+   * @return the message type, or {@link MessageType#UNKNOWN} if the code isn't one of the
+   *    known types
+   */
   public MessageType getDhcpMessageType() {
+    materialize();
+    return MessageType.forCode(dhcpMessageType);
+  }
+  
+  public int getDhcpMessageTypeCode() {
+    materialize();
     return dhcpMessageType;
   }
   
   @Override
   public String toString() {
+    materialize();
     return makeText("DHCP",
         "----- DHCP Header -----",
-        f("Client IP address = %s", clientIpAddress),
-        f("Your IP address = %s", thisIpAddress),
-        f("Server IP address = %s",serverIpAddress),
-        f("Router IP address = %s", routerIpAddress),
-        f("Message type = %s (DHCP %s)", dhcpMessageType.ordinal() + 1, dhcpMessageType));
+        f("Client IP address = %s", Ipv4.format(clientIpAddress)),
+        f("Your IP address = %s", Ipv4.format(thisIpAddress)),
+        f("Server IP address = %s", Ipv4.format(serverIpAddress)),
+        f("Router IP address = %s", Ipv4.format(routerIpAddress)),
+        f("Message type = %s (DHCP %s)", dhcpMessageType, MessageType.forCode(dhcpMessageType)));
   }
 }
@@ -0,0 +1,83 @@
+package header;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hand-written decoder for the fields of one type of header, which reads each field
+ * straight out of the buffer at its fixed offset and assigns it without reflection. The
+ * built-in headers provide one through {@link Header#getDirectDecoder()}, and
+ * {@link HeaderDecoder} prefers it to the field decoders it compiles from the header's
+ * {@link Header.HeaderField} annotations; those are kept as the reference that these
+ * decoders are checked against.
+ * <p>
+ * Multi-byte values are assembled a byte at a time, so the byte order of the buffer
+ * doesn't matter.
+ * 
+ * @param <H> the type of header this decodes
+ */
+abstract class DirectDecoder<H extends Header> {
+  /**
+   * @return a new, undecoded header
+   */
+  abstract H newHeader();
+  
+  /**
+   * Decodes every header field. Fields that aren't header fields are left alone, and
+   * byte array fields that already hold an array of the right length are decoded into
+   * that array.
+   * 
+   * @param header the header to store the decoded values in
+   * @param data the buffer to read from
+   * @param base the index in {@code data} at which the header starts
+   */
+  abstract void decode(H header, ByteBuffer data, int base);
+  
+  static short u8(ByteBuffer data, int index) {
+    return (short) (data.get(index) & 0xFF);
+  }
+  
+  /**
+   * @return the big-endian, unsigned 16-bit value at {@code index}
+   */
+  static int u16(ByteBuffer data, int index) {
+    return (data.get(index) & 0xFF) << 8 | (data.get(index + 1) & 0xFF);
+  }
+  
+  /**
+   * @return the big-endian, unsigned 32-bit value at {@code index}
+   */
+  static long u32(ByteBuffer data, int index) {
+    return (long) s32(data, index) & 0xFFFFFFFFL;
+  }
+  
+  /**
+   * @return the big-endian 32-bit value at {@code index}, as the bits of an int
+   */
+  static int s32(ByteBuffer data, int index) {
+    return (data.get(index) & 0xFF) << 24 | (data.get(index + 1) & 0xFF) << 16
+        | (data.get(index + 2) & 0xFF) << 8 | (data.get(index + 3) & 0xFF);
+  }
+  
+  /**
+   * @return the little-endian, unsigned 32-bit value at {@code index}
+   */
+  static long u32le(ByteBuffer data, int index) {
+    return ((long) (data.get(index + 3) & 0xFF) << 24 | (data.get(index + 2) & 0xFF) << 16
+        | (data.get(index + 1) & 0xFF) << 8 | (data.get(index) & 0xFF));
+  }
+  
+  /**
+   * @param reuse an array to copy the bytes into if it has the right length, or
+   *    {@code null}
+   * @return the {@code length} bytes at {@code index}, in the order they are stored in
+   */
+  static byte[] bytes(ByteBuffer data, int index, int length, byte[] reuse) {
+    byte[] bytes = reuse != null && reuse.length == length ? reuse : new byte[length];
+    
+    for (int i = 0; i < length; ++i) {
+      bytes[i] = data.get(index + i);
+    }
+    
+    return bytes;
+  }
+}
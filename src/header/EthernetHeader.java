@@ -9,6 +9,14 @@ public class EthernetHeader extends Header {
     IP(0x0800),
     UNKNOWN;
     
+    private static final EtherType[] byCode = new EtherType[1 << 16];
+    
+    static {
+      for (EtherType type : values()) {
+        if (type.code >= 0) byCode[type.code] = type;
+      }
+    }
+    
     private final int code;
     
     private EtherType() {
@@ -22,8 +30,18 @@ public class EthernetHeader extends Header {
     public int getCode() {
       return code;
     }
+    
+    /**
+     * @param code an ethertype
+     * @return the matching {@link EtherType}, or {@link #UNKNOWN} if there is none
+     */
+    public static EtherType forCode(int code) {
+      EtherType type = code >= 0 && code < byCode.length ? byCode[code] : null;
+      return type != null ? type : UNKNOWN;
+    }
   }
   
+  /** Only kept for {@link #getEthertypemap()}; nothing looks ether types up in it. */
   @SuppressWarnings("serial")
   private static final Map<Integer, EtherType> etherTypeMap = 
       new HashMap<Integer, EtherType>() {
@@ -39,12 +57,28 @@ public class EthernetHeader extends Header {
   private byte[] destMacAddress;
   
   @HeaderField(offset = 96, numBits = 16)
-  private EtherType type;
+  private int type;
+  
+  /** The length of the link layer header the header was made from, if it isn't 14. */
+  private int linkHeaderLength = -1;
+  
+  private static final DirectDecoder<EthernetHeader> DECODER = new DirectDecoder<EthernetHeader>() {
+    @Override
+    EthernetHeader newHeader() {
+      return new EthernetHeader();
+    }
+    
+    @Override
+    void decode(EthernetHeader header, ByteBuffer data, int base) {
+      header.sourceMacAddress = bytes(data, base, 6, header.sourceMacAddress);
+      header.destMacAddress = bytes(data, base + 6, 6, header.destMacAddress);
+      header.type = u16(data, base + 12);
+    }
+  };
   
   @TypeMapper(EtherType.class)
-  public static EtherType makeEtherType(byte[] data) {
-    int code = u(ByteBuffer.wrap(data).getShort());
-    return etherTypeMap.containsKey(code) ? etherTypeMap.get(code) : EtherType.UNKNOWN;
+  public static EtherType makeEtherType(long value) {
+    return EtherType.forCode((int) value);
   }
   
   public static String formatMacAddress(byte[] macAddress) {
@@ -61,40 +95,97 @@ public class EthernetHeader extends Header {
   
   public EthernetHeader() {}
   
+  /**
+   * Makes an ethernet header standing in for a different kind of link layer header, so
+   * that packets from every capture format can be handled as ethernet packets.
+   * 
+   * @param sourceMacAddress the source address, or zeroes if the link layer has none
+   * @param destMacAddress the destination address, or zeroes if the link layer has none
+   * @param type the ethertype of the packet's data
+   * @param linkHeaderLength the length of the link layer header in the capture
+   */
+  public EthernetHeader(byte[] sourceMacAddress, byte[] destMacAddress, int type, int linkHeaderLength) {
+    this.sourceMacAddress = sourceMacAddress;
+    this.destMacAddress = destMacAddress;
+    this.type = type;
+    this.linkHeaderLength = linkHeaderLength;
+  }
+  
+  /**
+   * Sets every field of a header standing in for a different kind of link layer header,
+   * e.g. to reuse a single header for every frame. The parameters are those of the
+   * constructor.
+   */
+  public void set(byte[] sourceMacAddress, byte[] destMacAddress, int type, int linkHeaderLength) {
+    this.sourceMacAddress = sourceMacAddress;
+    this.destMacAddress = destMacAddress;
+    this.type = type;
+    this.linkHeaderLength = linkHeaderLength;
+  }
+  
   @Override
   public Class<? extends Header> getDataPacketHeaderType() {
-    switch (type) {
-      case IP:
-        return IpHeader.class;
-      default:
-        return null;
-    }
+    materialize();
+    return ProtocolRegistry.forEtherType(type);
+  }
+
+  @Override
+  DirectDecoder<EthernetHeader> getDirectDecoder() {
+    return DECODER;
+  }
+  
+  /**
+   * @return the length of the link layer header in the capture, which is only different
+   *    from 14 if this header stands in for a different kind of link layer header
+   */
+  @Override
+  public long getHeaderLength() {
+    return linkHeaderLength >= 0 ? linkHeaderLength : super.getHeaderLength();
   }
 
+  /**
+   * @deprecated boxes the ether type on every lookup and only knows about IP; use
+   *    {@link EtherType#forCode(int)}, or {@link ProtocolRegistry#forEtherType(int)} for
+   *    the header type
+   */
+  @Deprecated
   public static Map<Integer, EtherType> getEthertypemap() {
     return etherTypeMap;
   }
 
   public byte[] getSourceMacAddress() {
+    materialize();
     return sourceMacAddress;
   }
 
   public byte[] getDestMacAddress() {
+    materialize();
     return destMacAddress;
   }
 
   public EtherType getType() {
+    materialize();
+    return EtherType.forCode(type);
+  }
+  
+  /**
+   * @return the ethertype of the frame, including ethertypes that aren't an
+   *    {@link EtherType}
+   */
+  public int getTypeCode() {
+    materialize();
     return type;
   }
   
   @Override
   public String toString() {
+    materialize();
     return makeText("ETHER",
         "----- Ether Header -----",
         "",
         f("Destination = %s", formatMacAddress(destMacAddress)),
         f("Source = %s", formatMacAddress(sourceMacAddress)),
-        f("Ethertype = 0x%x (%s)", type.getCode(), type.toString()),
+        f("Ethertype = 0x%x (%s)", type, EtherType.forCode(type)),
         "");
   }
 }
@@ -0,0 +1,146 @@
+package header;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The global header at the start of a LibPcap file, which describes the format of all of
+ * the records that follow it. Unlike the other headers its byte order isn't fixed: it is
+ * given by the way the magic number was written.
+ */
+public class GlobalHeader {
+  public static final int LENGTH = 24;
+  
+  public static final int LINKTYPE_ETHERNET = 1;
+  public static final int LINKTYPE_RAW = 101;
+  public static final int LINKTYPE_LINUX_SLL = 113;
+  public static final int LINKTYPE_IPV4 = 228;
+  
+  private static final int MAGIC_MICROSECONDS = 0xa1b2c3d4;
+  private static final int MAGIC_NANOSECONDS = 0xa1b23c4d;
+  
+  private final ByteOrder byteOrder;
+  private final boolean nanosecondPrecision;
+  private final int versionMajor;
+  private final int versionMinor;
+  private final int timeZoneOffset;
+  private final long timestampAccuracy;
+  private final long snapLength;
+  private final int linkType;
+  
+  public GlobalHeader(ByteOrder byteOrder, boolean nanosecondPrecision, int versionMajor, int versionMinor,
+      int timeZoneOffset, long timestampAccuracy, long snapLength, int linkType) {
+    this.byteOrder = byteOrder;
+    this.nanosecondPrecision = nanosecondPrecision;
+    this.versionMajor = versionMajor;
+    this.versionMinor = versionMinor;
+    this.timeZoneOffset = timeZoneOffset;
+    this.timestampAccuracy = timestampAccuracy;
+    this.snapLength = snapLength;
+    this.linkType = linkType;
+  }
+  
+  /**
+   * @param data the 24 bytes of the global header, from the buffer's position
+   * @return the decoded global header
+   * @throws IOException if the magic number isn't one of a LibPcap file
+   */
+  public static GlobalHeader decode(ByteBuffer data) throws IOException {
+    int base = data.position();
+    ByteBuffer bytes = data.duplicate();
+    bytes.order(ByteOrder.LITTLE_ENDIAN);
+    
+    int magicNumber = bytes.getInt(base);
+    if (magicNumber != MAGIC_MICROSECONDS && magicNumber != MAGIC_NANOSECONDS) {
+      magicNumber = Integer.reverseBytes(magicNumber);
+      bytes.order(ByteOrder.BIG_ENDIAN);
+    }
+    
+    if (magicNumber != MAGIC_MICROSECONDS && magicNumber != MAGIC_NANOSECONDS) {
+      throw new IOException(String.format("Unrecognized magic number 0x%08x", bytes.getInt(base)));
+    }
+    
+    // The upper bits of the link type hold optional frame check sequence information.
+    return new GlobalHeader(bytes.order(), magicNumber == MAGIC_NANOSECONDS,
+        Header.u(bytes.getShort(base + 4)), Header.u(bytes.getShort(base + 6)), 
+        bytes.getInt(base + 8), Header.u(bytes.getInt(base + 12)), Header.u(bytes.getInt(base + 16)), 
+        bytes.getInt(base + 20) & 0xFFFF);
+  }
+  
+  /**
+   * Writes the global header in its own byte order, magic number included.
+   * 
+   * @param data the buffer to write the 24 bytes of the header to, at its position
+   */
+  public void encode(ByteBuffer data) {
+    ByteOrder order = data.order();
+    data.order(byteOrder);
+    
+    data.putInt(nanosecondPrecision ? MAGIC_NANOSECONDS : MAGIC_MICROSECONDS);
+    data.putShort((short) versionMajor);
+    data.putShort((short) versionMinor);
+    data.putInt(timeZoneOffset);
+    data.putInt((int) timestampAccuracy);
+    data.putInt((int) snapLength);
+    data.putInt(linkType);
+    
+    data.order(order);
+  }
+  
+  /**
+   * @return the byte order of the global header and of every record header
+   */
+  public ByteOrder getByteOrder() {
+    return byteOrder;
+  }
+  
+  /**
+   * @return whether the fraction of the record timestamps is in nanoseconds rather than
+   *    microseconds
+   */
+  public boolean isNanosecondPrecision() {
+    return nanosecondPrecision;
+  }
+  
+  public int getVersionMajor() {
+    return versionMajor;
+  }
+  
+  public int getVersionMinor() {
+    return versionMinor;
+  }
+  
+  /**
+   * @return the offset of the timestamps from UTC, in seconds (in practice always 0)
+   */
+  public int getTimeZoneOffset() {
+    return timeZoneOffset;
+  }
+  
+  public long getTimestampAccuracy() {
+    return timestampAccuracy;
+  }
+  
+  /**
+   * @return the maximum number of bytes captured from each packet
+   */
+  public long getSnapLength() {
+    return snapLength;
+  }
+  
+  /**
+   * @return the type of the link layer header of every record, e.g.
+   *    {@link #LINKTYPE_ETHERNET}
+   */
+  public int getLinkType() {
+    return linkType;
+  }
+  
+  @Override
+  public String toString() {
+    return String.format("LibPcap %d.%d, %s, %s timestamps, snap length %d, link type %d", 
+        versionMajor, versionMinor, byteOrder, nanosecondPrecision ? "nanosecond" : "microsecond",
+        snapLength, linkType);
+  }
+}
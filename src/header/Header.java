@@ -4,7 +4,6 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
-import java.lang.reflect.Field;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -20,6 +19,11 @@ public abstract class Header {
     int numBits();
   }
   
+  /**
+   * Marks a function that creates a field's type from the field's data. The function takes
+   * either the value of the field as a {@code long}, for fields of up to 64 bits, or the
+   * bytes of the field.
+   */
   @Target(ElementType.METHOD)
   @Retention(RetentionPolicy.RUNTIME)
   public @interface TypeMapper {
@@ -97,24 +101,82 @@ public abstract class Header {
     return (short) (signed & 0xFF);
   }
   
+  /**
+   * Turns an array of bytes into an array of bits.
+   * 
+   * @param byteBuffer the array of bytes, from the buffer's position to its limit
+   * @return the corresponding array of bits
+   */
+  public static short[] toBitArray(ByteBuffer byteBuffer) {
+    short[] bits = new short[byteBuffer.remaining() * 8];
+    
+    int offset = 0;
+    
+    for (int position = byteBuffer.position(); position < byteBuffer.limit(); ++position) {
+      byte b = byteBuffer.get(position);
+      
+      for (int i = 7; i >= 0; --i) {
+        bits[offset++] = (short) (((int) b >>> i) & 1);
+      }
+    }
+    
+    return bits;
+  }
+  
   public static final String DEFAULT_BYTE_FORMAT = "%02x";
   
+  /**
+   * The undecoded bytes of this header if it is a lazy view, or {@code null} once the
+   * header has been decoded.
+   */
+  private ByteBuffer source;
+  
   public abstract Class<? extends Header> getDataPacketHeaderType();
   
+  /**
+   * @return whether or not the fields of this header have been decoded
+   */
+  public boolean isMaterialized() {
+    return source == null;
+  }
+  
+  /**
+   * Decodes the fields of this header if it is a lazy view that hasn't been decoded yet.
+   * Every accessor of a header field has to call this before reading the field. Code that
+   * keeps a header longer than the buffer it was read from calls it as well, so that the
+   * header no longer refers to that buffer.
+   */
+  public final void materialize() {
+    if (source == null) return;
+    
+    ByteBuffer data = source;
+    source = null;
+    
+    try {
+      HeaderDecoder.forType(getClass()).decode(data, this);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  void setSource(ByteBuffer source) {
+    this.source = source;
+  }
+  
+  /**
+   * @return the hand-written decoder for this type of header, or {@code null} to have its
+   *    fields decoded by the decoder compiled from its {@link HeaderField}s
+   */
+  DirectDecoder<?> getDirectDecoder() {
+    return null;
+  }
+  
   public ByteOrder getByteOrder() {
     return ByteOrder.BIG_ENDIAN;
   }
   
   public long getHeaderLength() {
-    long length = 0;
-    
-    for (Field field : getClass().getDeclaredFields()) {
-      if (field.isAnnotationPresent(HeaderField.class)) {
-        length += field.getAnnotation(HeaderField.class).numBits();
-      }
-    }
-    
-    return (long) Math.ceil(length / 8L);
+    return HeaderDecoder.forType(getClass()).getHeaderLength();
   }
 
   /**
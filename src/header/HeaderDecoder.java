@@ -0,0 +1,533 @@
+package header;
+
+import header.Header.HeaderField;
+import header.Header.TypeMapper;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decoder for a single type of header. The built-in headers are decoded by the
+ * hand-written {@link DirectDecoder} they provide, which reads every field at its fixed
+ * offset and assigns it directly.
+ * <p>
+ * For any other header, such as those registered with {@link ProtocolRegistry}, the layout
+ * described by its {@link HeaderField}s is compiled once per class into a list of field
+ * decoders that already know their offsets and their mapping function. Reflection is only
+ * used while compiling: the constructor, every field and every mapping function are
+ * resolved into method handles up front, so decoding a header doesn't look up or check
+ * any annotations, fields or methods. It is still a few times slower than a hand-written
+ * decoder, since every field goes through handles of its own that the JIT compiler can't
+ * inline. Fields of up to 64 bits are read straight out of the buffer with shifts and
+ * masks; only longer fields are copied out as byte arrays. These field decoders are
+ * compiled for the built-in headers too, as the reference the hand-written decoders are
+ * checked against with {@link #decodeFromAnnotations}.
+ *
+ * @param <H> the type of header this decodes
+ */
+public class HeaderDecoder<H extends Header> {
+  private static final ConcurrentMap<Class<?>, HeaderDecoder<?>> decoders =
+      new ConcurrentHashMap<Class<?>, HeaderDecoder<?>>();
+
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  /** Creates a new header, as a {@code ()Header} method handle. */
+  private final MethodHandle constructor;
+  private final DirectDecoder<H> directDecoder;
+  private final FieldDecoder[] fieldDecoders;
+  private final ByteOrder byteOrder;
+  private final long headerLength;
+
+  /**
+   * @param type the type of header
+   * @return the decoder for that type of header, compiling it if this is the first time
+   *    it is asked for
+   */
+  @SuppressWarnings("unchecked")
+  public static <H extends Header> HeaderDecoder<H> forType(Class<H> type) {
+    HeaderDecoder<H> decoder = (HeaderDecoder<H>) decoders.get(type);
+
+    if (decoder == null) {
+      decoder = new HeaderDecoder<H>(type);
+      decoders.putIfAbsent(type, decoder);
+    }
+
+    return decoder;
+  }
+
+  @SuppressWarnings("unchecked")
+  private HeaderDecoder(Class<H> type) {
+    H prototype;
+
+    try {
+      Constructor<H> typeConstructor = type.getDeclaredConstructor();
+      typeConstructor.setAccessible(true);
+
+      constructor = LOOKUP.unreflectConstructor(typeConstructor).asType(MethodType.methodType(Header.class));
+      prototype = typeConstructor.newInstance();
+    } catch (Exception e) {
+      throw new RuntimeException("Header type '" + type + "' can't be instantiated", e);
+    }
+
+    byteOrder = prototype.getByteOrder();
+
+    // A subclass of a built-in header inherits its decoder, which doesn't know about the
+    // subclass or its fields.
+    DirectDecoder<?> direct = prototype.getDirectDecoder();
+    directDecoder = direct != null && direct.newHeader().getClass() == type ? (DirectDecoder<H>) direct : null;
+
+    List<Field> headerFields = getSortedFields(type);
+    Map<Class<?>, Method> typeMap = getTypeMap(type);
+
+    long numBits = 0;
+    fieldDecoders = new FieldDecoder[headerFields.size()];
+
+    for (int i = 0; i < fieldDecoders.length; ++i) {
+      Field headerField = headerFields.get(i);
+      headerField.setAccessible(true);
+
+      // Get the type mapping function for this field's type.
+      Class<?> headerType = headerField.getType();
+      if (!typeMap.containsKey(headerType)) throw new RuntimeException("Unrecognized type '" + headerType + "'");
+
+      fieldDecoders[i] = makeFieldDecoder(headerField, typeMap.get(headerType), byteOrder);
+      numBits += fieldDecoders[i].numBits;
+    }
+
+    headerLength = numBits / 8;
+  }
+
+  /**
+   * Decodes a header from {@code data}.
+   *
+   * @param data the bytes of the header, from the buffer's position
+   * @return a new header holding the decoded values
+   * @throws InstantiationException
+   * @throws IllegalAccessException
+   * @throws InvocationTargetException
+   */
+  public H decode(ByteBuffer data)
+      throws InstantiationException, IllegalAccessException, InvocationTargetException {
+
+    H header = directDecoder != null ? directDecoder.newHeader() : newHeader();
+    decode(data, header);
+
+    return header;
+  }
+
+  /**
+   * Creates a header that is only decoded from {@code data} once one of its accessors is
+   * called.
+   *
+   * @param data the bytes of the header, from the buffer's position. The buffer is kept
+   *    until the header is decoded, so its position must not change in the meantime.
+   * @return a new, undecoded header
+   * @throws InstantiationException
+   * @throws IllegalAccessException
+   * @throws InvocationTargetException
+   */
+  public H view(ByteBuffer data)
+      throws InstantiationException, IllegalAccessException, InvocationTargetException {
+
+    H header = directDecoder != null ? directDecoder.newHeader() : newHeader();
+    header.setSource(data);
+
+    return header;
+  }
+
+  @SuppressWarnings("unchecked")
+  private H newHeader() throws InvocationTargetException {
+    try {
+      return (H) (Header) constructor.invokeExact();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new InvocationTargetException(e);
+    }
+  }
+
+  /**
+   * Decodes {@code data} into an existing header, e.g. to reuse a single header for
+   * every packet. Byte array fields that already hold an array of the right length are
+   * decoded into that array instead of a new one.
+   *
+   * @param data the bytes of the header, from the buffer's position
+   * @param header the header to store the decoded values in
+   * @throws IllegalAccessException
+   * @throws InvocationTargetException
+   */
+  @SuppressWarnings("unchecked")
+  public void decode(ByteBuffer data, Header header)
+      throws IllegalAccessException, InvocationTargetException {
+
+    if (directDecoder != null) {
+      directDecoder.decode((H) header, data, data.position());
+      return;
+    }
+
+    decodeFromAnnotations(data, header);
+  }
+
+  /**
+   * Decodes {@code data} into an existing header with the field decoders compiled from
+   * the header's {@link HeaderField}s, even if it has a hand-written decoder. This is the
+   * reference that the hand-written decoders are checked against; use
+   * {@link #decode(ByteBuffer, Header)} otherwise.
+   *
+   * @param data the bytes of the header, from the buffer's position
+   * @param header the header to store the decoded values in
+   * @throws IllegalAccessException
+   * @throws InvocationTargetException if a mapping function of the header threw a checked
+   *    exception
+   */
+  public void decodeFromAnnotations(ByteBuffer data, Header header)
+      throws IllegalAccessException, InvocationTargetException {
+
+    int base = data.position();
+
+    try {
+      for (FieldDecoder fieldDecoder : fieldDecoders) {
+        fieldDecoder.decode(header, data, base);
+      }
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new InvocationTargetException(e);
+    }
+  }
+
+  /**
+   * Reads a field of up to 64 bits straight out of a buffer.
+   *
+   * @param data the buffer to read from
+   * @param base the index in {@code data} at which bit 0 starts
+   * @param bitOffset the offset of the field's first bit, counting from the most
+   *    significant bit of the byte at {@code base}
+   * @param numBits the length of the field, in bits (at most 64)
+   * @param byteOrder the order of the field's bytes. Little-endian fields have to start
+   *    and end on a byte boundary.
+   * @return the value of the field, unsigned
+   */
+  public static long getBits(ByteBuffer data, int base, int bitOffset, int numBits, ByteOrder byteOrder) {
+    int firstByte = base + (bitOffset >>> 3);
+    int lastByte = base + ((bitOffset + numBits - 1) >>> 3);
+    long value = 0;
+
+    if (byteOrder == ByteOrder.LITTLE_ENDIAN) {
+      for (int i = lastByte; i >= firstByte; --i) {
+        value = (value << 8) | (data.get(i) & 0xFF);
+      }
+
+      return value;
+    }
+
+    // The bits of the last byte that come after the field are shifted out instead of
+    // masked, so that a 64-bit field spread over 9 bytes still fits.
+    int trailingBits = (8 - ((bitOffset + numBits) & 7)) & 7;
+
+    for (int i = firstByte; i < lastByte; ++i) {
+      value = (value << 8) | (data.get(i) & 0xFF);
+    }
+
+    value = (value << (8 - trailingBits)) | ((data.get(lastByte) & 0xFF) >>> trailingBits);
+
+    return numBits == 64 ? value : value & ((1L << numBits) - 1);
+  }
+
+  /**
+   * @return whether headers of this type are decoded by a hand-written decoder rather
+   *    than reflectively
+   */
+  public boolean isDirect() {
+    return directDecoder != null;
+  }
+
+  /**
+   * @return the length of the header, in bytes
+   */
+  public long getHeaderLength() {
+    return headerLength;
+  }
+
+  /**
+   * @return the byte order the header's fields are stored in
+   */
+  public ByteOrder getByteOrder() {
+    return byteOrder;
+  }
+
+  /**
+   * Builds a map of types to mapping functions that create those types from byte arrays.
+   *
+   * @param type the type of header from which to extract the mapping functions
+   * @return a map of types to mapping functions
+   */
+  public static Map<Class<?>, Method> getTypeMap(Class<? extends Header> type) {
+    Map<Class<?>, Method> typeMap = new HashMap<Class<?>, Method>();
+
+    for (Method method : type.getMethods()) {
+      method.setAccessible(true);
+
+      if (method.isAnnotationPresent(TypeMapper.class)) {
+        TypeMapper mapper = method.getAnnotation(TypeMapper.class);
+        Class<?> mappedType = mapper.value();
+
+        typeMap.put(mappedType, method);
+      }
+    }
+
+    return typeMap;
+  }
+
+  /**
+   * Gets the fields for the given header type sorted in ascending order based on their
+   * byte-offset in the packet header.
+   *
+   * @param type the type of the header from which to get the fields
+   * @return a sorted list (ascending based on byte offset) of the packet header fields
+   */
+  public static List<Field> getSortedFields(Class<? extends Header> type) {
+    Field[] fields = type.getDeclaredFields();
+    List<Field> headerFields = new ArrayList<Field>();
+
+    for (Field field : fields) {
+      if (field.isAnnotationPresent(HeaderField.class)) {
+        headerFields.add(field);
+      }
+    }
+
+    Collections.sort(headerFields, new Comparator<Field>() {
+      @Override
+      public int compare(Field first, Field second) {
+        return first.getAnnotation(HeaderField.class).offset() -
+            second.getAnnotation(HeaderField.class).offset();
+      }
+    });
+
+    return headerFields;
+  }
+
+  /**
+   * Picks the decoder for a field. The mapping functions defined by {@link Header} itself
+   * are inlined and primitives are stored without boxing; only mapping functions defined
+   * by the header subclass are called, through a method handle.
+   */
+  private static FieldDecoder makeFieldDecoder(Field field, Method mapper, ByteOrder byteOrder) {
+    HeaderField annotation = field.getAnnotation(HeaderField.class);
+    int offset = annotation.offset();
+    int numBits = annotation.numBits();
+
+    boolean byteAligned = offset % 8 == 0 && numBits % 8 == 0;
+    if (!byteAligned && (byteOrder == ByteOrder.LITTLE_ENDIAN || numBits > 64)) {
+      throw new RuntimeException("Field '" + field + "' has to be byte aligned");
+    }
+
+    if (mapper.getDeclaringClass() != Header.class) {
+      return new MapperFieldDecoder(field, offset, numBits, byteOrder, mapper);
+    }
+
+    Class<?> type = field.getType();
+
+    if (type == long.class) {
+      return new FieldDecoder(field, offset, numBits, byteOrder) {
+        @Override
+        void decode(Header header, ByteBuffer data, int base) throws Throwable {
+          setter.invokeExact(header, getValue(data, base));
+        }
+      };
+    } else if (type == int.class) {
+      return new FieldDecoder(field, offset, numBits, byteOrder) {
+        @Override
+        void decode(Header header, ByteBuffer data, int base) throws Throwable {
+          setter.invokeExact(header, (int) getValue(data, base));
+        }
+      };
+    } else if (type == short.class) {
+      return new FieldDecoder(field, offset, numBits, byteOrder) {
+        @Override
+        void decode(Header header, ByteBuffer data, int base) throws Throwable {
+          setter.invokeExact(header, (short) getValue(data, base));
+        }
+      };
+    } else if (type == byte.class) {
+      return new FieldDecoder(field, offset, numBits, byteOrder) {
+        @Override
+        void decode(Header header, ByteBuffer data, int base) throws Throwable {
+          setter.invokeExact(header, (byte) getValue(data, base));
+        }
+      };
+    } else if (type == byte[].class) {
+      final MethodHandle getter = unreflectGetter(field);
+
+      return new FieldDecoder(field, offset, numBits, byteOrder) {
+        @Override
+        void decode(Header header, ByteBuffer data, int base) throws Throwable {
+          setter.invokeExact(header, (Object) getBytes(data, base, (byte[]) getter.invokeExact(header)));
+        }
+      };
+    } else if (type == BigInteger.class) {
+      return new FieldDecoder(field, offset, numBits, byteOrder) {
+        @Override
+        void decode(Header header, ByteBuffer data, int base) throws Throwable {
+          setter.invokeExact(header, (Object) Header.makeBigInt(getBytes(data, base)));
+        }
+      };
+    } else if (type == InetAddress.class) {
+      return new FieldDecoder(field, offset, numBits, byteOrder) {
+        @Override
+        void decode(Header header, ByteBuffer data, int base) throws Throwable {
+          setter.invokeExact(header, (Object) Header.makeInetAddress(getBytes(data, base)));
+        }
+      };
+    }
+
+    return new MapperFieldDecoder(field, offset, numBits, byteOrder, mapper);
+  }
+
+  /**
+   * @return a method handle that sets the field, taking a {@link Header} and the field's
+   *    own type if that is primitive or an {@link Object} otherwise
+   */
+  private static MethodHandle unreflectSetter(Field field) {
+    Class<?> valueType = field.getType().isPrimitive() ? field.getType() : Object.class;
+
+    try {
+      return LOOKUP.unreflectSetter(field).asType(MethodType.methodType(void.class, Header.class, valueType));
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException("Field '" + field + "' can't be set", e);
+    }
+  }
+
+  /**
+   * @return a method handle that gets the byte array field from a {@link Header}
+   */
+  private static MethodHandle unreflectGetter(Field field) {
+    try {
+      return LOOKUP.unreflectGetter(field).asType(MethodType.methodType(byte[].class, Header.class));
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException("Field '" + field + "' can't be read", e);
+    }
+  }
+
+  /**
+   * Decodes a single header field and stores it in the header.
+   */
+  private static abstract class FieldDecoder {
+    protected final Field field;
+    protected final MethodHandle setter;
+    protected final int offset;
+    protected final int numBits;
+    protected final ByteOrder byteOrder;
+
+    FieldDecoder(Field field, int offset, int numBits, ByteOrder byteOrder) {
+      this.field = field;
+      this.setter = unreflectSetter(field);
+      this.offset = offset;
+      this.numBits = numBits;
+      this.byteOrder = byteOrder;
+    }
+
+    /**
+     * @return the value of this field, which has to be at most 64 bits long
+     */
+    long getValue(ByteBuffer data, int base) {
+      return getBits(data, base, offset, numBits, byteOrder);
+    }
+
+    /**
+     * @return the value of this field as a big-endian array of bytes, padded as
+     *    necessary. Fields longer than 64 bits are copied as they are.
+     */
+    byte[] getBytes(ByteBuffer data, int base) {
+      return getBytes(data, base, null);
+    }
+
+    /**
+     * @param reuse an array to store the bytes in if it has the right length, or
+     *    {@code null}
+     * @return the value of this field as a big-endian array of bytes
+     * @see #getBytes(ByteBuffer, int)
+     */
+    byte[] getBytes(ByteBuffer data, int base, byte[] reuse) {
+      int length = (numBits + 7) / 8;
+      byte[] fieldBytes = reuse != null && reuse.length == length ? reuse : new byte[length];
+
+      if (numBits > 64) {
+        int start = base + offset / 8;
+
+        for (int i = 0; i < fieldBytes.length; ++i) {
+          int index = byteOrder == ByteOrder.LITTLE_ENDIAN ? fieldBytes.length - 1 - i : i;
+          fieldBytes[index] = data.get(start + i);
+        }
+      } else {
+        long value = getValue(data, base);
+
+        for (int i = fieldBytes.length - 1; i >= 0; --i) {
+          fieldBytes[i] = (byte) value;
+          value >>>= 8;
+        }
+      }
+
+      return fieldBytes;
+    }
+
+    /**
+     * @throws Throwable whatever the header's mapping function throws
+     */
+    abstract void decode(Header header, ByteBuffer data, int base) throws Throwable;
+  }
+
+  /**
+   * Field decoder that calls the header's own mapping function, passing it either the
+   * value of the field or its bytes depending on what the function takes.
+   */
+  private static class MapperFieldDecoder extends FieldDecoder {
+    /** The mapping function, taking a {@code long} or a {@code byte[]} and returning an {@link Object}. */
+    private final MethodHandle mapper;
+    private final boolean takesValue;
+
+    MapperFieldDecoder(Field field, int offset, int numBits, ByteOrder byteOrder, Method mapper) {
+      super(field, offset, numBits, byteOrder);
+
+      Class<?> parameterType = mapper.getParameterTypes()[0];
+      takesValue = parameterType == long.class;
+      if (takesValue && numBits > 64) {
+        throw new RuntimeException("Field '" + field + "' is too long for '" + mapper + "'");
+      }
+
+      try {
+        this.mapper = LOOKUP.unreflect(mapper).asType(MethodType.methodType(Object.class, parameterType));
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException("Mapping function '" + mapper + "' can't be called", e);
+      }
+    }
+
+    @Override
+    void decode(Header header, ByteBuffer data, int base) throws Throwable {
+      Object value = takesValue ? (Object) mapper.invokeExact(getValue(data, base)) : 
+          (Object) mapper.invokeExact(getBytes(data, base));
+      setter.invokeExact(header, value);
+    }
+  }
+}
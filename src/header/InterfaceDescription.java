@@ -0,0 +1,97 @@
+package header;
+
+import java.math.BigInteger;
+
+/**
+ * The description of a capture interface in a pcapng file, which gives the link type and
+ * timestamp resolution of all of the packets captured on it.
+ */
+public class InterfaceDescription {
+  private static final long MICROSECONDS = 1000000L;
+  private static final long NANOSECONDS = 1000000000L;
+  
+  private final int linkType;
+  private final long snapLength;
+  private final String name;
+  private final long unitsPerSecond;
+  
+  /**
+   * @param linkType the type of the link layer header of the interface's packets
+   * @param snapLength the maximum number of bytes captured from each packet, or 0 if
+   *    there is no limit
+   * @param name the name of the interface, or {@code null} if it has none
+   * @param timestampResolution the value of the {@code if_tsresol} option: a negative
+   *    power of 10, or of 2 if the top bit is set
+   */
+  public InterfaceDescription(int linkType, long snapLength, String name, int timestampResolution) {
+    this.linkType = linkType;
+    this.snapLength = snapLength;
+    this.name = name;
+    
+    int exponent = timestampResolution & 0x7F;
+    if ((timestampResolution & 0x80) != 0) {
+      if (exponent > 62) throw new IllegalArgumentException("Unsupported timestamp resolution 2^-" + exponent);
+      unitsPerSecond = 1L << exponent;
+    } else {
+      if (exponent > 18) throw new IllegalArgumentException("Unsupported timestamp resolution 10^-" + exponent);
+      
+      long units = 1;
+      for (int i = 0; i < exponent; ++i) units *= 10;
+      unitsPerSecond = units;
+    }
+  }
+  
+  /**
+   * @param timestamp a timestamp in the units of the interface
+   * @return the seconds part of the timestamp
+   */
+  public long getTimestampSeconds(long timestamp) {
+    return timestamp / unitsPerSecond;
+  }
+  
+  /**
+   * @param timestamp a timestamp in the units of the interface
+   * @return the fraction of a second part of the timestamp, in microseconds or in
+   *    nanoseconds depending on {@link #isNanosecondPrecision()}
+   */
+  public long getTimestampFraction(long timestamp) {
+    long remainder = timestamp % unitsPerSecond;
+    long fractionUnits = isNanosecondPrecision() ? NANOSECONDS : MICROSECONDS;
+    
+    if (unitsPerSecond % fractionUnits == 0) return remainder / (unitsPerSecond / fractionUnits);
+    if (remainder < Long.MAX_VALUE / fractionUnits) return remainder * fractionUnits / unitsPerSecond;
+    
+    return BigInteger.valueOf(remainder).multiply(BigInteger.valueOf(fractionUnits))
+        .divide(BigInteger.valueOf(unitsPerSecond)).longValue();
+  }
+  
+  /**
+   * @return whether timestamps are finer than microseconds, in which case their
+   *    fractions are given in nanoseconds
+   */
+  public boolean isNanosecondPrecision() {
+    return unitsPerSecond > MICROSECONDS;
+  }
+  
+  public long getUnitsPerSecond() {
+    return unitsPerSecond;
+  }
+  
+  public int getLinkType() {
+    return linkType;
+  }
+  
+  public long getSnapLength() {
+    return snapLength;
+  }
+  
+  public String getName() {
+    return name;
+  }
+  
+  @Override
+  public String toString() {
+    return String.format("Interface %s, snap length %d, link type %d, %d units per second", 
+        name, snapLength, linkType, unitsPerSecond);
+  }
+}
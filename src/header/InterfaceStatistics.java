@@ -0,0 +1,71 @@
+package header;
+
+/**
+ * The statistics of a capture interface in a pcapng file. Counters the writer didn't
+ * record are -1.
+ */
+public class InterfaceStatistics {
+  private final int interfaceId;
+  private final long timestamp;
+  private final long receivedPackets;
+  private final long droppedPackets;
+  private final long filterAcceptedPackets;
+  private final long osDroppedPackets;
+  private final long deliveredPackets;
+  
+  /**
+   * @param interfaceId the index of the interface in its section
+   * @param timestamp the time at which the statistics were taken, in the units of the
+   *    interface
+   * @param receivedPackets the number of packets received by the interface
+   * @param droppedPackets the number of packets dropped by the interface
+   * @param filterAcceptedPackets the number of packets accepted by the capture filter
+   * @param osDroppedPackets the number of packets dropped by the operating system
+   * @param deliveredPackets the number of packets delivered to the writer, i.e. written
+   *    to the file
+   */
+  public InterfaceStatistics(int interfaceId, long timestamp, long receivedPackets, long droppedPackets, 
+      long filterAcceptedPackets, long osDroppedPackets, long deliveredPackets) {
+    this.interfaceId = interfaceId;
+    this.timestamp = timestamp;
+    this.receivedPackets = receivedPackets;
+    this.droppedPackets = droppedPackets;
+    this.filterAcceptedPackets = filterAcceptedPackets;
+    this.osDroppedPackets = osDroppedPackets;
+    this.deliveredPackets = deliveredPackets;
+  }
+  
+  public int getInterfaceId() {
+    return interfaceId;
+  }
+  
+  public long getTimestamp() {
+    return timestamp;
+  }
+  
+  public long getReceivedPackets() {
+    return receivedPackets;
+  }
+  
+  public long getDroppedPackets() {
+    return droppedPackets;
+  }
+  
+  public long getFilterAcceptedPackets() {
+    return filterAcceptedPackets;
+  }
+  
+  public long getOsDroppedPackets() {
+    return osDroppedPackets;
+  }
+  
+  public long getDeliveredPackets() {
+    return deliveredPackets;
+  }
+  
+  @Override
+  public String toString() {
+    return String.format("Interface %d: received %d, dropped %d, accepted %d, OS dropped %d, delivered %d", 
+        interfaceId, receivedPackets, droppedPackets, filterAcceptedPackets, osDroppedPackets, deliveredPackets);
+  }
+}
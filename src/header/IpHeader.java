@@ -1,9 +1,7 @@
 package header;
 
 import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
 
 public class IpHeader extends Header {
   public enum Protocol {
@@ -12,6 +10,14 @@ public class IpHeader extends Header {
     UDP(17),
     UNKNOWN;
     
+    private static final Protocol[] byCode = new Protocol[1 << 8];
+    
+    static {
+      for (Protocol protocol : values()) {
+        if (protocol.code >= 0) byCode[protocol.code] = protocol;
+      }
+    }
+    
     private final int code;
     
     private Protocol() {
@@ -25,17 +31,22 @@ public class IpHeader extends Header {
     public int getCode() {
       return code;
     }
+    
+    /**
+     * @param code an IP protocol number
+     * @return the matching {@link Protocol}, or {@link #UNKNOWN} if there is none
+     */
+    public static Protocol forCode(int code) {
+      Protocol protocol = code >= 0 && code < byCode.length ? byCode[code] : null;
+      return protocol != null ? protocol : UNKNOWN;
+    }
   }
   
-  @SuppressWarnings("serial")
-  private static final Map<Integer, Protocol> protocolMap = 
-      new HashMap<Integer, Protocol>() {
-    {
-      put(1, Protocol.ICMP);
-      put(6, Protocol.TCP);
-      put(17, Protocol.UDP);
-    }
-  };
+  /** The flag saying that more fragments of the datagram follow this one. */
+  public static final int FLAG_MORE_FRAGMENTS = 1;
+  
+  /** The flag saying that the datagram may not be fragmented. */
+  public static final int FLAG_DONT_FRAGMENT = 2;
   
   @HeaderField(offset = 0, numBits = 4)
   private short version;
@@ -62,22 +73,43 @@ public class IpHeader extends Header {
   private short timeToLive;
   
   @HeaderField(offset = 72, numBits = 8)
-  private Protocol protocol;
+  private short protocol;
   
   @HeaderField(offset = 80, numBits = 16)
   private int headerChecksum;
   
   @HeaderField(offset = 96, numBits = 32)
-  private InetAddress sourceIpAddress;
+  private int sourceIpAddress;
   
   @HeaderField(offset = 128, numBits = 32)
-  private InetAddress destIpAddress;
+  private int destIpAddress;
   
-  @TypeMapper(Protocol.class)
-  public static Protocol makeProtocol(byte[] bytes) {
-    int code = (int) bytes[0];
+  private static final DirectDecoder<IpHeader> DECODER = new DirectDecoder<IpHeader>() {
+    @Override
+    IpHeader newHeader() {
+      return new IpHeader();
+    }
     
-    return protocolMap.containsKey(code) ? protocolMap.get(code) : Protocol.UNKNOWN;
+    @Override
+    void decode(IpHeader header, ByteBuffer data, int base) {
+      header.version = (short) (u8(data, base) >>> 4);
+      header.headerLength = (short) (u8(data, base) & 0xF);
+      header.typeOfService = u8(data, base + 1);
+      header.totalLength = u16(data, base + 2);
+      header.datagramIdentifier = u16(data, base + 4);
+      header.flags = (short) (u8(data, base + 6) >>> 5);
+      header.fragmentOffset = u16(data, base + 6) & 0x1FFF;
+      header.timeToLive = u8(data, base + 8);
+      header.protocol = u8(data, base + 9);
+      header.headerChecksum = u16(data, base + 10);
+      header.sourceIpAddress = s32(data, base + 12);
+      header.destIpAddress = s32(data, base + 16);
+    }
+  };
+  
+  @TypeMapper(Protocol.class)
+  public static Protocol makeProtocol(long value) {
+    return Protocol.forCode((int) value);
   }
   
   /**
@@ -85,91 +117,122 @@ public class IpHeader extends Header {
    * 
    * @param address the string address to parse
    * @return an {@link InetAddress} that represents the provided address
+   * @see Ipv4#parse(String)
    */
   public static InetAddress parseIpV4Address(String address) {
-    String[] parts = address.split("\\.");
-    byte[] bytes = new byte[parts.length];
-    
-    for (int i = 0; i < parts.length; ++i) {
-      bytes[i] = Integer.valueOf(parts[i]).byteValue();
-    }
-    
-    try {
-      return InetAddress.getByAddress(bytes);
-    } catch (UnknownHostException e) {
-      throw new RuntimeException(e);
-    }
+    return Ipv4.toInetAddress(Ipv4.parse(address));
   }
   
   public IpHeader() {}
   
+  /**
+   * Fragments aren't decoded any further, since all but the first don't start with the
+   * header of the protocol, and the first only holds part of its data. They can be put
+   * back together by a {@link reassembly.IpDefragmenter}.
+   */
   @Override
   public Class<? extends Header> getDataPacketHeaderType() {
-    if (protocol == null) return null;
+    materialize();
+    if (isFragment()) return null;
     
-    switch (protocol) {
-      case TCP:
-        return TcpHeader.class;
-      case UDP:
-        return UdpHeader.class;
-      default:
-        return null;
-    }
+    return ProtocolRegistry.forIpProtocol(protocol);
+  }
+  
+  @Override
+  DirectDecoder<IpHeader> getDirectDecoder() {
+    return DECODER;
+  }
+  
+  /**
+   * @return whether the datagram is a fragment of a larger one
+   */
+  public boolean isFragment() {
+    materialize();
+    return (flags & FLAG_MORE_FRAGMENTS) != 0 || fragmentOffset != 0;
   }
  
   public long getIpHeaderLength() {
+    materialize();
     return headerLength * 4;
   }
 
   public long getTotalLength() {
+    materialize();
     return totalLength;
   }
 
   public int getVersion() {
+    materialize();
     return version;
   }
 
   public int getTypeOfService() {
+    materialize();
     return typeOfService;
   }
 
   public int getDatagramIdentifier() {
+    materialize();
     return datagramIdentifier;
   }
 
   public int getFlags() {
+    materialize();
     return flags;
   }
 
   public int getFragmentOffset() {
+    materialize();
     return fragmentOffset;
   }
 
   public int getTimeToLive() {
+    materialize();
     return timeToLive;
   }
 
   public Protocol getProtocol() {
+    materialize();
+    return Protocol.forCode(protocol);
+  }
+  
+  /**
+   * @return the protocol number of the datagram, including protocols that aren't a
+   *    {@link Protocol}
+   */
+  public int getProtocolNumber() {
+    materialize();
     return protocol;
   }
 
   public int getHeaderChecksum() {
+    materialize();
     return headerChecksum;
   }
 
-  public InetAddress getSourceIpAddress() {
+  /**
+   * @return the source address, see {@link Ipv4} for working with it
+   */
+  public int getSourceIpAddress() {
+    materialize();
     return sourceIpAddress;
   }
 
-  public InetAddress getDestIpAddress() {
+  /**
+   * @return the destination address, see {@link Ipv4} for working with it
+   */
+  public int getDestIpAddress() {
+    materialize();
     return destIpAddress;
   }
   
   @Override
   public String toString() {
-    int reservedBit = flags & 1;
+    materialize();
+    
+    int reservedBit = (flags >> 2) & 1;
     int dontFragmentBit = (flags >> 1) & 1;
-    int moreFragmentsBit = (flags >> 2) & 1;
+    int moreFragmentsBit = flags & 1;
     
     return makeText("IP",
         "----- IP Header -----",
@@ -185,8 +248,8 @@ public class IpHeader extends Header {
         f("    ..%d. = More fragments: %s", moreFragmentsBit, moreFragmentsBit != 0 ? "Set" : "Not set"),
         f("  Fragment Offset: %d", fragmentOffset),
         f("Time to live = %d seconds/hops", timeToLive),
-        f("Protocol = %d (%s)", protocol.getCode(), protocol),
-        f("Source IP address = %s", sourceIpAddress),
-        f("Destination IP address = %s", destIpAddress));
+        f("Protocol = %d (%s)", protocol, Protocol.forCode(protocol)),
+        f("Source IP address = %s", Ipv4.format(sourceIpAddress)),
+        f("Destination IP address = %s", Ipv4.format(destIpAddress)));
   }
 }
@@ -0,0 +1,168 @@
+package header;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Helpers for IPv4 addresses held as primitive ints, most significant octet first, the way
+ * {@link IpHeader} and {@link DhcpHeader} decode them. Matching an address against a
+ * network is a mask and a compare, and nothing here allocates except for formatting and
+ * the opt-in conversions to and from {@link InetAddress}.
+ */
+public class Ipv4 {
+  private Ipv4() {}
+  
+  /**
+   * @param address a canonically formatted address, e.g. {@code 10.0.0.1}
+   * @return the address as an int
+   * @throws NumberFormatException if the address isn't four octets separated by dots
+   */
+  public static int parse(String address) {
+    int value = 0;
+    int octets = 0;
+    int start = 0;
+    
+    while (start <= address.length()) {
+      int end = address.indexOf('.', start);
+      if (end < 0) end = address.length();
+      
+      int octet = Integer.parseInt(address.substring(start, end));
+      if (octet < 0 || octet > 255 || ++octets > 4) throw new NumberFormatException(address);
+      
+      value = value << 8 | octet;
+      start = end + 1;
+    }
+    
+    if (octets != 4) throw new NumberFormatException(address);
+    return value;
+  }
+  
+  /**
+   * @return the address in dotted decimal, e.g. {@code 10.0.0.1}
+   */
+  public static String format(int address) {
+    StringBuilder builder = new StringBuilder(15);
+    
+    for (int shift = 24; shift >= 0; shift -= 8) {
+      builder.append((address >>> shift) & 0xFF);
+      if (shift != 0) builder.append('.');
+    }
+    
+    return builder.toString();
+  }
+  
+  /**
+   * @param prefixLength the number of leading bits of the network, from 0 to 32
+   * @return the mask that keeps those bits of an address
+   */
+  public static int getMask(int prefixLength) {
+    return prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+  }
+  
+  /**
+   * @return whether {@code address} lies within the network {@code network/prefixLength}
+   */
+  public static boolean matches(int address, int network, int prefixLength) {
+    int mask = getMask(prefixLength);
+    return (address & mask) == (network & mask);
+  }
+  
+  /**
+   * Converts an address to an {@link InetAddress}, for when one is needed to hand to other
+   * APIs. This allocates, so it shouldn't be done for every packet.
+   */
+  public static InetAddress toInetAddress(int address) {
+    byte[] bytes = { (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address };
+    
+    try {
+      return InetAddress.getByAddress(bytes);
+    } catch (UnknownHostException e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  /**
+   * @param address an IPv4 address
+   * @return the address as an int
+   * @throws IllegalArgumentException if the address isn't an IPv4 address
+   */
+  public static int fromInetAddress(InetAddress address) {
+    byte[] bytes = address.getAddress();
+    if (bytes.length != 4) throw new IllegalArgumentException("Not an IPv4 address: " + address);
+    
+    return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+  }
+  
+  /**
+   * An IPv4 network in CIDR notation, e.g. {@code 10.0.0.0/8}.
+   */
+  public static class Network {
+    private final int address;
+    private final int prefixLength;
+    private final int mask;
+    
+    /**
+     * @param address any address within the network; the bits past the prefix are
+     *    cleared
+     * @param prefixLength the number of leading bits of the network, from 0 to 32
+     */
+    public Network(int address, int prefixLength) {
+      if (prefixLength < 0 || prefixLength > 32) {
+        throw new IllegalArgumentException("Invalid prefix length: " + prefixLength);
+      }
+      
+      this.mask = Ipv4.getMask(prefixLength);
+      this.address = address & mask;
+      this.prefixLength = prefixLength;
+    }
+    
+    /**
+     * @param network a network such as {@code 10.0.0.0/8}, or a single address, which is
+     *    taken to be a network of one
+     * @throws NumberFormatException if the network is malformed
+     */
+    public static Network parse(String network) {
+      int slash = network.indexOf('/');
+      if (slash < 0) return new Network(Ipv4.parse(network), 32);
+      
+      int prefixLength = Integer.parseInt(network.substring(slash + 1));
+      if (prefixLength < 0 || prefixLength > 32) throw new NumberFormatException(network);
+      
+      return new Network(Ipv4.parse(network.substring(0, slash)), prefixLength);
+    }
+    
+    public boolean contains(int address) {
+      return (address & mask) == this.address;
+    }
+    
+    public int getAddress() {
+      return address;
+    }
+    
+    public int getPrefixLength() {
+      return prefixLength;
+    }
+    
+    public int getMask() {
+      return mask;
+    }
+    
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Network)) return false;
+      
+      Network network = (Network) other;
+      return address == network.address && prefixLength == network.prefixLength;
+    }
+    
+    @Override
+    public int hashCode() {
+      return address * 31 + prefixLength;
+    }
+    
+    @Override
+    public String toString() {
+      return format(address) + "/" + prefixLength;
+    }
+  }
+}
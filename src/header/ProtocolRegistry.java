@@ -0,0 +1,113 @@
+package header;
+
+/**
+ * Registry of the header types that packets are dispatched to, based on the ethertype of
+ * an ethernet frame, the protocol of an IP datagram or the ports of a TCP segment or UDP
+ * datagram. Every lookup is a single array access, so dispatching a packet doesn't
+ * allocate anything or hash any keys.
+ * <p>
+ * New header types can be registered at any time, but registrations aren't synchronized
+ * with parsing, so they should be done before parsing starts.
+ * <p>
+ * Registered header types are decoded from the layout their {@link Header.HeaderField}s
+ * describe, which {@link HeaderDecoder} compiles once per class; see there for how that
+ * compares to the hand-written decoders of the built-in headers.
+ */
+public class ProtocolRegistry {
+  private static final int NUM_ETHER_TYPES = 1 << 16;
+  private static final int NUM_IP_PROTOCOLS = 1 << 8;
+  private static final int NUM_PORTS = 1 << 16;
+  
+  private static final Class<? extends Header>[] etherTypes = newTable(NUM_ETHER_TYPES);
+  private static final Class<? extends Header>[] ipProtocols = newTable(NUM_IP_PROTOCOLS);
+  private static final Class<? extends Header>[] tcpPorts = newTable(NUM_PORTS);
+  private static final Class<? extends Header>[] udpPorts = newTable(NUM_PORTS);
+  
+  static {
+    registerEtherType(0x0800, IpHeader.class);
+    
+    registerIpProtocol(6, TcpHeader.class);
+    registerIpProtocol(17, UdpHeader.class);
+    
+    registerUdpPort(67, DhcpHeader.class);
+  }
+  
+  private ProtocolRegistry() {}
+  
+  /**
+   * @param etherType the ethertype of the frames that hold packets of {@code type}
+   * @param type the header type to decode those packets with, or {@code null} to not
+   *    decode them
+   */
+  public static void registerEtherType(int etherType, Class<? extends Header> type) {
+    etherTypes[etherType] = type;
+  }
+  
+  /**
+   * @param protocol the IP protocol number of the datagrams that hold packets of
+   *    {@code type}
+   * @param type the header type to decode those packets with, or {@code null} to not
+   *    decode them
+   */
+  public static void registerIpProtocol(int protocol, Class<? extends Header> type) {
+    ipProtocols[protocol] = type;
+  }
+  
+  /**
+   * @param port the TCP port (source or destination) of the segments that hold packets of
+   *    {@code type}
+   * @param type the header type to decode those packets with, or {@code null} to not
+   *    decode them
+   */
+  public static void registerTcpPort(int port, Class<? extends Header> type) {
+    tcpPorts[port] = type;
+  }
+  
+  /**
+   * @param port the UDP port (source or destination) of the datagrams that hold packets
+   *    of {@code type}
+   * @param type the header type to decode those packets with, or {@code null} to not
+   *    decode them
+   */
+  public static void registerUdpPort(int port, Class<? extends Header> type) {
+    udpPorts[port] = type;
+  }
+  
+  /**
+   * @return the header type registered for the ethertype, or {@code null} if there is none
+   */
+  public static Class<? extends Header> forEtherType(int etherType) {
+    return etherTypes[etherType];
+  }
+  
+  /**
+   * @return the header type registered for the IP protocol, or {@code null} if there is
+   *    none
+   */
+  public static Class<? extends Header> forIpProtocol(int protocol) {
+    return ipProtocols[protocol];
+  }
+  
+  /**
+   * @return the header type registered for the source port or, failing that, the
+   *    destination port of a TCP segment, or {@code null} if there is none
+   */
+  public static Class<? extends Header> forTcpPorts(int sourcePort, int destPort) {
+    Class<? extends Header> type = tcpPorts[sourcePort];
+    return type != null ? type : tcpPorts[destPort];
+  }
+  
+  /**
+   * @return the header type registered for the source port or, failing that, the
+   *    destination port of a UDP datagram, or {@code null} if there is none
+   */
+  public static Class<? extends Header> forUdpPorts(int sourcePort, int destPort) {
+    Class<? extends Header> type = udpPorts[sourcePort];
+    return type != null ? type : udpPorts[destPort];
+  }
+  
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static Class<? extends Header>[] newTable(int size) {
+    return new Class[size];
+  }
+}
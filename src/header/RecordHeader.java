@@ -1,11 +1,15 @@
 package header;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 public class RecordHeader extends Header {
-  @HeaderField(offset = 0, numBits = 64)
-  private BigInteger timestamp;
+  @HeaderField(offset = 0, numBits = 32)
+  private long timestampSeconds;
+  
+  @HeaderField(offset = 32, numBits = 32)
+  private long timestampFraction;
   
   @HeaderField(offset = 64, numBits = 32)
   private long capturedDataLength;
@@ -13,8 +17,55 @@ public class RecordHeader extends Header {
   @HeaderField(offset = 96, numBits = 32)
   private long frameLength;
   
+  private boolean nanosecondPrecision;
+  
+  private static final DirectDecoder<RecordHeader> DECODER = new DirectDecoder<RecordHeader>() {
+    @Override
+    RecordHeader newHeader() {
+      return new RecordHeader();
+    }
+    
+    @Override
+    void decode(RecordHeader header, ByteBuffer data, int base) {
+      header.timestampSeconds = u32le(data, base);
+      header.timestampFraction = u32le(data, base + 4);
+      header.capturedDataLength = u32le(data, base + 8);
+      header.frameLength = u32le(data, base + 12);
+    }
+  };
+  
   public RecordHeader() {}
   
+  /**
+   * @param timestampSeconds the seconds part of the timestamp
+   * @param timestampFraction the fraction of a second part of the timestamp
+   * @param capturedDataLength the number of bytes of the frame in the record
+   * @param frameLength the length of the frame on the wire
+   * @param nanosecondPrecision whether {@code timestampFraction} is in nanoseconds
+   *    rather than microseconds
+   */
+  public RecordHeader(long timestampSeconds, long timestampFraction, long capturedDataLength, 
+      long frameLength, boolean nanosecondPrecision) {
+    this.timestampSeconds = timestampSeconds;
+    this.timestampFraction = timestampFraction;
+    this.capturedDataLength = capturedDataLength;
+    this.frameLength = frameLength;
+    this.nanosecondPrecision = nanosecondPrecision;
+  }
+  
+  /**
+   * Sets every field of the header at once, e.g. to reuse a single header for every
+   * record. The parameters are those of the constructor.
+   */
+  public void set(long timestampSeconds, long timestampFraction, long capturedDataLength, 
+      long frameLength, boolean nanosecondPrecision) {
+    this.timestampSeconds = timestampSeconds;
+    this.timestampFraction = timestampFraction;
+    this.capturedDataLength = capturedDataLength;
+    this.frameLength = frameLength;
+    this.nanosecondPrecision = nanosecondPrecision;
+  }
+  
   @Override
   public ByteOrder getByteOrder() {
     return ByteOrder.LITTLE_ENDIAN;
@@ -22,18 +73,60 @@ public class RecordHeader extends Header {
 
   @Override
   public Class<? extends Header> getDataPacketHeaderType() {
+    materialize();
     return EthernetHeader.class;
   }
+  
+  @Override
+  DirectDecoder<RecordHeader> getDirectDecoder() {
+    return DECODER;
+  }
 
+  /**
+   * @return the 64 bits of the timestamp read as a single little-endian number, i.e.
+   *    with the fraction in the upper 32 bits and the seconds in the lower 32 bits
+   * @deprecated allocates and is awkward to compare; use {@link #getTimestampNanos()}
+   */
+  @Deprecated
   public BigInteger getTimestamp() {
-    return timestamp;
+    materialize();
+    return BigInteger.valueOf(timestampFraction).shiftLeft(32).or(BigInteger.valueOf(timestampSeconds));
+  }
+  
+  public long getTimestampSeconds() {
+    materialize();
+    return timestampSeconds;
+  }
+  
+  /**
+   * @return the fraction of a second part of the timestamp, in microseconds or in
+   *    nanoseconds depending on {@link #isNanosecondPrecision()}
+   */
+  public long getTimestampFraction() {
+    materialize();
+    return timestampFraction;
+  }
+  
+  /**
+   * @return the timestamp in nanoseconds since the epoch
+   */
+  public long getTimestampNanos() {
+    materialize();
+    return timestampSeconds * 1000000000L + (nanosecondPrecision ? timestampFraction : timestampFraction * 1000);
+  }
+  
+  public boolean isNanosecondPrecision() {
+    materialize();
+    return nanosecondPrecision;
   }
 
   public long getCapturedDataLength() {
+    materialize();
     return capturedDataLength;
   }
 
   public long getFrameLength() {
+    materialize();
     return frameLength;
   }
 }
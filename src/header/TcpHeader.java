@@ -1,5 +1,7 @@
 package header;
 
+import java.nio.ByteBuffer;
+
 public class TcpHeader extends Header {
   @HeaderField(offset = 0, numBits = 16)
   private int sourcePort;
@@ -31,53 +33,92 @@ public class TcpHeader extends Header {
   @HeaderField(offset = 144, numBits = 16)
   private int urgentPointer;
   
+  private static final DirectDecoder<TcpHeader> DECODER = new DirectDecoder<TcpHeader>() {
+    @Override
+    TcpHeader newHeader() {
+      return new TcpHeader();
+    }
+
+    @Override
+    void decode(TcpHeader header, ByteBuffer data, int base) {
+      header.sourcePort = u16(data, base);
+      header.destPort = u16(data, base + 2);
+      header.sequenceNumber = u32(data, base + 4);
+      header.ackNumber = u32(data, base + 8);
+      header.headerLength = (short) (u8(data, base + 12) >>> 4);
+      header.reserved = (byte) ((u8(data, base + 12) >>> 1) & 0x7);
+      header.flags = (short) (u16(data, base + 12) & 0x1FF);
+      header.advertizedWindowSize = u16(data, base + 14);
+      header.checksum = u16(data, base + 16);
+      header.urgentPointer = u16(data, base + 18);
+    }
+  };
+
   @Override
   public Class<? extends Header> getDataPacketHeaderType() {
-    return null;
+    materialize();
+    return ProtocolRegistry.forTcpPorts(sourcePort, destPort);
+  }
+
+  @Override
+  DirectDecoder<TcpHeader> getDirectDecoder() {
+    return DECODER;
   }
 
   public int getSourcePort() {
+    materialize();
     return sourcePort;
   }
 
   public int getDestPort() {
+    materialize();
     return destPort;
   }
 
   public long getSequenceNumber() {
+    materialize();
     return sequenceNumber;
   }
 
   public long getAckNumber() {
+    materialize();
     return ackNumber;
   }
 
   public long getTcpHeaderLength() {
+    materialize();
     return headerLength;
   }
 
   public byte getReserved() {
+    materialize();
     return reserved;
   } 
 
   public short getFlags() {
+    materialize();
     return flags;
   }
 
   public int getAdvertizedWindowSize() {
+    materialize();
     return advertizedWindowSize;
   }
 
   public int getChecksum() {
+    materialize();
     return checksum;
   }
 
   public int getUrgentPointer() {
+    materialize();
     return urgentPointer;
   }
   
   @Override
   public String toString() {
+    materialize();
+    
     int urgentPointerBit = flags >>> 5 & 1;
     int ackBit = flags >>> 4 & 1;
     int pushBit = flags >>> 3 & 1;
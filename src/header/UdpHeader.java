@@ -1,5 +1,6 @@
 package header;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -20,14 +21,12 @@ public class UdpHeader extends Header {
     }
   }
   
-  @SuppressWarnings("serial")
-  private static final Map<Integer, Protocol> portProtocolMap = 
-      new HashMap<Integer, Protocol>() {
-    {
-      put(67, Protocol.DHCP);
-      put(53, Protocol.DNS);
-    }
-  };
+  private static final Protocol[] portProtocols = new Protocol[1 << 16];
+  
+  static {
+    portProtocols[67] = Protocol.DHCP;
+    portProtocols[53] = Protocol.DNS;
+  }
   
   @SuppressWarnings("serial")
   private static final Map<Integer, String> portNamesMap = 
@@ -50,44 +49,68 @@ public class UdpHeader extends Header {
   @HeaderField(offset = 48, numBits = 16)
   private int checksum;
   
+  private static final DirectDecoder<UdpHeader> DECODER = new DirectDecoder<UdpHeader>() {
+    @Override
+    UdpHeader newHeader() {
+      return new UdpHeader();
+    }
+    
+    @Override
+    void decode(UdpHeader header, ByteBuffer data, int base) {
+      header.sourcePort = u16(data, base);
+      header.destPort = u16(data, base + 2);
+      header.length = u16(data, base + 4);
+      header.checksum = u16(data, base + 6);
+    }
+  };
+  
   @Override
   public Class<? extends Header> getDataPacketHeaderType() {
-    switch (getProtocol()) {
-      case DHCP:
-        return DhcpHeader.class;
-      default:
-        return null;  
-    }
+    materialize();
+    return ProtocolRegistry.forUdpPorts(sourcePort, destPort);
+  }
+  
+  @Override
+  DirectDecoder<UdpHeader> getDirectDecoder() {
+    return DECODER;
   }
   
   public Protocol getProtocol() {
-    if (portProtocolMap.containsKey(sourcePort)) {
-      return portProtocolMap.get(sourcePort);
-    } else if (portProtocolMap.containsKey(destPort)) {
-      return portProtocolMap.get(destPort);
+    materialize();
+    
+    if (portProtocols[sourcePort] != null) {
+      return portProtocols[sourcePort];
+    } else if (portProtocols[destPort] != null) {
+      return portProtocols[destPort];
     } else {
       return Protocol.UNKNOWN;
     }
   }
 
   public int getSourcePort() {
+    materialize();
     return sourcePort;
   }
 
   public int getDestPort() {
+    materialize();
     return destPort;
   }
 
   public int getLength() {
+    materialize();
     return length;
   }
 
   public int getChecksum() {
+    materialize();
     return checksum;
   }
   
   @Override
   public String toString() {
+    materialize();
+    
     String sourcePortName = portNamesMap.get(sourcePort);
     String destPortName = portNamesMap.get(destPort);
     
@@ -0,0 +1,106 @@
+package io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link Reader} over bytes that are already in memory, e.g. a part of a file that has
+ * been mapped or read by the caller. Reads are slices of the buffer, unless the reader
+ * was told to copy them because the caller is going to reuse the buffer.
+ */
+public class BufferReader extends Reader {
+  private final ByteBuffer buffer;
+  private final long start;
+  private final boolean copy;
+  
+  /** The view of the buffer handed out by {@link #readShared(int, ByteOrder)}. */
+  private final ByteBuffer shared;
+  
+  /**
+   * @param buffer the bytes to read, from the buffer's position to its limit
+   * @param start the offset of the buffer's position in the file it was taken from
+   */
+  public BufferReader(ByteBuffer buffer, long start) {
+    this(buffer, start, false);
+  }
+  
+  /**
+   * @param buffer the bytes to read, from the buffer's position to its limit
+   * @param start the offset of the buffer's position in the file it was taken from
+   * @param copy whether {@link #read(int, ByteOrder)} copies the bytes out of the buffer
+   *    instead of slicing it, so that what it returns stays valid once the buffer is
+   *    reused. {@link #readShared(int, ByteOrder)} returns a view either way.
+   */
+  public BufferReader(ByteBuffer buffer, long start, boolean copy) {
+    this.buffer = buffer.duplicate();
+    this.start = start - buffer.position();
+    this.copy = copy;
+    this.shared = buffer.duplicate();
+    
+    offset = start;
+  }
+  
+  @Override
+  public ByteBuffer read(int length, ByteOrder order) throws IOException {
+    if (length > buffer.remaining()) throw new EOFException();
+    
+    ByteBuffer slice = buffer.slice();
+    slice.limit(length);
+    
+    if (copy) {
+      ByteBuffer bytes = ByteBuffer.allocate(length);
+      bytes.put(slice);
+      bytes.flip();
+      slice = bytes;
+    }
+    
+    slice.order(order);
+    
+    skip(length);
+    return slice;
+  }
+  
+  /**
+   * Hands out the same view of the buffer every time.
+   */
+  @Override
+  public ByteBuffer readShared(int length, ByteOrder order) throws IOException {
+    if (length > buffer.remaining()) throw new EOFException();
+    
+    shared.limit(buffer.position() + length);
+    shared.position(buffer.position());
+    shared.order(order);
+    
+    skip(length);
+    return shared;
+  }
+  
+  @Override
+  public void skip(long length) throws IOException {
+    if (length > buffer.remaining()) throw new EOFException();
+    
+    buffer.position(buffer.position() + (int) length);
+    offset = start + buffer.position();
+  }
+  
+  /**
+   * Moves the reader to {@code position}, forward or back within the buffer.
+   */
+  @Override
+  public void seek(long position) throws IOException {
+    if (position < start || position - start > buffer.limit()) throw new EOFException();
+    
+    buffer.position((int) (position - start));
+    offset = position;
+  }
+  
+  @Override
+  public boolean hasMoreData() {
+    return buffer.hasRemaining();
+  }
+  
+  @Override
+  public void close() {}
+}
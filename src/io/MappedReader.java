@@ -0,0 +1,152 @@
+package io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * {@link Reader} that memory maps the file and hands out slices of the mapping instead
+ * of copying the data. Files larger than a single mapping can hold are mapped one window
+ * at a time; a new window is mapped whenever a read would cross the end of the current
+ * one.
+ */
+public class MappedReader extends Reader {
+  /** The default size of a mapped window, in bytes. */
+  public static final int DEFAULT_WINDOW_SIZE = 256 * 1024 * 1024;
+  
+  private final FileInputStream input;
+  private final FileChannel channel;
+  private final long end;
+  private final int windowSize;
+  
+  private MappedByteBuffer window;
+  private long windowStart;
+  
+  /** The view of the window handed out by {@link #readShared(int, ByteOrder)}. */
+  private ByteBuffer shared;
+  
+  public MappedReader(File file) throws IOException {
+    this(file, DEFAULT_WINDOW_SIZE);
+  }
+  
+  /**
+   * @param file the file to map
+   * @param windowSize the maximum number of bytes to map at once
+   * @throws IOException if the file could not be opened
+   */
+  public MappedReader(File file, int windowSize) throws IOException {
+    input = new FileInputStream(file);
+    channel = input.getChannel();
+    end = channel.size();
+    this.windowSize = windowSize;
+  }
+  
+  /**
+   * Creates a reader over a range of an already open file, e.g. so that several threads
+   * can each read a part of the same file. The channel is left open when this reader is
+   * closed.
+   * 
+   * @param channel the channel of the file to map
+   * @param start the offset at which to start reading
+   * @param end the offset at which to stop reading
+   * @param windowSize the maximum number of bytes to map at once
+   */
+  public MappedReader(FileChannel channel, long start, long end, int windowSize) {
+    input = null;
+    this.channel = channel;
+    this.end = end;
+    this.windowSize = windowSize;
+    
+    offset = start;
+  }
+  
+  @Override
+  public ByteBuffer read(int length, ByteOrder order) throws IOException {
+    if (offset + length > end) throw new EOFException();
+    
+    if (window == null || offset < windowStart || offset + length > windowStart + window.limit()) {
+      map(offset, length);
+    }
+    
+    int position = (int) (offset - windowStart);
+    
+    ByteBuffer slice = window.duplicate();
+    slice.position(position);
+    slice.limit(position + length);
+    slice = slice.slice();
+    slice.order(order);
+    
+    offset += length;
+    return slice;
+  }
+  
+  /**
+   * Hands out the same view of the current window every time, so nothing is copied or
+   * allocated until a read crosses the end of the window.
+   */
+  @Override
+  public ByteBuffer readShared(int length, ByteOrder order) throws IOException {
+    if (offset + length > end) throw new EOFException();
+    
+    if (window == null || offset < windowStart || offset + length > windowStart + window.limit()) {
+      map(offset, length);
+    }
+    
+    int position = (int) (offset - windowStart);
+    
+    shared.limit(position + length);
+    shared.position(position);
+    shared.order(order);
+    
+    offset += length;
+    return shared;
+  }
+  
+  @Override
+  public void skip(long length) throws IOException {
+    if (offset + length > end) throw new EOFException();
+    
+    offset += length;
+  }
+  
+  /**
+   * Moves the reader to {@code position}, forward or back. The new position has to be
+   * within the range the reader was created for.
+   */
+  @Override
+  public void seek(long position) throws IOException {
+    if (position > end) throw new EOFException();
+    
+    offset = position;
+  }
+  
+  @Override
+  public boolean hasMoreData() {
+    return offset < end;
+  }
+  
+  @Override
+  public void close() throws IOException {
+    window = null;
+    shared = null;
+    if (input != null) input.close();
+  }
+  
+  /**
+   * Maps a new window that starts at {@code position} and is large enough to hold at
+   * least {@code length} bytes.
+   */
+  private void map(long position, int length) throws IOException {
+    long size = Math.min(Math.max(windowSize, length), end - position);
+    
+    window = channel.map(MapMode.READ_ONLY, position, size);
+    windowStart = position;
+    shared = window.duplicate();
+  }
+}
@@ -0,0 +1,255 @@
+package io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * {@link Reader} that reads from an {@link InputStream} on a thread of its own, e.g. a
+ * {@link java.util.zip.GZIPInputStream} over a compressed capture. The thread fills a
+ * fixed ring of blocks that the reading thread empties, so the work done by the stream,
+ * such as inflating, overlaps with decoding the records instead of adding to it. Once
+ * every block is full the thread waits for one to be emptied, which bounds the memory
+ * used to the size of the ring.
+ * <p>
+ * Like {@link StreamReader}, every read is copied into a new array, since the blocks are
+ * reused.
+ */
+public class PipelinedReader extends Reader {
+  /** The default size of a block, in bytes. */
+  public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+  
+  /** The default number of blocks in the ring. */
+  public static final int DEFAULT_NUM_BLOCKS = 4;
+  
+  private final InputStream input;
+  private final BlockingQueue<Block> filledBlocks;
+  private final BlockingQueue<Block> emptyBlocks;
+  private final Thread thread;
+  private volatile boolean closed;
+  
+  /** The error closing the stream, set by the reading thread before it ends. */
+  private IOException closeError;
+  
+  /** The block being read from, and the position in it. */
+  private Block block;
+  private int position;
+  
+  /** The buffer handed out by {@link #readShared(int, ByteOrder)}. */
+  private ByteBuffer shared = ByteBuffer.allocate(0);
+  
+  public PipelinedReader(InputStream input) {
+    this(input, DEFAULT_BLOCK_SIZE, DEFAULT_NUM_BLOCKS);
+  }
+  
+  /**
+   * Starts reading from the stream right away.
+   * 
+   * @param input the stream to read from
+   * @param blockSize the size of a block, in bytes
+   * @param numBlocks the number of blocks in the ring
+   */
+  public PipelinedReader(InputStream input, int blockSize, int numBlocks) {
+    this.input = input;
+    this.filledBlocks = new ArrayBlockingQueue<Block>(numBlocks);
+    this.emptyBlocks = new ArrayBlockingQueue<Block>(numBlocks);
+    
+    for (int i = 0; i < numBlocks; ++i) {
+      emptyBlocks.add(new Block(blockSize));
+    }
+    
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        fill();
+      }
+    }, "PipelinedReader");
+    
+    thread.setDaemon(true);
+    thread.start();
+  }
+  
+  /**
+   * Fills blocks from the stream until it ends, fails or the reader is closed, and then
+   * closes the stream. Only this thread ever touches the stream, since e.g. an inflater
+   * that is closed in the middle of a read fails in unchecked ways.
+   */
+  private void fill() {
+    try {
+      while (!closed) {
+        Block empty = emptyBlocks.take();
+        
+        try {
+          empty.length = read(empty.data);
+        } catch (IOException e) {
+          if (closed) return;
+          
+          empty.length = 0;
+          empty.error = e;
+        } catch (RuntimeException e) {
+          if (closed) return;
+          throw e;
+        }
+        
+        filledBlocks.put(empty);
+        if (empty.length < 0 || empty.error != null) return;
+      }
+    } catch (InterruptedException e) {
+      // The reader was closed.
+    } finally {
+      try {
+        input.close();
+      } catch (IOException e) {
+        closeError = e;
+      }
+    }
+  }
+  
+  /**
+   * @return the number of bytes read into {@code data}, which is only less than its
+   *    length at the end of the stream, or -1 if the stream had already ended
+   */
+  private int read(byte[] data) throws IOException {
+    int length = 0;
+    
+    while (length < data.length) {
+      int count = input.read(data, length, data.length - length);
+      if (count < 0) return length > 0 ? length : -1;
+      
+      length += count;
+    }
+    
+    return length;
+  }
+  
+  @Override
+  public ByteBuffer read(int length, ByteOrder order) throws IOException {
+    byte[] data = new byte[length];
+    copy(data, length);
+    
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    buffer.order(order);
+    return buffer;
+  }
+  
+  /**
+   * Copies into the same array every time, replacing it only when a read doesn't fit.
+   */
+  @Override
+  public ByteBuffer readShared(int length, ByteOrder order) throws IOException {
+    if (shared.capacity() < length) shared = ByteBuffer.allocate(Math.max(length, shared.capacity() * 2));
+    
+    copy(shared.array(), length);
+    
+    shared.clear();
+    shared.limit(length);
+    shared.order(order);
+    return shared;
+  }
+  
+  /**
+   * Copies the next {@code length} bytes out of the ring.
+   */
+  private void copy(byte[] data, int length) throws IOException {
+    int copied = 0;
+    
+    while (copied < length) {
+      if (!nextBlock()) throw new EOFException();
+      
+      int count = Math.min(length - copied, block.length - position);
+      System.arraycopy(block.data, position, data, copied, count);
+      
+      position += count;
+      copied += count;
+    }
+    
+    offset += length;
+  }
+  
+  @Override
+  public void skip(long length) throws IOException {
+    long skipped = 0;
+    
+    while (skipped < length) {
+      if (!nextBlock()) throw new EOFException();
+      
+      int count = (int) Math.min(length - skipped, block.length - position);
+      position += count;
+      skipped += count;
+    }
+    
+    offset += length;
+  }
+  
+  /**
+   * Waits for the stream to be read ahead of the current position, if it isn't yet.
+   */
+  @Override
+  public boolean hasMoreData() throws IOException {
+    return nextBlock();
+  }
+  
+  /**
+   * Moves on to the next filled block once the current one has been read, handing the
+   * current one back to be filled again.
+   * 
+   * @return whether or not there is data left to read
+   */
+  private boolean nextBlock() throws IOException {
+    while (block == null || position >= block.length) {
+      if (block != null) {
+        if (block.error != null) throw block.error;
+        if (block.length < 0) return false;
+        
+        emptyBlocks.add(block);
+      }
+      
+      try {
+        block = filledBlocks.take();
+        position = 0;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Stops the reading thread and waits for it to close the stream. A read that is under
+   * way when the reader is closed is finished first.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    thread.interrupt();
+    
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    
+    if (closeError != null) throw closeError;
+  }
+  
+  /**
+   * A block of the ring. A block with a negative length marks the end of the stream.
+   */
+  private static class Block {
+    private final byte[] data;
+    private int length;
+    private IOException error;
+    
+    private Block(int size) {
+      data = new byte[size];
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Wraps reading from a capture file so that we can easily track how much data has been
+ * read from it.
+ */
+public abstract class Reader implements Closeable {
+  protected long offset;
+  
+  /**
+   * Reads {@code length} bytes from the file at the reader's current position.
+   * 
+   * @param length the amount of bytes to read
+   * @return a {@link ByteBuffer} that holds the data that was read, from its position
+   *    to its limit
+   * @throws IOException if there was an error while reading from the file
+   */
+  public ByteBuffer read(int length) throws IOException {
+    return read(length, ByteOrder.BIG_ENDIAN);
+  }
+  
+  /**
+   * Reads {@code length} bytes from the file at the reader's current position.
+   * 
+   * @param length the amount of bytes to read
+   * @param order the endianness of the resulting {@link ByteBuffer}
+   * @return a {@link ByteBuffer} that holds the data that was read, from its position
+   *    to its limit
+   * @throws IOException if there was an error while reading from the file, or if the
+   *    file ended before {@code length} bytes could be read
+   */
+  public abstract ByteBuffer read(int length, ByteOrder order) throws IOException;
+  
+  /**
+   * Reads {@code length} bytes like {@link #read(int, ByteOrder)}, but into a buffer the
+   * reader hands out again on the next call, so that reading doesn't allocate anything
+   * once the buffer is large enough. Readers that can't do that return a new buffer.
+   * 
+   * @param length the amount of bytes to read
+   * @param order the endianness of the resulting {@link ByteBuffer}
+   * @return a {@link ByteBuffer} that holds the data that was read, from its position
+   *    to its limit. It is only valid until the next read, but its position and limit
+   *    may be changed in the meantime.
+   * @throws IOException if there was an error while reading from the file, or if the
+   *    file ended before {@code length} bytes could be read
+   */
+  public ByteBuffer readShared(int length, ByteOrder order) throws IOException {
+    return read(length, order);
+  }
+  
+  /**
+   * Skips over {@code length} bytes without handing them out.
+   * 
+   * @param length the amount of bytes to skip
+   * @throws IOException if there was an error while reading from the file, or if the
+   *    file ended before {@code length} bytes could be skipped
+   */
+  public abstract void skip(long length) throws IOException;
+  
+  /**
+   * Moves the reader to {@code position}. Readers that can only move forward skip to it,
+   * and throw if it is behind them.
+   * 
+   * @param position the new position of the reader, in bytes from the start of the file
+   * @throws IOException if there was an error while reading from the file, if the file
+   *    ends before {@code position}, or if the reader can't move back to it
+   */
+  public void seek(long position) throws IOException {
+    if (position < offset) throw new IOException("Can't seek back to " + position + " from " + offset);
+    
+    skip(position - offset);
+  }
+  
+  /**
+   * @return whether or not there is any data left to read
+   * @throws IOException if there was an error while reading from the file
+   */
+  public abstract boolean hasMoreData() throws IOException;
+  
+  /**
+   * @return the position of the reader, in bytes from the start of the file
+   */
+  public long getOffset() {
+    return offset;
+  }
+}
@@ -0,0 +1,86 @@
+package io;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link Reader} that reads from an {@link InputStream}, copying every read into a new
+ * array.
+ */
+public class StreamReader extends Reader {
+  private final DataInputStream input;
+  private final long size;
+  
+  /** The buffer handed out by {@link #readShared(int, ByteOrder)}. */
+  private ByteBuffer shared = ByteBuffer.allocate(0);
+  
+  /**
+   * @param input the stream to read from
+   * @param size the total number of bytes in the stream
+   */
+  public StreamReader(InputStream input, long size) {
+    this.input = new DataInputStream(input);
+    this.size = size;
+  }
+  
+  @Override
+  public ByteBuffer read(int length, ByteOrder order) throws IOException {
+    byte[] data = new byte[length];
+    input.readFully(data, 0, length);
+    
+    offset += length;
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    buffer.order(order);
+    return buffer;
+  }
+  
+  /**
+   * Reads into the same array every time, replacing it only when a read doesn't fit.
+   */
+  @Override
+  public ByteBuffer readShared(int length, ByteOrder order) throws IOException {
+    if (shared.capacity() < length) shared = ByteBuffer.allocate(Math.max(length, shared.capacity() * 2));
+    
+    input.readFully(shared.array(), 0, length);
+    
+    offset += length;
+    shared.clear();
+    shared.limit(length);
+    shared.order(order);
+    return shared;
+  }
+  
+  @Override
+  public void skip(long length) throws IOException {
+    long remaining = length;
+    
+    while (remaining > 0) {
+      long skipped = input.skip(remaining);
+      
+      // Streams are allowed to skip less than asked for, or nothing at all, so fall back
+      // to reading a byte to tell the end of the stream apart from a lazy stream.
+      if (skipped <= 0) {
+        if (input.read() < 0) throw new EOFException();
+        skipped = 1;
+      }
+      
+      remaining -= skipped;
+    }
+    
+    offset += length;
+  }
+  
+  @Override
+  public boolean hasMoreData() {
+    return offset < size;
+  }
+  
+  @Override
+  public void close() throws IOException {
+    input.close();
+  }
+}
@@ -0,0 +1,387 @@
+package main;
+
+import header.EthernetHeader;
+import header.RecordHeader;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+import filter.FilterCompiler;
+import filter.RawFilter;
+import io.MappedReader;
+import io.PipelinedReader;
+import io.Reader;
+import io.StreamReader;
+import data.ByteData;
+import data.Data;
+import data.Packet;
+
+/**
+ * Base class of the parsers of the different capture file formats. Subclasses only have
+ * to read the next record from the file; the ways of going through the packets (lists,
+ * visitors and iterators), lazy decoding and raw filtering are shared.
+ */
+public abstract class CaptureParser implements Iterable<Packet<EthernetHeader>>, Closeable {
+  private static final int GZIP_MAGIC_1 = 0x1f;
+  private static final int GZIP_MAGIC_2 = 0x8b;
+  
+  /** The number of compressed bytes to read from a gzip file at once. */
+  private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+  
+  private final Reader reader;
+  private boolean lazyDecoding;
+  private RawFilter filter;
+  private long startTime = Long.MIN_VALUE;
+  private long endTime = Long.MAX_VALUE;
+  private ParserMetrics metrics;
+  
+  /**
+   * @param reader the reader to parse from
+   */
+  protected CaptureParser(Reader reader) {
+    this.reader = reader;
+  }
+  
+  /**
+   * @param file the file to read, which may be gzip compressed
+   * @param memoryMapped whether to memory map the file, in which case headers and data
+   *    blobs are slices of the mapping instead of copies. Compressed files are never
+   *    mapped.
+   * @return a reader over the file, which inflates it on a thread of its own if it is
+   *    compressed
+   * @throws IOException if the file could not be opened
+   */
+  protected static Reader openReader(File file, boolean memoryMapped) throws IOException {
+    if (isCompressed(file)) return new PipelinedReader(openStream(file));
+    
+    return memoryMapped ? new MappedReader(file) : 
+        new StreamReader(new BufferedInputStream(new FileInputStream(file)), file.length());
+  }
+  
+  /**
+   * @return whether or not the file starts with the magic number of a gzip file
+   */
+  static boolean isCompressed(File file) throws IOException {
+    FileInputStream input = new FileInputStream(file);
+    
+    try {
+      return input.read() == GZIP_MAGIC_1 && input.read() == GZIP_MAGIC_2;
+    } finally {
+      input.close();
+    }
+  }
+  
+  /**
+   * @return a stream of the contents of the file, inflated if it is compressed
+   */
+  private static InputStream openStream(File file) throws IOException {
+    InputStream input = new FileInputStream(file);
+    
+    return isCompressed(file) ? new GZIPInputStream(input, INFLATE_BUFFER_SIZE) : input;
+  }
+  
+  /**
+   * Opens a parser for a capture file of either format, telling them apart by the magic
+   * number at the start of the file.
+   * 
+   * @param file the LibPcap or pcapng file to parse, which may be gzip compressed
+   * @param memoryMapped whether to memory map the file
+   * @return a {@link PcapngParser} if the file starts with a section header block, or a
+   *    {@link LibpcapParser} otherwise
+   * @throws IOException if the file could not be opened or read
+   */
+  public static CaptureParser open(File file, boolean memoryMapped) throws IOException {
+    DataInputStream input = new DataInputStream(openStream(file));
+    int magicNumber;
+    
+    try {
+      magicNumber = input.readInt();
+    } finally {
+      input.close();
+    }
+    
+    if (magicNumber == PcapngParser.SECTION_HEADER_BLOCK) return new PcapngParser(file, memoryMapped);
+    
+    return new LibpcapParser(file, memoryMapped);
+  }
+  
+  /**
+   * Parses the file into a list of ethernet packets.
+   * @return a list of ethernet packets
+   * @throws IOException
+   * @throws IllegalArgumentException
+   * @throws InstantiationException
+   * @throws IllegalAccessException
+   * @throws InvocationTargetException
+   */
+  public EthernetFrameList parse() 
+      throws IOException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException {
+    
+    final EthernetFrameList frameList = new EthernetFrameList();
+    
+    parse(new PacketVisitor() {
+      @Override
+      public boolean visit(RecordHeader record, Packet<EthernetHeader> packet) {
+        return frameList.add(packet);
+      }
+    });
+    
+    return frameList;
+  }
+  
+  /**
+   * Parses the file one record at a time, handing each packet to {@code visitor} as soon
+   * as it has been decoded. Nothing is retained by the parser, so this runs in constant
+   * memory regardless of the size of the capture.
+   * 
+   * @param visitor the visitor to call for each packet
+   * @throws IOException
+   * @throws IllegalArgumentException
+   * @throws InstantiationException
+   * @throws IllegalAccessException
+   * @throws InvocationTargetException
+   */
+  @SuppressWarnings("unchecked")
+  public void parse(PacketVisitor visitor) 
+      throws IOException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException {
+    
+    Packet<RecordHeader> record;
+    
+    while ((record = nextRecord()) != null) {
+      // Frames too short to hold an ethernet header are skipped.
+      if (!record.hasNestedPacket()) continue;
+      
+      if (!visitor.visit(record.getHeader(), (Packet<EthernetHeader>) record.getData())) break;
+    }
+  }
+  
+  /**
+   * Parses the next record in the file.
+   * 
+   * @return the next record, whose data is its ethernet packet, or {@code null} if the
+   *    end of the file has been reached
+   * @throws IOException
+   * @throws IllegalArgumentException
+   * @throws InstantiationException
+   * @throws IllegalAccessException
+   * @throws InvocationTargetException
+   */
+  public abstract Packet<RecordHeader> nextRecord() 
+      throws IOException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException;
+  
+  /**
+   * Decodes the frame of a record with the current decoding settings.
+   * 
+   * @param recordHeader the header of the record
+   * @param frame the bytes of the frame, from the buffer's position to its limit
+   * @param linkDecoder the decoder for the link type of the frame
+   * @return the record, whose data is its ethernet packet if the frame is long enough
+   * @throws InstantiationException
+   * @throws IllegalAccessException
+   * @throws InvocationTargetException
+   */
+  protected Packet<RecordHeader> makeRecord(RecordHeader recordHeader, ByteBuffer frame, LinkDecoder linkDecoder) 
+      throws InstantiationException, IllegalAccessException, InvocationTargetException {
+    
+    long start = metrics != null ? System.nanoTime() : 0;
+    Data frameData = linkDecoder.decode(frame, lazyDecoding);
+    if (frameData == null) frameData = new ByteData(frame);
+    
+    if (metrics != null) metrics.addDecode(System.nanoTime() - start, lazyDecoding ? null : frameData);
+    
+    return new Packet<RecordHeader>(recordHeader, frameData);
+  }
+  
+  /**
+   * Runs the raw filter against a frame.
+   * 
+   * @param frame the bytes of the frame, from the buffer's position to its limit
+   * @param linkDecoder the decoder for the link type of the frame
+   * @return whether the record should be kept, which is always the case if there is no
+   *    filter
+   */
+  protected boolean matchesFilter(ByteBuffer frame, LinkDecoder linkDecoder) {
+    if (filter == null) return true;
+    
+    long start = metrics != null ? System.nanoTime() : 0;
+    int etherType = linkDecoder.getEtherType(frame);
+    boolean matches = etherType >= 0 && filter.matches(frame, etherType, frame.position() + linkDecoder.getHeaderLength());
+    
+    if (metrics != null) metrics.addFilter(System.nanoTime() - start, matches);
+    
+    return matches;
+  }
+  
+  /**
+   * Checks a record against the time window, counting it as skipped in the metrics if it
+   * is outside of it.
+   * 
+   * @param timestamp the timestamp of a record, in nanoseconds since the epoch
+   * @return whether the record is within the time window, which is always the case if
+   *    no window has been set
+   */
+  protected boolean isInTimeWindow(long timestamp) {
+    if (timestamp >= startTime && timestamp < endTime) return true;
+    
+    if (metrics != null) metrics.addSkipped();
+    return false;
+  }
+  
+  /**
+   * Returns a pull-based iterator over the packets in the file. Packets are decoded one
+   * record at a time as the iterator advances. Since the parser only reads forward, the
+   * packets can only be iterated over once.
+   * 
+   * @return an iterator over the ethernet packets in the file
+   */
+  @Override
+  public Iterator<Packet<EthernetHeader>> iterator() {
+    return new PacketIterator();
+  }
+  
+  public boolean hasMoreData() throws IOException {
+    return reader.hasMoreData();
+  }
+  
+  /**
+   * Sets whether packets are decoded lazily. Lazy packets are views over the bytes of
+   * their record that only decode a header when one of its accessors is called, which
+   * saves decoding the inner layers of packets that a filter rejects early on.
+   * 
+   * @param lazyDecoding whether or not to decode packets lazily
+   */
+  public void setLazyDecoding(boolean lazyDecoding) {
+    this.lazyDecoding = lazyDecoding;
+  }
+  
+  public boolean isLazyDecoding() {
+    return lazyDecoding;
+  }
+  
+  /**
+   * Sets a filter that is run against the raw bytes of every record before anything is
+   * decoded. Records that don't match are skipped entirely.
+   * 
+   * @param filter the filter, e.g. compiled by {@link FilterCompiler}, or {@code null}
+   *    to keep every record
+   */
+  public void setFilter(RawFilter filter) {
+    this.filter = filter;
+  }
+  
+  public RawFilter getFilter() {
+    return filter;
+  }
+  
+  /**
+   * Only keeps the records captured within a window of time. The window is checked right
+   * after reading the header of a record, so the frames of records outside of it are
+   * skipped without being read, filtered or decoded. Records aren't assumed to be in
+   * order, so the whole file is still read through; a {@link LibpcapIndex} can be used
+   * to start reading close to the start of the window instead.
+   * 
+   * @param startTime the earliest timestamp to keep, in nanoseconds since the epoch, or
+   *    {@link Long#MIN_VALUE} for no lower bound
+   * @param endTime the timestamp to keep records until, exclusive, or
+   *    {@link Long#MAX_VALUE} for no upper bound
+   */
+  public void setTimeWindow(long startTime, long endTime) {
+    this.startTime = startTime;
+    this.endTime = endTime;
+  }
+  
+  /**
+   * @return the earliest timestamp kept, in nanoseconds since the epoch
+   */
+  public long getStartTime() {
+    return startTime;
+  }
+  
+  /**
+   * @return the timestamp records are kept until, exclusive, in nanoseconds since the
+   *    epoch
+   */
+  public long getEndTime() {
+    return endTime;
+  }
+  
+  /**
+   * Sets the metrics to add the time spent reading, filtering and decoding every record
+   * to. Without metrics, the parser doesn't look at the clock at all.
+   * 
+   * @param metrics the metrics, which may be shared with other parsers, or {@code null}
+   *    to not gather any
+   */
+  public void setMetrics(ParserMetrics metrics) {
+    this.metrics = metrics;
+  }
+  
+  public ParserMetrics getMetrics() {
+    return metrics;
+  }
+  
+  public Reader getReader() {
+    return reader;
+  }
+  
+  public long getOffset() {
+    return reader.getOffset();
+  }
+  
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+  
+  /**
+   * Iterator that decodes the next record only once the previous one has been consumed.
+   */
+  private class PacketIterator implements Iterator<Packet<EthernetHeader>> {
+    private Packet<EthernetHeader> next;
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean hasNext() {
+      if (next != null) return true;
+      
+      try {
+        Packet<RecordHeader> record;
+        
+        // Frames too short to hold an ethernet header are skipped.
+        do {
+          record = nextRecord();
+        } while (record != null && !record.hasNestedPacket());
+        
+        if (record != null) next = (Packet<EthernetHeader>) record.getData();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      
+      return next != null;
+    }
+    
+    @Override
+    public Packet<EthernetHeader> next() {
+      if (!hasNext()) throw new NoSuchElementException();
+      
+      Packet<EthernetHeader> packet = next;
+      next = null;
+      return packet;
+    }
+    
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -29,16 +29,45 @@ public class EthernetFrameList extends ArrayList<Packet<EthernetHeader>> {
   }
   
   /**
-   * @return the average length (in bytes) of all of the packets
+   * @return the average length (in bytes) of all of the packets, or 0 if there are none
    */
   public long getAveragePacketLength() {
+    return getAveragePacketLength(this);
+  }
+  
+  /**
+   * Filters a sequence of packets without needing the whole sequence in memory, e.g. the
+   * packets of a {@link LibpcapParser}. Only the packets that pass the filters are kept.
+   * 
+   * @param packets the packets to filter
+   * @param filters the filters to run against the packets
+   * @return a list of the {@link Packet<EthernetHeader>}s that fulfill all of the
+   *    {@link Filter}s in {@code filters}
+   */
+  public static EthernetFrameList getAll(Iterable<Packet<EthernetHeader>> packets, Filter...filters) {
+    EthernetFrameList filteredList = new EthernetFrameList();
+    
+    for (Packet<EthernetHeader> packet : packets) {
+      if (matchesAll(packet, filters)) filteredList.add(packet);
+    }
+    
+    return filteredList;
+  }
+  
+  /**
+   * @param packets the packets to average over, which are only iterated over once
+   * @return the average length (in bytes) of all of the packets, or 0 if there are none
+   */
+  public static long getAveragePacketLength(Iterable<Packet<EthernetHeader>> packets) {
     long lengthSum = 0;
+    long count = 0;
     
-    for (Packet<EthernetHeader> packet : this) {
+    for (Packet<EthernetHeader> packet : packets) {
       lengthSum += packet.getLength();
+      ++count;
     }
     
-    return lengthSum / size();
+    return count > 0 ? lengthSum / count : 0;
   }
   
   /**
@@ -47,6 +76,10 @@ public class EthernetFrameList extends ArrayList<Packet<EthernetHeader>> {
    * @return whether or not the packet passes all filters
    */
   protected boolean passesAllFilters(Packet<EthernetHeader> packet, Filter[] filters) {
+    return matchesAll(packet, filters);
+  }
+  
+  private static boolean matchesAll(Packet<EthernetHeader> packet, Filter[] filters) {
     for (Filter filter : filters) {
       if (!filter.shouldUse(packet)) return false;
     }
@@ -0,0 +1,343 @@
+package main;
+
+import header.EthernetHeader;
+import header.GlobalHeader;
+import header.RecordHeader;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import filter.RawFilter;
+import io.BufferReader;
+import data.Packet;
+
+/**
+ * Follows a LibPcap file that is still being written to, e.g. by tcpdump, handing every
+ * record to a visitor as soon as it has been completely written. A record whose bytes
+ * haven't all landed yet is left alone until the next poll.
+ * <p>
+ * The file is checked for rotation whenever there is nothing new to read: if it was
+ * truncated, or the path now leads to a different file, following starts over from the
+ * beginning of the new file.
+ */
+public class LibpcapFollower implements Runnable, Closeable {
+  /** The default time to wait between polls when there is no new data, in milliseconds. */
+  public static final long DEFAULT_POLL_INTERVAL = 10;
+  
+  /**
+   * The initial size of the buffer new records are read into, and so the most bytes to
+   * hand out in a single poll unless a single record is bigger.
+   */
+  private static final int BUFFER_SIZE = 1024 * 1024;
+  
+  /**
+   * The longest captured length that is accepted even if the snap length is shorter,
+   * which is what libpcap itself accepts.
+   */
+  private static final long MAX_CAPTURED_LENGTH = 256 * 1024;
+  
+  private final File file;
+  private final PacketVisitor visitor;
+  private long pollInterval = DEFAULT_POLL_INTERVAL;
+  private boolean lazyDecoding;
+  private RawFilter filter;
+  
+  private FileInputStream input;
+  private FileChannel channel;
+  private GlobalHeader globalHeader;
+  private RecordDecoder recordDecoder;
+  private long offset;
+  private int rotations;
+  private volatile boolean stopped;
+  
+  /** Reused for every poll; the parser copies the records out of it. */
+  private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+  
+  /**
+   * @param file the file to follow, which doesn't have to exist yet
+   * @param visitor the visitor to hand the packets to; following stops once it returns
+   *    {@code false}
+   */
+  public LibpcapFollower(File file, PacketVisitor visitor) {
+    this.file = file;
+    this.visitor = visitor;
+  }
+  
+  /**
+   * Polls the file until the visitor asks to stop, {@link #close()} is called or the
+   * thread is interrupted, waiting for the poll interval whenever there is nothing new.
+   */
+  @Override
+  public void run() {
+    try {
+      while (!stopped) {
+        if (!poll()) Thread.sleep(pollInterval);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  /**
+   * Hands every record that has been completely written since the last poll to the
+   * visitor.
+   * 
+   * @return whether or not any new records were read
+   * @throws IOException
+   * @throws IllegalArgumentException
+   * @throws InstantiationException
+   * @throws IllegalAccessException
+   * @throws InvocationTargetException
+   */
+  public synchronized boolean poll()
+      throws IOException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException {
+    
+    if (stopped || !open()) return false;
+    
+    long size = channel.size();
+    
+    // The file was truncated in place.
+    if (size < offset) {
+      restart();
+      return false;
+    }
+    
+    if (globalHeader == null) {
+      if (size < GlobalHeader.LENGTH) return false;
+      
+      read(0, GlobalHeader.LENGTH);
+      globalHeader = GlobalHeader.decode(buffer);
+      recordDecoder = new RecordDecoder(globalHeader);
+      offset = GlobalHeader.LENGTH;
+    }
+    
+    if (size > offset && readRecords(size)) return true;
+    
+    if (isReplaced()) {
+      close(false);
+      restart();
+    }
+    
+    return false;
+  }
+  
+  /**
+   * Parses the records that have been completely written between the current offset and
+   * {@code size}.
+   */
+  private boolean readRecords(long size)
+      throws IOException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException {
+    
+    long available = size - offset;
+    int end = 0;
+    boolean grown;
+    
+    // Find the end of the last complete record, growing the buffer if a single record
+    // doesn't fit.
+    do {
+      grown = false;
+      read(offset, (int) Math.min(available, buffer.capacity()));
+      buffer.order(recordDecoder.getByteOrder());
+      
+      while (end + RecordDecoder.LENGTH <= buffer.limit()) {
+        buffer.position(end);
+        long capturedDataLength = recordDecoder.getCapturedDataLength(buffer);
+        
+        // Otherwise the follower would wait forever for the rest of the record. The
+        // records before it are handed out first; the next poll starts at this one.
+        if (capturedDataLength > getMaxCapturedDataLength()) {
+          if (end > 0) break;
+          
+          throw new IOException("Record at offset " + offset + " has a captured length of " + 
+              capturedDataLength + ", longer than the snap length of " + globalHeader.getSnapLength());
+        }
+        
+        long recordEnd = end + RecordDecoder.LENGTH + capturedDataLength;
+        
+        if (recordEnd > buffer.limit()) {
+          if (end == 0 && recordEnd <= available) {
+            buffer = ByteBuffer.allocate((int) recordEnd);
+            grown = true;
+          }
+          
+          break;
+        }
+        
+        end = (int) recordEnd;
+      }
+    } while (grown);
+    
+    if (end == 0) return false;
+    
+    buffer.position(0);
+    buffer.limit(end);
+    
+    LibpcapParser parser = new LibpcapParser(new BufferReader(buffer, offset, true), globalHeader);
+    parser.setLazyDecoding(lazyDecoding);
+    parser.setFilter(filter);
+    
+    parser.parse(new PacketVisitor() {
+      @Override
+      public boolean visit(RecordHeader record, Packet<EthernetHeader> packet) {
+        if (visitor.visit(record, packet)) return true;
+        
+        stopped = true;
+        return false;
+      }
+    });
+    
+    offset = parser.getOffset();
+    return true;
+  }
+  
+  /**
+   * @return the longest captured length a record of the file can have, which also still
+   *    fits in a buffer
+   */
+  private long getMaxCapturedDataLength() {
+    return Math.min(Math.max(globalHeader.getSnapLength(), MAX_CAPTURED_LENGTH), 
+        Integer.MAX_VALUE - RecordDecoder.LENGTH);
+  }
+  
+  /**
+   * Checks whether the path now leads to a different file than the one being read. As
+   * long as it is the same file, which only ever grows, its length has to be between
+   * the sizes of the open file taken before and after it.
+   */
+  private boolean isReplaced() throws IOException {
+    if (!file.exists()) return false;
+    
+    long before = channel.size();
+    long length = file.length();
+    long after = channel.size();
+    
+    return length < before || length > after;
+  }
+  
+  /**
+   * Opens the file if it isn't open yet.
+   * 
+   * @return whether or not the file is open
+   */
+  private boolean open() {
+    if (channel != null) return true;
+    
+    try {
+      input = new FileInputStream(file);
+    } catch (FileNotFoundException e) {
+      return false;
+    }
+    
+    channel = input.getChannel();
+    return true;
+  }
+  
+  private void restart() {
+    globalHeader = null;
+    recordDecoder = null;
+    offset = 0;
+    rotations++;
+  }
+  
+  /**
+   * Reads {@code length} bytes of the file into the buffer, which has to be big enough.
+   */
+  private void read(long position, int length) throws IOException {
+    buffer.clear();
+    buffer.limit(length);
+    
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+    }
+    
+    buffer.flip();
+  }
+  
+  /**
+   * @param stop whether to stop following as well
+   */
+  private void close(boolean stop) throws IOException {
+    if (stop) stopped = true;
+    if (input != null) input.close();
+    
+    input = null;
+    channel = null;
+  }
+  
+  /**
+   * Stops following the file. Can be called from any thread; a poll that is in progress
+   * is finished first.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    close(true);
+  }
+  
+  /**
+   * @param pollInterval the time to wait between polls when there is no new data, in
+   *    milliseconds
+   */
+  public void setPollInterval(long pollInterval) {
+    this.pollInterval = pollInterval;
+  }
+  
+  public long getPollInterval() {
+    return pollInterval;
+  }
+  
+  /**
+   * @param lazyDecoding whether or not to decode packets lazily
+   * @see CaptureParser#setLazyDecoding(boolean)
+   */
+  public void setLazyDecoding(boolean lazyDecoding) {
+    this.lazyDecoding = lazyDecoding;
+  }
+  
+  /**
+   * @param filter the filter to run against the raw bytes of every record, or
+   *    {@code null} to keep every record
+   * @see CaptureParser#setFilter(RawFilter)
+   */
+  public void setFilter(RawFilter filter) {
+    this.filter = filter;
+  }
+  
+  /**
+   * @return the global header of the file currently being followed, or {@code null} if
+   *    it hasn't been written yet
+   */
+  public synchronized GlobalHeader getGlobalHeader() {
+    return globalHeader;
+  }
+  
+  /**
+   * @return the offset in the current file up to which records have been read
+   */
+  public synchronized long getOffset() {
+    return offset;
+  }
+  
+  /**
+   * @return how many times the file was found to be truncated or replaced
+   */
+  public synchronized int getRotations() {
+    return rotations;
+  }
+  
+  public boolean isStopped() {
+    return stopped;
+  }
+  
+  public File getFile() {
+    return file;
+  }
+}
@@ -0,0 +1,338 @@
+package main;
+
+import header.GlobalHeader;
+import header.RecordHeader;
+import io.MappedReader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Sparse index of a LibPcap file that maps record numbers and timestamps to the offsets
+ * of records, so that a parser can start at a given record or time instead of at the
+ * beginning of the file. Every {@code interval}th record gets an entry; seeking to a
+ * record between two entries only reads the record headers in between.
+ * <p>
+ * The index is built in a single pass over the record headers and can be kept in a
+ * sidecar file next to the capture, see {@link #forCapture(File)}. A sidecar file
+ * remembers the size and modification time of the capture, so a capture that has been
+ * written to since is indexed again.
+ * <p>
+ * Captures don't have to be in timestamp order. Every entry keeps the latest timestamp
+ * of the records before it, so seeking to a time never skips a record at or after that
+ * time.
+ */
+public class LibpcapIndex {
+  /** The default number of records between entries. */
+  public static final int DEFAULT_INTERVAL = 1024;
+  
+  /** The extension added to the name of the capture for its sidecar index file. */
+  public static final String EXTENSION = ".idx";
+  
+  private static final int MAGIC_NUMBER = 0x50494458;
+  private static final int VERSION = 1;
+  
+  private final File capture;
+  private final GlobalHeader globalHeader;
+  private final RecordDecoder recordDecoder;
+  private final int interval;
+  private final long captureSize;
+  private final long captureModified;
+  private final long numRecords;
+  
+  private final long[] offsets;
+  
+  /** The latest timestamp of the records before each entry, in nanoseconds. */
+  private final long[] timestamps;
+  
+  private LibpcapIndex(File capture, GlobalHeader globalHeader, int interval, long captureSize,
+      long captureModified, long numRecords, long[] offsets, long[] timestamps) {
+    
+    this.capture = capture;
+    this.globalHeader = globalHeader;
+    this.recordDecoder = new RecordDecoder(globalHeader);
+    this.interval = interval;
+    this.captureSize = captureSize;
+    this.captureModified = captureModified;
+    this.numRecords = numRecords;
+    this.offsets = offsets;
+    this.timestamps = timestamps;
+  }
+  
+  /**
+   * Reads the sidecar index of a capture, or builds it and writes it next to the capture
+   * if it doesn't exist, can't be read or the capture has changed since.
+   * 
+   * @param capture the LibPcap file
+   * @return the index of the capture
+   * @throws IOException if there was an error while reading either file or writing the
+   *    index
+   */
+  public static LibpcapIndex forCapture(File capture) throws IOException {
+    File indexFile = new File(capture.getPath() + EXTENSION);
+    
+    if (indexFile.exists()) {
+      try {
+        LibpcapIndex index = read(capture, indexFile);
+        if (index.isCurrent()) return index;
+      } catch (IOException e) {
+        // A damaged sidecar file is only a cache, so it is replaced.
+      }
+    }
+    
+    LibpcapIndex index = build(capture, DEFAULT_INTERVAL);
+    index.write(indexFile);
+    return index;
+  }
+  
+  /**
+   * Builds the index of a capture by walking its record headers.
+   * 
+   * @param capture the LibPcap file
+   * @param interval the number of records between entries, at least 1
+   * @return the index of the capture
+   * @throws IOException if there was an error while reading from the file, or the file
+   *    isn't a LibPcap file
+   */
+  public static LibpcapIndex build(File capture, int interval) throws IOException {
+    if (interval <= 0) throw new IllegalArgumentException("Invalid interval: " + interval);
+    
+    long captureModified = capture.lastModified();
+    MappedReader reader = new MappedReader(capture);
+    
+    try {
+      GlobalHeader globalHeader = GlobalHeader.decode(reader.read(GlobalHeader.LENGTH));
+      RecordDecoder recordDecoder = new RecordDecoder(globalHeader);
+      
+      long[] offsets = new long[16];
+      long[] timestamps = new long[16];
+      int numEntries = 0;
+      long numRecords = 0;
+      long latest = Long.MIN_VALUE;
+      
+      while (reader.hasMoreData()) {
+        long offset = reader.getOffset();
+        RecordHeader record = recordDecoder.decode(reader.read(RecordDecoder.LENGTH, recordDecoder.getByteOrder()));
+        
+        if (numRecords % interval == 0) {
+          if (numEntries == offsets.length) {
+            offsets = Arrays.copyOf(offsets, numEntries * 2);
+            timestamps = Arrays.copyOf(timestamps, numEntries * 2);
+          }
+          
+          offsets[numEntries] = offset;
+          timestamps[numEntries] = latest;
+          numEntries++;
+        }
+        
+        reader.skip(record.getCapturedDataLength());
+        latest = Math.max(latest, record.getTimestampNanos());
+        numRecords++;
+      }
+      
+      return new LibpcapIndex(capture, globalHeader, interval, reader.getOffset(), captureModified, numRecords,
+          Arrays.copyOf(offsets, numEntries), Arrays.copyOf(timestamps, numEntries));
+    } finally {
+      reader.close();
+    }
+  }
+  
+  /**
+   * Reads an index that was written by {@link #write(File)}.
+   * 
+   * @param capture the LibPcap file the index belongs to
+   * @param indexFile the file the index was written to
+   * @return the index of the capture
+   * @throws IOException if there was an error while reading from either file, or the
+   *    index file isn't an index or is damaged
+   */
+  public static LibpcapIndex read(File capture, File indexFile) throws IOException {
+    DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+    
+    try {
+      if (input.readInt() != MAGIC_NUMBER) throw new IOException("Not a capture index: " + indexFile);
+      if (input.readInt() != VERSION) throw new IOException("Unsupported capture index version: " + indexFile);
+      
+      int interval = input.readInt();
+      long captureSize = input.readLong();
+      long captureModified = input.readLong();
+      long numRecords = input.readLong();
+      int numEntries = input.readInt();
+      
+      // Every interval records starting from the first have an entry, and every entry
+      // takes two longs of the file.
+      if (interval <= 0 || numRecords < 0 || numEntries != (numRecords == 0 ? 0 : (numRecords - 1) / interval + 1) || 
+          numEntries * 16L > indexFile.length()) {
+        throw new IOException("Damaged capture index: " + indexFile);
+      }
+      
+      long[] offsets = new long[numEntries];
+      long[] timestamps = new long[numEntries];
+      
+      for (int i = 0; i < numEntries; ++i) {
+        offsets[i] = input.readLong();
+        timestamps[i] = input.readLong();
+      }
+      
+      MappedReader reader = new MappedReader(capture, GlobalHeader.LENGTH);
+      GlobalHeader globalHeader;
+      
+      try {
+        globalHeader = GlobalHeader.decode(reader.read(GlobalHeader.LENGTH));
+      } finally {
+        reader.close();
+      }
+      
+      return new LibpcapIndex(capture, globalHeader, interval, captureSize, captureModified, numRecords,
+          offsets, timestamps);
+    } finally {
+      input.close();
+    }
+  }
+  
+  /**
+   * Writes the index to a file, e.g. a sidecar file next to the capture.
+   * 
+   * @param indexFile the file to write to
+   * @throws IOException if there was an error while writing to the file
+   */
+  public void write(File indexFile) throws IOException {
+    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+    
+    try {
+      output.writeInt(MAGIC_NUMBER);
+      output.writeInt(VERSION);
+      output.writeInt(interval);
+      output.writeLong(captureSize);
+      output.writeLong(captureModified);
+      output.writeLong(numRecords);
+      output.writeInt(offsets.length);
+      
+      for (int i = 0; i < offsets.length; ++i) {
+        output.writeLong(offsets[i]);
+        output.writeLong(timestamps[i]);
+      }
+    } finally {
+      output.close();
+    }
+  }
+  
+  /**
+   * @return whether or not the capture still has the size and modification time it had
+   *    when it was indexed
+   */
+  public boolean isCurrent() {
+    return capture.length() == captureSize && capture.lastModified() == captureModified;
+  }
+  
+  /**
+   * Opens a parser at a record.
+   * 
+   * @param recordNumber the number of the record to start at, counting from 0
+   * @return a memory mapped parser whose first packet is the record, or which has no
+   *    packets if the capture has fewer records
+   * @throws IOException if there was an error while reading from the file
+   */
+  public LibpcapParser openAtRecord(long recordNumber) throws IOException {
+    MappedReader reader = new MappedReader(capture);
+    
+    if (recordNumber >= numRecords) {
+      reader.seek(captureSize);
+    } else {
+      int entry = (int) (Math.max(0, recordNumber) / interval);
+      reader.seek(offsets[entry]);
+      
+      for (long record = (long) entry * interval; record < recordNumber; ++record) {
+        skipRecord(reader);
+      }
+    }
+    
+    return new LibpcapParser(reader, globalHeader);
+  }
+  
+  /**
+   * Opens a parser at a point in time. The parser starts at the first record with a
+   * timestamp at or after {@code timestamp}, after which it reads on in file order. The
+   * records of a time range can be read by stopping at the first record after its end,
+   * as long as the capture is in timestamp order, so the cost is in proportion to the
+   * size of the range rather than of the file.
+   * 
+   * @param timestamp the time to start at, in nanoseconds since the epoch
+   * @return a memory mapped parser whose first packet is the first record at or after
+   *    {@code timestamp}, or which has no packets if there is none
+   * @throws IOException if there was an error while reading from the file
+   */
+  public LibpcapParser openAtTimestamp(long timestamp) throws IOException {
+    MappedReader reader = new MappedReader(capture);
+    
+    // The last entry that only has earlier records before it.
+    int low = 0;
+    int high = offsets.length - 1;
+    
+    while (low < high) {
+      int middle = (low + high + 1) >>> 1;
+      
+      if (timestamps[middle] < timestamp) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
+    }
+    
+    reader.seek(offsets.length > 0 ? offsets[low] : captureSize);
+    
+    while (reader.hasMoreData()) {
+      long offset = reader.getOffset();
+      RecordHeader record = recordDecoder.decode(reader.read(RecordDecoder.LENGTH, recordDecoder.getByteOrder()));
+      
+      if (record.getTimestampNanos() >= timestamp) {
+        reader.seek(offset);
+        break;
+      }
+      
+      reader.skip(record.getCapturedDataLength());
+    }
+    
+    return new LibpcapParser(reader, globalHeader);
+  }
+  
+  private void skipRecord(MappedReader reader) throws IOException {
+    reader.skip(recordDecoder.getCapturedDataLength(reader.read(RecordDecoder.LENGTH, recordDecoder.getByteOrder())));
+  }
+  
+  public File getCapture() {
+    return capture;
+  }
+  
+  public GlobalHeader getGlobalHeader() {
+    return globalHeader;
+  }
+  
+  /**
+   * @return the number of records between entries
+   */
+  public int getInterval() {
+    return interval;
+  }
+  
+  /**
+   * @return the number of records in the capture
+   */
+  public long getRecordCount() {
+    return numRecords;
+  }
+  
+  /**
+   * @return the number of entries in the index
+   */
+  public int getEntryCount() {
+    return offsets.length;
+  }
+}
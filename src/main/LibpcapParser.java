@@ -1,41 +1,29 @@
 package main;
 
 import header.EthernetHeader;
+import header.GlobalHeader;
 import header.Header;
-import header.Header.HeaderField;
-import header.Header.TypeMapper;
+import header.HeaderDecoder;
 import header.RecordHeader;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import data.ByteData;
+import io.Reader;
 import data.Data;
 import data.Packet;
 
-public class LibpcapParser {
-  private final long fileSize;
-  private final InputStream input;
-  private final Reader reader;
-  private int offset;
-  private Map<Class<? extends Header>, List<Field>> sortedFieldsMap;
-  
-  private static final int GLOBAL_HEADER_LENGTH = 24;
+public class LibpcapParser extends CaptureParser {
+  private GlobalHeader globalHeader;
+  private RecordDecoder recordDecoder;
+  private LinkDecoder linkDecoder;
   
   /**
    * Turns an array of bytes into an array of bits.
@@ -44,82 +32,137 @@ public class LibpcapParser {
    * @return the corresponding array of bits
    */
   public static short[] toBitArray(ByteBuffer byteBuffer) {
-    byte[] bytes = byteBuffer.array();
-    short[] bits = new short[bytes.length * 8];
+    return Header.toBitArray(byteBuffer);
+  }
+  
+  /**
+   * @param libpcapFile the file to parse, which may be gzip compressed
+   * @throws IOException if the file could not be opened
+   */
+  public LibpcapParser(File libpcapFile) throws IOException {
+    this(libpcapFile, false);
+  }
+  
+  /**
+   * @param libpcapFile the file to parse, which may be gzip compressed
+   * @param memoryMapped whether to memory map the file, in which case headers and data
+   *    blobs are slices of the mapping instead of copies
+   * @throws IOException if the file could not be opened
+   */
+  public LibpcapParser(File libpcapFile, boolean memoryMapped) throws IOException {
+    this(openReader(libpcapFile, memoryMapped));
+  }
+  
+  /**
+   * @param reader the reader to parse from, positioned at the start of the file
+   */
+  public LibpcapParser(Reader reader) {
+    super(reader);
+  }
+  
+  /**
+   * @param reader the reader to parse from, positioned at the start of a record
+   * @param globalHeader the global header of the file the reader reads from
+   * @throws IOException if the link type of the file isn't supported
+   */
+  public LibpcapParser(Reader reader, GlobalHeader globalHeader) throws IOException {
+    super(reader);
+    setGlobalHeader(globalHeader);
+  }
+  
+  @Override
+  public Packet<RecordHeader> nextRecord() 
+      throws IOException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException {
     
-    int offset = 0;
+    if (globalHeader == null) getGlobalHeader();
     
-    for (byte b : bytes) {
-      for (int i = 7; i >= 0; --i) {
-        bits[offset++] = (short) (((int) b >>> i) & 1);
+    Reader reader = getReader();
+    ParserMetrics metrics = getMetrics();
+    
+    while (hasMoreData()) {
+      long start = metrics != null ? System.nanoTime() : 0;
+      ByteBuffer data = reader.readShared(RecordDecoder.LENGTH, recordDecoder.getByteOrder());
+      long capturedDataLength = recordDecoder.getCapturedDataLength(data);
+      
+      // Records outside of the time window cost nothing but their record header.
+      if (!isInTimeWindow(recordDecoder.getTimestampNanos(data))) {
+        reader.skip(capturedDataLength);
+        if (metrics != null) metrics.addRead(System.nanoTime() - start, RecordDecoder.LENGTH + capturedDataLength);
+        continue;
       }
+      
+      RecordHeader recordHeader = recordDecoder.decode(data);
+      
+      // Read the whole frame at once; the headers are decoded from this buffer.
+      ByteBuffer frame = reader.read((int) capturedDataLength);
+      if (metrics != null) metrics.addRead(System.nanoTime() - start, RecordDecoder.LENGTH + capturedDataLength);
+      
+      if (matchesFilter(frame, linkDecoder)) return makeRecord(recordHeader, frame, linkDecoder);
     }
     
-    return bits;
-  }
-  
-  public LibpcapParser(File libpcapFile) throws FileNotFoundException {
-    fileSize = libpcapFile.length();
-    input = new BufferedInputStream(new FileInputStream(libpcapFile));
-    
-    reader = new Reader();
-    offset = 0;
-    
-    sortedFieldsMap = new HashMap<Class<? extends Header>, List<Field>>();
+    return null;
   }
   
   /**
-   * Parses the LibPcap file into a list of ethernet packets.
-   * @return a list of ethernet packets
+   * Parses the file like {@link #parse(PacketVisitor)}, but hands the visitor the same
+   * record header and the same packet and header objects for every record, overwriting
+   * their fields instead of allocating new ones. Frames are read into a buffer that is
+   * reused as well, or are views of the mapping if the file is memory mapped, so once
+   * the first few records have been read parsing allocates next to nothing per record.
+   * <p>
+   * Everything the visitor is handed is only valid until it returns: whatever it wants
+   * to keep has to be copied. Packets are always decoded eagerly, whatever the lazy
+   * decoding setting.
+   * 
+   * @param visitor the visitor to call for each packet
    * @throws IOException
    * @throws IllegalArgumentException
    * @throws InstantiationException
    * @throws IllegalAccessException
    * @throws InvocationTargetException
    */
-  @SuppressWarnings("unchecked")
-  public EthernetFrameList parse() 
+  public void parseReusing(PacketVisitor visitor) 
       throws IOException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException {
     
-    reader.read(GLOBAL_HEADER_LENGTH);
+    if (globalHeader == null) getGlobalHeader();
     
-    EthernetFrameList frameList = new EthernetFrameList();
+    Reader reader = getReader();
+    RecordHeader recordHeader = new RecordHeader();
+    ReusingDecoder decoder = new ReusingDecoder(linkDecoder);
+    ParserMetrics metrics = getMetrics();
     
     while (hasMoreData()) {
-      Packet<RecordHeader> record = parse(RecordHeader.class);
-      frameList.add((Packet<EthernetHeader>) record.getData());
-      
-      // The length should not include the meta-data in the record header.
-      long bytesRead = record.getLength() - record.getHeader().getHeaderLength();
-      long bytesNeeded = record.getHeader().getCapturedDataLength();
+      long start = metrics != null ? System.nanoTime() : 0;
+      recordDecoder.decode(reader.readShared(RecordDecoder.LENGTH, recordDecoder.getByteOrder()), recordHeader);
+      long length = RecordDecoder.LENGTH + recordHeader.getCapturedDataLength();
       
-      // Consume any data in the last packet that wasn't already consumed.
-      if (bytesNeeded > 0) {
-        
-        // Find the packet that had no data (meaning no sub-packet that we
-        // knew how to parse).
-        Packet<? extends Header> currentPacket = record;
-        while (currentPacket.hasNestedPacket()) {
-          currentPacket = (Packet<? extends Header>) currentPacket.getData();
-        }
-
-        // Set that packet's data to a byte buffer of the remaining bytes. These
-        // bytes can very well be other packets, but header classes haven't been
-        // defined for them yet so we just treat them as blobs.
-        ByteBuffer bytes = reader.read((int)(bytesNeeded - bytesRead));
-        ByteData byteData = new ByteData(bytes.array());
-        
-        currentPacket.setData(byteData);
+      if (!isInTimeWindow(recordHeader.getTimestampNanos())) {
+        reader.skip(recordHeader.getCapturedDataLength());
+        if (metrics != null) metrics.addRead(System.nanoTime() - start, length);
+        continue;
       }
+      
+      ByteBuffer frame = reader.readShared((int) recordHeader.getCapturedDataLength(), ByteOrder.BIG_ENDIAN);
+      if (metrics != null) metrics.addRead(System.nanoTime() - start, length);
+      
+      if (!matchesFilter(frame, linkDecoder)) continue;
+      
+      start = metrics != null ? System.nanoTime() : 0;
+      Packet<EthernetHeader> packet = decoder.decode(frame);
+      if (metrics != null) metrics.addDecode(System.nanoTime() - start, packet);
+      
+      // Frames too short to hold an ethernet header are skipped.
+      if (packet == null) continue;
+      
+      if (!visitor.visit(recordHeader, packet)) break;
     }
-    
-    return frameList;
   }
   
   /**
    * Parses a given packet header by extracting the annotated header fields and using their
    * offsets/number of bits to dynamically extract the correct number of bytes and create
-   * the corresponding value for that field.
+   * the corresponding value for that field. The work of finding the fields and their
+   * mapping functions is done once per header type by its {@link HeaderDecoder}.
    * 
    * @param type the type of header to parse
    * @return a packet with an instantiated version of the passed in header type as its header
@@ -133,59 +176,17 @@ public class LibpcapParser {
   public <H extends Header> Packet<H> parse(Class<H> type) 
       throws InstantiationException, IllegalAccessException, IOException, IllegalArgumentException, InvocationTargetException {
     
-    List<Field> headerFields = getSortedFields(type);
-    Map<Class<?>, Method> typeMap = getTypeMap(type);
-  
-    H header = type.newInstance();
-    // Read all we need for the given header at once.
-    ByteBuffer data = reader.read((int) header.getHeaderLength());
-    
-    short[] bits = toBitArray(data);
+    HeaderDecoder<H> decoder = HeaderDecoder.forType(type);
     
-    for (Field headerField : headerFields) {
-      headerField.setAccessible(true);
-      
-      HeaderField annotation = headerField.getAnnotation(HeaderField.class);
-      int bitOffset = annotation.offset();
-      int numBits = annotation.numBits();
-      
-      // Create the byte array for this field, padded as necessary.
-      byte[] fieldBytes = new byte[(int) Math.ceil(numBits / 8.0)];
-      int currentBytePos = 0;
-      int currentBitPos = 0;
-      int lastBitPos = bitOffset + numBits - 1;
-      
-      for (int i = lastBitPos; i >= bitOffset; --i) {
-        currentBitPos = (lastBitPos - i) % 8;
-        
-        // Depending on the endianness that the header expects, we need
-        // to fill the byte array from a given direction.
-        currentBytePos = header.getByteOrder() == ByteOrder.LITTLE_ENDIAN ? 
-            (lastBitPos - i) / 8 : (i - bitOffset) / 8;
-        
-        // Set the bit in the current bit position in the current byte
-        int fieldByte = fieldBytes[currentBytePos];
-        int currentBit = bits[i];
-        fieldByte |= currentBit << currentBitPos;
-        
-        fieldBytes[currentBytePos] = (byte) fieldByte;
-      }
-      
-      // Get the type mapping function for this field's type.
-      Class<?> headerType = headerField.getType();
-      if (!typeMap.containsKey(headerType)) throw new RuntimeException("Unrecognized type '" + headerType + "'");
-      
-      Method mapper = typeMap.get(headerType);
-      
-      Object value = mapper.invoke(null, fieldBytes);
-      headerField.set(header, value);
-    }
+    // Read all we need for the given header at once.
+    ByteBuffer data = getReader().read((int) decoder.getHeaderLength());
+    H header = decoder.decode(data);
     
     // If the header has a sub-packet of some sort, recursively parse the header, else just assign
     // the data to null for now.
     Data packetData = header.getDataPacketHeaderType() != null ? 
         parse(header.getDataPacketHeaderType()) : null;
-        
+    
     return new Packet<H>(header, packetData);
   }
   
@@ -196,20 +197,7 @@ public class LibpcapParser {
    * @return a map of types to mapping functions
    */
   public Map<Class<?>, Method> getTypeMap(Class<? extends Header> type) {
-    Map<Class<?>, Method> typeMap = new HashMap<Class<?>, Method>();
-    
-    for (Method method : type.getMethods()) {
-      method.setAccessible(true);
-      
-      if (method.isAnnotationPresent(TypeMapper.class)) {
-        TypeMapper mapper = method.getAnnotation(TypeMapper.class);
-        Class<?> mappedType = mapper.value();
-        
-        typeMap.put(mappedType, method);
-      }
-    }
-    
-    return typeMap;
+    return HeaderDecoder.getTypeMap(type);
   }
   
   /**
@@ -220,78 +208,30 @@ public class LibpcapParser {
    * @return a sorted list (ascending based on byte offset) of the packet header fields
    */
   public List<Field> getSortedFields(Class<? extends Header> type) {
-    if (sortedFieldsMap.containsKey(type)) return sortedFieldsMap.get(type);
-    
-    Field[] fields = type.getDeclaredFields();
-    List<Field> headerFields = new ArrayList<Field>();
-    
-    for (Field field : fields) {
-      if (field.isAnnotationPresent(HeaderField.class)) {
-        headerFields.add(field);
-      }
-    }
-    
-    Collections.sort(headerFields, new Comparator<Field>() {
-      @Override
-      public int compare(Field first, Field second) {
-        return first.getAnnotation(HeaderField.class).offset() - 
-            second.getAnnotation(HeaderField.class).offset();
-      }
-    });
-    
-    sortedFieldsMap.put(type, headerFields);
-    
-    return headerFields;
+    return HeaderDecoder.getSortedFields(type);
   }
   
-  public boolean hasMoreData() {
-    return offset < fileSize;
-  }
-  
-  public Reader getReader() {
-    return reader;
-  }
-  
-  public int getOffset() {
-    return offset;
+  /**
+   * Gets the global header of the file, reading it first if no records have been read
+   * yet.
+   * 
+   * @return the global header of the file
+   * @throws IOException if the global header couldn't be read, or the file isn't a
+   *    LibPcap file with a supported link type
+   */
+  public GlobalHeader getGlobalHeader() throws IOException {
+    if (globalHeader == null) setGlobalHeader(GlobalHeader.decode(getReader().read(GlobalHeader.LENGTH)));
+    
+    return globalHeader;
   }
   
   /**
-   * Class that aims to wrap reading from the input stream so that we can easily
-   * track how much data has been read from the file.
+   * Picks the record and link decoders for the format of the file once, so records are
+   * decoded without checking the format again.
    */
-  public class Reader {
-    /**
-     * Reads {@code length} bytes from the file at the input stream's current
-     * position.
-     * 
-     * @param length the amount of bytes to read
-     * @return a {@link ByteBuffer} that holds the underlying byte array of the data
-     *    that was read.
-     * @throws IOException if there was an error while reading from the file
-     */
-    public ByteBuffer read(int length) throws IOException {
-      return read(length, ByteOrder.BIG_ENDIAN);
-    }
-    
-    /**
-     * Reads {@code length} bytes from the file at the input stream's current
-     * position.
-     * 
-     * @param length the amount of bytes to read
-     * @param order the endianness of the resulting {@link ByteBuffer}
-     * @return a {@link ByteBuffer} that holds the underlying byte array of the data
-     *    that was read.
-     * @throws IOException if there was an error while reading from the file
-     */
-    public ByteBuffer read(int length, ByteOrder order) throws IOException {
-      byte[] data = new byte[length];
-      input.read(data, 0, length);
-      
-      offset += length;
-      ByteBuffer buffer = ByteBuffer.wrap(data);
-      buffer.order(order);
-      return buffer;
-    }
+  private void setGlobalHeader(GlobalHeader globalHeader) throws IOException {
+    this.linkDecoder = LinkDecoder.forLinkType(globalHeader.getLinkType());
+    this.recordDecoder = new RecordDecoder(globalHeader);
+    this.globalHeader = globalHeader;
   }
 }
@@ -0,0 +1,267 @@
+package main;
+
+import header.EthernetHeader;
+import header.GlobalHeader;
+import header.RecordHeader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import main.EthernetFrameList.Filter;
+import filter.RawFilter;
+import data.Packet;
+
+/**
+ * Writes LibPcap files. Records are written from their record headers and the raw bytes
+ * of their frames, never by encoding decoded headers, and small records are gathered in
+ * a buffer so that the file is written in large blocks.
+ * <p>
+ * Records that are copied from another file of the same format don't have to be read at
+ * all: {@link #transferFrom(FileChannel, long, long)} hands whole ranges of records to
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, which
+ * lets the operating system copy them without them passing through the JVM. The
+ * {@code filter} methods use that to copy the records that pass a filter, joining
+ * adjacent records into a single transfer. Records of compressed files are the
+ * exception: their offsets are in the inflated stream rather than the file, so they are
+ * written from the frames the parser read instead.
+ */
+public class LibpcapWriter implements Closeable {
+  /** The default size of the buffer records are gathered in, in bytes. */
+  public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+  
+  private final FileOutputStream output;
+  private final FileChannel channel;
+  private final GlobalHeader globalHeader;
+  private final RecordDecoder recordDecoder;
+  private final ByteBuffer buffer;
+  private long recordCount;
+  
+  public LibpcapWriter(File file, GlobalHeader globalHeader) throws IOException {
+    this(file, globalHeader, DEFAULT_BUFFER_SIZE);
+  }
+  
+  /**
+   * Creates the file, or empties it if it exists, and writes the global header.
+   * 
+   * @param file the file to write to
+   * @param globalHeader the global header of the file, which gives the format of the
+   *    records
+   * @param bufferSize the size of the buffer records are gathered in, in bytes
+   * @throws IOException if the file could not be created
+   */
+  public LibpcapWriter(File file, GlobalHeader globalHeader, int bufferSize) throws IOException {
+    this.output = new FileOutputStream(file);
+    this.channel = output.getChannel();
+    this.globalHeader = globalHeader;
+    this.recordDecoder = new RecordDecoder(globalHeader);
+    this.buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, GlobalHeader.LENGTH));
+    
+    globalHeader.encode(buffer);
+  }
+  
+  /**
+   * Copies the records of a LibPcap file that pass all of the filters into a new file
+   * with the same global header. The filters are run against lazily decoded packets.
+   * 
+   * @param source the file to copy from
+   * @param destination the file to write to
+   * @param filters the filters to run against the packets
+   * @return the number of records that were written
+   * @throws IOException if there was an error while reading or writing either file
+   */
+  public static long filter(File source, File destination, Filter...filters) throws IOException {
+    return filter(source, destination, null, filters);
+  }
+  
+  /**
+   * Copies the records of a LibPcap file that match a raw filter into a new file with the
+   * same global header. Only the frames that match are decoded, and only lazily.
+   * 
+   * @param source the file to copy from
+   * @param destination the file to write to
+   * @param filter the filter to run against the raw bytes of every record
+   * @return the number of records that were written
+   * @throws IOException if there was an error while reading or writing either file
+   */
+  public static long filter(File source, File destination, RawFilter filter) throws IOException {
+    return filter(source, destination, filter, new Filter[0]);
+  }
+  
+  private static long filter(File source, File destination, RawFilter rawFilter, final Filter[] filters) 
+      throws IOException {
+    
+    final boolean compressed = CaptureParser.isCompressed(source);
+    
+    // The frame of the record being visited, kept for copying records of compressed files.
+    final ByteBuffer[] frame = new ByteBuffer[1];
+    
+    FileInputStream input = new FileInputStream(source);
+    final LibpcapParser parser = new LibpcapParser(source, true) {
+      @Override
+      protected Packet<RecordHeader> makeRecord(RecordHeader recordHeader, ByteBuffer bytes, LinkDecoder linkDecoder)
+          throws InstantiationException, IllegalAccessException, InvocationTargetException {
+        
+        if (compressed) frame[0] = bytes.duplicate();
+        return super.makeRecord(recordHeader, bytes, linkDecoder);
+      }
+    };
+    
+    try {
+      final FileChannel sourceChannel = input.getChannel();
+      final LibpcapWriter writer = new LibpcapWriter(destination, parser.getGlobalHeader());
+      
+      parser.setLazyDecoding(true);
+      parser.setFilter(rawFilter);
+      
+      try {
+        // The range of the source file that has yet to be copied.
+        final long[] run = new long[2];
+        
+        parser.parse(new PacketVisitor() {
+          @Override
+          public boolean visit(RecordHeader record, Packet<EthernetHeader> packet) {
+            for (Filter filter : filters) {
+              if (!filter.shouldUse(packet)) return true;
+            }
+            
+            long end = parser.getOffset();
+            long start = end - RecordDecoder.LENGTH - record.getCapturedDataLength();
+            
+            try {
+              if (compressed) {
+                writer.write(record, frame[0]);
+                return true;
+              }
+              
+              if (start != run[1]) {
+                writer.transferFrom(sourceChannel, run[0], run[1] - run[0]);
+                run[0] = start;
+              }
+            } catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+            
+            run[1] = end;
+            writer.recordCount++;
+            return true;
+          }
+        });
+        
+        writer.transferFrom(sourceChannel, run[0], run[1] - run[0]);
+        return writer.recordCount;
+      } catch (IOException e) {
+        throw e;
+      } catch (Exception e) {
+        // The visitor can only throw the writer's IOExceptions wrapped.
+        if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+        throw new RuntimeException(e);
+      } finally {
+        writer.close();
+      }
+    } finally {
+      parser.close();
+      input.close();
+    }
+  }
+  
+  /**
+   * Writes a record.
+   * 
+   * @param record the header of the record; its timestamp is converted to the precision
+   *    of the file if needed
+   * @param frame the captured bytes of the frame, from the buffer's position to its
+   *    limit, which has to hold as many bytes as the record's captured length
+   * @throws IOException if there was an error while writing to the file
+   */
+  public void write(RecordHeader record, ByteBuffer frame) throws IOException {
+    if (frame.remaining() != record.getCapturedDataLength()) {
+      throw new IllegalArgumentException("The frame doesn't have the captured length of the record");
+    }
+    
+    if (buffer.remaining() < RecordDecoder.LENGTH) flush();
+    recordDecoder.encode(record, buffer);
+    
+    if (buffer.remaining() < frame.remaining()) {
+      flush();
+      
+      // Frames that don't fit in the buffer are written straight to the file.
+      if (buffer.remaining() < frame.remaining()) {
+        write(frame.duplicate());
+        recordCount++;
+        return;
+      }
+    }
+    
+    buffer.put(frame.duplicate());
+    recordCount++;
+  }
+  
+  /**
+   * Copies raw records from another file without reading them into the JVM. The records
+   * have to be whole and in the format of this file, e.g. from a file with the same
+   * global header.
+   * 
+   * @param source the channel of the file to copy from
+   * @param position the offset in the source file of the first record to copy
+   * @param length the number of bytes to copy
+   * @throws IOException if there was an error while reading or writing either file
+   */
+  public void transferFrom(FileChannel source, long position, long length) throws IOException {
+    if (length <= 0) return;
+    
+    flush();
+    
+    long transferred = 0;
+    
+    while (transferred < length) {
+      long count = source.transferTo(position + transferred, length - transferred, channel);
+      if (count <= 0) throw new IOException("The source file ended before " + (position + length));
+      
+      transferred += count;
+    }
+  }
+  
+  /**
+   * Writes the records gathered in the buffer to the file.
+   * 
+   * @throws IOException if there was an error while writing to the file
+   */
+  public void flush() throws IOException {
+    buffer.flip();
+    write(buffer);
+    buffer.clear();
+  }
+  
+  private void write(ByteBuffer data) throws IOException {
+    while (data.hasRemaining()) {
+      channel.write(data);
+    }
+  }
+  
+  public GlobalHeader getGlobalHeader() {
+    return globalHeader;
+  }
+  
+  /**
+   * @return the number of records written with {@link #write(RecordHeader, ByteBuffer)}
+   *    or by the {@code filter} methods
+   */
+  public long getRecordCount() {
+    return recordCount;
+  }
+  
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      output.close();
+    }
+  }
+}
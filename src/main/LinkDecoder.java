@@ -0,0 +1,260 @@
+package main;
+
+import header.EthernetHeader;
+import header.GlobalHeader;
+import header.Header;
+import header.HeaderDecoder;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+
+import data.ByteData;
+import data.Data;
+import data.LazyPacket;
+import data.Packet;
+
+/**
+ * Decodes the link layer of the frames in a capture. There is one decoder per link type,
+ * picked once from the {@link GlobalHeader}, so frames are decoded without checking the
+ * format of the capture again. Link layers other than ethernet are decoded into an
+ * {@link EthernetHeader} standing in for them, so the rest of the parser only ever deals
+ * with ethernet packets.
+ */
+public abstract class LinkDecoder {
+  private static final int ETHERTYPE_IP = 0x0800;
+  private static final int ETHERTYPE_IPV6 = 0x86DD;
+  
+  private static final LinkDecoder ETHERNET = new LinkDecoder(14) {
+    private static final int ETHER_TYPE_OFFSET = 12;
+    
+    @Override
+    public int getEtherType(ByteBuffer frame) {
+      int start = frame.position();
+      if (frame.remaining() < getHeaderLength()) return -1;
+      
+      return (frame.get(start + ETHER_TYPE_OFFSET) & 0xFF) << 8 | (frame.get(start + ETHER_TYPE_OFFSET + 1) & 0xFF);
+    }
+    
+    @Override
+    public Data decode(ByteBuffer frame, boolean lazy) 
+        throws InstantiationException, IllegalAccessException, InvocationTargetException {
+      return lazy ? LazyPacket.view(EthernetHeader.class, frame) : decode(EthernetHeader.class, frame);
+    }
+    
+    @Override
+    public boolean decode(ByteBuffer frame, EthernetHeader header) 
+        throws IllegalAccessException, InvocationTargetException {
+      
+      if (frame.remaining() < getHeaderLength()) return false;
+      
+      HeaderDecoder.forType(EthernetHeader.class).decode(frame, header);
+      return true;
+    }
+  };
+  
+  private static final LinkDecoder RAW_IP = new SyntheticLinkDecoder(0) {
+    @Override
+    public int getEtherType(ByteBuffer frame) {
+      if (!frame.hasRemaining()) return -1;
+      
+      switch ((frame.get(frame.position()) & 0xFF) >>> 4) {
+        case 4:
+          return ETHERTYPE_IP;
+        case 6:
+          return ETHERTYPE_IPV6;
+        default:
+          return -1;
+      }
+    }
+  };
+  
+  private static final LinkDecoder IPV4 = new SyntheticLinkDecoder(0) {
+    @Override
+    public int getEtherType(ByteBuffer frame) {
+      return frame.hasRemaining() ? ETHERTYPE_IP : -1;
+    }
+  };
+  
+  private static final LinkDecoder LINUX_SLL = new SyntheticLinkDecoder(16) {
+    private static final int ADDRESS_LENGTH_OFFSET = 4;
+    private static final int ADDRESS_OFFSET = 6;
+    private static final int PROTOCOL_OFFSET = 14;
+    
+    @Override
+    public int getEtherType(ByteBuffer frame) {
+      int start = frame.position();
+      if (frame.remaining() < getHeaderLength()) return -1;
+      
+      return (frame.get(start + PROTOCOL_OFFSET) & 0xFF) << 8 | (frame.get(start + PROTOCOL_OFFSET + 1) & 0xFF);
+    }
+    
+    /**
+     * Cooked captures only have the address of the sender, which is used as the source
+     * address if it is a MAC address.
+     */
+    @Override
+    protected byte[] getSourceAddress(ByteBuffer frame, byte[] address) {
+      int start = frame.position();
+      boolean hasMacAddress = frame.getShort(start + ADDRESS_LENGTH_OFFSET) == address.length;
+      
+      for (int i = 0; i < address.length; ++i) {
+        address[i] = hasMacAddress ? frame.get(start + ADDRESS_OFFSET + i) : 0;
+      }
+      
+      return address;
+    }
+  };
+  
+  private final int headerLength;
+  
+  private LinkDecoder(int headerLength) {
+    this.headerLength = headerLength;
+  }
+  
+  /**
+   * @param linkType the link type of a capture, e.g. {@link GlobalHeader#LINKTYPE_ETHERNET}
+   * @return the decoder for the link type
+   * @throws IOException if the link type isn't supported
+   */
+  public static LinkDecoder forLinkType(int linkType) throws IOException {
+    switch (linkType) {
+      case GlobalHeader.LINKTYPE_ETHERNET:
+        return ETHERNET;
+      case GlobalHeader.LINKTYPE_RAW:
+        return RAW_IP;
+      case GlobalHeader.LINKTYPE_IPV4:
+        return IPV4;
+      case GlobalHeader.LINKTYPE_LINUX_SLL:
+        return LINUX_SLL;
+      default:
+        throw new IOException("Unsupported link type " + linkType);
+    }
+  }
+  
+  /**
+   * @param frame the bytes of a frame, from the buffer's position to its limit
+   * @return the ethertype of the frame's data, or -1 if the frame is too short or its
+   *    data isn't recognized
+   */
+  public abstract int getEtherType(ByteBuffer frame);
+  
+  /**
+   * @param frame the bytes of a frame, from the buffer's position to its limit
+   * @param lazy whether to return a {@link LazyPacket} rather than decoding every layer
+   * @return the frame's ethernet packet, or {@code null} if the frame is too short for
+   *    its link layer header
+   * @throws InstantiationException
+   * @throws IllegalAccessException
+   * @throws InvocationTargetException
+   */
+  public abstract Data decode(ByteBuffer frame, boolean lazy) 
+      throws InstantiationException, IllegalAccessException, InvocationTargetException;
+  
+  /**
+   * Decodes the link layer header of a frame into an existing header, e.g. to reuse a
+   * single header for every frame.
+   * 
+   * @param frame the bytes of a frame, from the buffer's position to its limit
+   * @param header the header to store the decoded values in
+   * @return whether or not the frame was long enough for its link layer header
+   * @throws IllegalAccessException
+   * @throws InvocationTargetException
+   */
+  public abstract boolean decode(ByteBuffer frame, EthernetHeader header) 
+      throws IllegalAccessException, InvocationTargetException;
+  
+  /**
+   * @return the length of the link layer header, i.e. the offset of the network layer
+   *    from the start of a frame
+   */
+  public int getHeaderLength() {
+    return headerLength;
+  }
+  
+  /**
+   * Decodes a packet and all of the packets nested in it from {@code bytes}. The data of
+   * the innermost packet is a blob of the bytes that are left over, because header
+   * classes haven't been defined for them yet.
+   * 
+   * @param type the type of the packet's header
+   * @param bytes the bytes of the packet, from the buffer's position to its limit
+   * @return the decoded packet, or a blob if there aren't enough bytes for the header
+   * @throws InstantiationException
+   * @throws IllegalAccessException
+   * @throws InvocationTargetException
+   */
+  static <H extends Header> Data decode(Class<H> type, ByteBuffer bytes) 
+      throws InstantiationException, IllegalAccessException, InvocationTargetException {
+    
+    HeaderDecoder<H> decoder = HeaderDecoder.forType(type);
+    int headerLength = (int) decoder.getHeaderLength();
+    
+    if (bytes.remaining() < headerLength) return new ByteData(bytes.slice());
+    
+    H header = decoder.decode(bytes);
+    bytes.position(bytes.position() + headerLength);
+    
+    return new Packet<H>(header, decodeData(header.getDataPacketHeaderType(), bytes));
+  }
+  
+  private static Data decodeData(Class<? extends Header> type, ByteBuffer bytes) 
+      throws InstantiationException, IllegalAccessException, InvocationTargetException {
+    return type != null ? decode(type, bytes) : new ByteData(bytes.slice());
+  }
+  
+  /**
+   * Decoder for link layers that are decoded into a made up {@link EthernetHeader}.
+   */
+  private abstract static class SyntheticLinkDecoder extends LinkDecoder {
+    private SyntheticLinkDecoder(int headerLength) {
+      super(headerLength);
+    }
+    
+    @Override
+    public Data decode(ByteBuffer frame, boolean lazy) 
+        throws InstantiationException, IllegalAccessException, InvocationTargetException {
+      
+      int etherType = getEtherType(frame);
+      if (etherType < 0) return null;
+      
+      EthernetHeader header = new EthernetHeader(getSourceAddress(frame, new byte[6]), new byte[6], etherType, 
+          getHeaderLength());
+      ByteBuffer payload = frame.duplicate();
+      payload.position(payload.position() + getHeaderLength());
+      
+      return lazy ? LazyPacket.wrap(header, payload) : 
+          new Packet<EthernetHeader>(header, decodeData(header.getDataPacketHeaderType(), payload));
+    }
+    
+    /**
+     * Reuses the addresses the header already has, so that only the first frame
+     * allocates them.
+     */
+    @Override
+    public boolean decode(ByteBuffer frame, EthernetHeader header) {
+      int etherType = getEtherType(frame);
+      if (etherType < 0) return false;
+      
+      byte[] sourceAddress = header.getSourceMacAddress();
+      byte[] destAddress = header.getDestMacAddress();
+      
+      if (sourceAddress == null || sourceAddress.length != 6) sourceAddress = new byte[6];
+      if (destAddress == null || destAddress.length != 6) destAddress = new byte[6];
+      
+      header.set(getSourceAddress(frame, sourceAddress), destAddress, etherType, getHeaderLength());
+      return true;
+    }
+    
+    /**
+     * @param frame the bytes of a frame, from the buffer's position to its limit
+     * @param address the array to store the address in, which holds zeroes unless it
+     *    was used for an earlier frame
+     * @return {@code address}, holding the source MAC address of the frame, or zeroes if
+     *    it has none
+     */
+    protected byte[] getSourceAddress(ByteBuffer frame, byte[] address) {
+      return address;
+    }
+  }
+}
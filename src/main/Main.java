@@ -1,15 +1,12 @@
 package main;
 
+import filter.FilterCompiler;
 import header.EthernetHeader;
-import header.EthernetHeader.EtherType;
-import header.IpHeader;
-import header.UdpHeader;
 
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 
-import main.EthernetFrameList.Filter;
 import data.Packet;
 
 public class Main {
@@ -19,22 +16,10 @@ public class Main {
     File file = new File("tracert.pcap");
     LibpcapParser parser = new LibpcapParser(file);
     
-    EthernetFrameList packets = parser.parse().getAll(new Filter() {
-      @SuppressWarnings("unchecked")
-      @Override
-      public boolean shouldUse(Packet<EthernetHeader> packet) {
-        EthernetHeader header = packet.getHeader();
-        if (header.getType() != EtherType.IP) return false;
-        
-        Packet<IpHeader> ipPacket = (Packet<IpHeader>) packet.getData();
-        IpHeader ipHeader = ipPacket.getHeader();
-        
-        if (ipHeader.getProtocol() != IpHeader.Protocol.UDP) return false;
-        
-        Packet<UdpHeader> udpPacket = (Packet<UdpHeader>) ipPacket.getData();
-        return udpPacket.getHeader().getProtocol() == UdpHeader.Protocol.DHCP;
-      }
-    });
+    // Only DHCP packets are wanted, so drop everything else before it gets decoded.
+    parser.setFilter(FilterCompiler.compile("udp and port 67"));
+    
+    EthernetFrameList packets = parser.parse();
     
     for (Packet<EthernetHeader> packet : packets) {
       System.out.println(packet);
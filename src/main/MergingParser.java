@@ -0,0 +1,325 @@
+package main;
+
+import header.EthernetHeader;
+import header.RecordHeader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import filter.RawFilter;
+import data.Packet;
+
+/**
+ * Parses several capture files as one, handing out their packets in timestamp order,
+ * e.g. the rotated files of a sensor or the captures of several interfaces. The files
+ * can be LibPcap or pcapng files, see {@link CaptureParser#open(File, boolean)}.
+ * <p>
+ * The files are merged with a heap that holds the next record of every file. A file is
+ * only kept open while its records are being merged: the first record of every file is
+ * read up front to find where it goes, after which the file is closed again until its
+ * turn comes. Rotated files that follow each other in time are therefore read one at a
+ * time, and memory is bounded by the files whose records actually overlap, each of
+ * which holds a single record plus the read-ahead of its reader.
+ * <p>
+ * Records with the same timestamp are handed out in the order of the files. Within a
+ * file, records are handed out in file order, so a file that isn't in timestamp order
+ * itself is only merged approximately.
+ */
+public class MergingParser implements Iterable<Packet<EthernetHeader>>, Closeable {
+  private final List<File> files;
+  private final boolean memoryMapped;
+  private boolean lazyDecoding;
+  private RawFilter filter;
+  private long startTime = Long.MIN_VALUE;
+  private long endTime = Long.MAX_VALUE;
+  private ParserMetrics metrics;
+  
+  private PriorityQueue<Source> sources;
+  
+  /**
+   * @param files the files to merge
+   */
+  public MergingParser(List<File> files) {
+    this(files, false);
+  }
+  
+  /**
+   * @param files the files to merge
+   * @param memoryMapped whether to memory map the files instead of streaming them
+   */
+  public MergingParser(List<File> files, boolean memoryMapped) {
+    this.files = files;
+    this.memoryMapped = memoryMapped;
+  }
+  
+  /**
+   * Parses the files into a single list of ethernet packets, in timestamp order.
+   * 
+   * @return a list of ethernet packets
+   * @throws IOException
+   * @throws IllegalArgumentException
+   * @throws InstantiationException
+   * @throws IllegalAccessException
+   * @throws InvocationTargetException
+   */
+  public EthernetFrameList parse() 
+      throws IOException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException {
+    
+    final EthernetFrameList frameList = new EthernetFrameList();
+    
+    parse(new PacketVisitor() {
+      @Override
+      public boolean visit(RecordHeader record, Packet<EthernetHeader> packet) {
+        return frameList.add(packet);
+      }
+    });
+    
+    return frameList;
+  }
+  
+  /**
+   * Hands the packets of all of the files to {@code visitor}, in timestamp order.
+   * 
+   * @param visitor the visitor to call for each packet
+   * @throws IOException
+   * @throws IllegalArgumentException
+   * @throws InstantiationException
+   * @throws IllegalAccessException
+   * @throws InvocationTargetException
+   */
+  @SuppressWarnings("unchecked")
+  public void parse(PacketVisitor visitor) 
+      throws IOException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException {
+    
+    Packet<RecordHeader> record;
+    
+    while ((record = nextRecord()) != null) {
+      if (!visitor.visit(record.getHeader(), (Packet<EthernetHeader>) record.getData())) break;
+    }
+  }
+  
+  /**
+   * Parses the next record across all of the files.
+   * 
+   * @return the record with the earliest timestamp that hasn't been handed out yet,
+   *    whose data is its ethernet packet, or {@code null} if all of the files have been
+   *    read
+   * @throws IOException
+   * @throws IllegalArgumentException
+   * @throws InstantiationException
+   * @throws IllegalAccessException
+   * @throws InvocationTargetException
+   */
+  public Packet<RecordHeader> nextRecord() 
+      throws IOException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException {
+    
+    if (sources == null) start();
+    
+    Source source = sources.poll();
+    if (source == null) return null;
+    
+    // The first record of a file that hasn't been opened yet is read again.
+    if (source.parser == null) {
+      source.open();
+      source.advance();
+    }
+    
+    Packet<RecordHeader> record = source.next;
+    
+    if (source.advance()) {
+      sources.add(source);
+    } else {
+      source.close();
+    }
+    
+    return record;
+  }
+  
+  /**
+   * Reads the first record of every file to find its place in the heap.
+   */
+  private void start() 
+      throws IOException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException {
+    
+    sources = new PriorityQueue<Source>(Math.max(1, files.size()), new Comparator<Source>() {
+      @Override
+      public int compare(Source a, Source b) {
+        if (a.timestamp != b.timestamp) return a.timestamp < b.timestamp ? -1 : 1;
+        return a.index - b.index;
+      }
+    });
+    
+    for (int i = 0; i < files.size(); ++i) {
+      Source source = new Source(files.get(i), i);
+      source.open();
+      
+      // Only the timestamp is kept until the file is opened again.
+      if (source.advance()) {
+        sources.add(source);
+        source.next = null;
+      }
+      
+      source.close();
+    }
+  }
+  
+  /**
+   * Returns a pull-based iterator over the packets of all of the files, in timestamp
+   * order. The packets can only be iterated over once.
+   * 
+   * @return an iterator over the ethernet packets in the files
+   */
+  @Override
+  public Iterator<Packet<EthernetHeader>> iterator() {
+    return new Iterator<Packet<EthernetHeader>>() {
+      private Packet<EthernetHeader> next;
+      
+      @Override
+      @SuppressWarnings("unchecked")
+      public boolean hasNext() {
+        if (next != null) return true;
+        
+        try {
+          Packet<RecordHeader> record = nextRecord();
+          if (record != null) next = (Packet<EthernetHeader>) record.getData();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+        
+        return next != null;
+      }
+      
+      @Override
+      public Packet<EthernetHeader> next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        
+        Packet<EthernetHeader> packet = next;
+        next = null;
+        return packet;
+      }
+      
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+  
+  /**
+   * @param lazyDecoding whether or not to decode packets lazily
+   * @see CaptureParser#setLazyDecoding(boolean)
+   */
+  public void setLazyDecoding(boolean lazyDecoding) {
+    this.lazyDecoding = lazyDecoding;
+  }
+  
+  public boolean isLazyDecoding() {
+    return lazyDecoding;
+  }
+  
+  /**
+   * @param filter the filter to run against the raw bytes of every record, or
+   *    {@code null} to keep every record
+   * @see CaptureParser#setFilter(RawFilter)
+   */
+  public void setFilter(RawFilter filter) {
+    this.filter = filter;
+  }
+  
+  public RawFilter getFilter() {
+    return filter;
+  }
+  
+  /**
+   * @param startTime the earliest timestamp to keep, in nanoseconds since the epoch
+   * @param endTime the timestamp to keep records until, exclusive
+   * @see CaptureParser#setTimeWindow(long, long)
+   */
+  public void setTimeWindow(long startTime, long endTime) {
+    this.startTime = startTime;
+    this.endTime = endTime;
+  }
+  
+  /**
+   * @param metrics the metrics to gather for all of the files, or {@code null} to not
+   *    gather any
+   * @see CaptureParser#setMetrics(ParserMetrics)
+   */
+  public void setMetrics(ParserMetrics metrics) {
+    this.metrics = metrics;
+  }
+  
+  public List<File> getFiles() {
+    return files;
+  }
+  
+  /**
+   * Closes the files that are still open.
+   */
+  @Override
+  public void close() throws IOException {
+    if (sources == null) return;
+    
+    for (Source source : sources) {
+      source.close();
+    }
+    
+    sources.clear();
+  }
+  
+  /**
+   * A file being merged, along with its next record.
+   */
+  private class Source {
+    private final File file;
+    private final int index;
+    private CaptureParser parser;
+    private Packet<RecordHeader> next;
+    private long timestamp;
+    
+    private Source(File file, int index) {
+      this.file = file;
+      this.index = index;
+    }
+    
+    private void open() throws IOException {
+      parser = CaptureParser.open(file, memoryMapped);
+      parser.setLazyDecoding(lazyDecoding);
+      parser.setFilter(filter);
+      parser.setTimeWindow(startTime, endTime);
+      parser.setMetrics(metrics);
+    }
+    
+    /**
+     * Reads the next record of the file, skipping frames too short to hold an ethernet
+     * header.
+     * 
+     * @return whether or not there was a next record
+     */
+    private boolean advance() 
+        throws IOException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException {
+      
+      do {
+        next = parser.nextRecord();
+      } while (next != null && !next.hasNestedPacket());
+      
+      if (next == null) return false;
+      
+      timestamp = next.getHeader().getTimestampNanos();
+      return true;
+    }
+    
+    private void close() throws IOException {
+      if (parser != null) parser.close();
+      
+      parser = null;
+    }
+  }
+}
@@ -0,0 +1,315 @@
+package main;
+
+import header.EthernetHeader;
+import header.Header;
+import header.IpHeader;
+import header.RecordHeader;
+import header.TcpHeader;
+import header.UdpHeader;
+
+import java.util.Arrays;
+
+import data.Data;
+import data.Packet;
+
+/**
+ * Column store of packet summaries that supports the same filtering and statistical
+ * data as {@link EthernetFrameList}. Instead of keeping an object graph per packet, every
+ * field is kept in a primitive array with one element per packet, which takes a small
+ * fraction of the memory and makes scanning a single field cache friendly.
+ * <p>
+ * The table can be filled by passing it to {@link LibpcapParser#parse(PacketVisitor)}.
+ */
+public class PacketTable implements PacketVisitor {
+  /** Layer flag for packets that have an IP header. */
+  public static final int IP = 1;
+  
+  /** Layer flag for packets that have a TCP header. */
+  public static final int TCP = 1 << 1;
+  
+  /** Layer flag for packets that have a UDP header. */
+  public static final int UDP = 1 << 2;
+  
+  private static final int DEFAULT_CAPACITY = 1024;
+  
+  private int size;
+  
+  private long[] timestamps;
+  private int[] lengths;
+  private int[] frameLengths;
+  private long[] sourceMacAddresses;
+  private long[] destMacAddresses;
+  private short[] etherTypes;
+  private byte[] layers;
+  private int[] sourceIpAddresses;
+  private int[] destIpAddresses;
+  private byte[] protocols;
+  private short[] sourcePorts;
+  private short[] destPorts;
+  private short[] tcpFlags;
+  
+  public PacketTable() {
+    this(DEFAULT_CAPACITY);
+  }
+  
+  /**
+   * @param capacity the number of packets to make room for up front
+   */
+  public PacketTable(int capacity) {
+    timestamps = new long[capacity];
+    lengths = new int[capacity];
+    frameLengths = new int[capacity];
+    sourceMacAddresses = new long[capacity];
+    destMacAddresses = new long[capacity];
+    etherTypes = new short[capacity];
+    layers = new byte[capacity];
+    sourceIpAddresses = new int[capacity];
+    destIpAddresses = new int[capacity];
+    protocols = new byte[capacity];
+    sourcePorts = new short[capacity];
+    destPorts = new short[capacity];
+    tcpFlags = new short[capacity];
+  }
+  
+  @Override
+  public boolean visit(RecordHeader record, Packet<EthernetHeader> packet) {
+    add(record, packet);
+    return true;
+  }
+  
+  /**
+   * Adds a summary of a packet to the table.
+   * 
+   * @param record the record header of the packet
+   * @param packet the packet
+   */
+  @SuppressWarnings("unchecked")
+  public void add(RecordHeader record, Packet<EthernetHeader> packet) {
+    if (size == timestamps.length) grow();
+    
+    int row = size++;
+    EthernetHeader ethernetHeader = packet.getHeader();
+    
+    timestamps[row] = record.getTimestampNanos();
+    lengths[row] = (int) packet.getLength();
+    frameLengths[row] = (int) record.getFrameLength();
+    sourceMacAddresses[row] = toLong(ethernetHeader.getSourceMacAddress());
+    destMacAddresses[row] = toLong(ethernetHeader.getDestMacAddress());
+    etherTypes[row] = (short) ethernetHeader.getTypeCode();
+    layers[row] = 0;
+    
+    Data data = packet.getData();
+    if (!(data instanceof Packet) || !(((Packet<?>) data).getHeader() instanceof IpHeader)) return;
+    
+    Packet<IpHeader> ipPacket = (Packet<IpHeader>) data;
+    IpHeader ipHeader = ipPacket.getHeader();
+    
+    layers[row] = IP;
+    sourceIpAddresses[row] = ipHeader.getSourceIpAddress();
+    destIpAddresses[row] = ipHeader.getDestIpAddress();
+    protocols[row] = (byte) ipHeader.getProtocolNumber();
+    
+    if (!ipPacket.hasNestedPacket()) return;
+    Header transportHeader = ((Packet<?>) ipPacket.getData()).getHeader();
+    
+    if (transportHeader instanceof TcpHeader) {
+      TcpHeader tcpHeader = (TcpHeader) transportHeader;
+      
+      layers[row] |= TCP;
+      sourcePorts[row] = (short) tcpHeader.getSourcePort();
+      destPorts[row] = (short) tcpHeader.getDestPort();
+      tcpFlags[row] = tcpHeader.getFlags();
+    } else if (transportHeader instanceof UdpHeader) {
+      UdpHeader udpHeader = (UdpHeader) transportHeader;
+      
+      layers[row] |= UDP;
+      sourcePorts[row] = (short) udpHeader.getSourcePort();
+      destPorts[row] = (short) udpHeader.getDestPort();
+    }
+  }
+  
+  /**
+   * @param filters the filters to run against the packets in this table
+   * @return a new table that holds the packets that fulfill all of the {@link Filter}s in
+   *    {@code filters}
+   */
+  public PacketTable getAll(Filter...filters) {
+    PacketTable filteredTable = new PacketTable();
+    
+    for (int row = 0; row < size; ++row) {
+      if (passesAllFilters(row, filters)) filteredTable.copyRow(this, row);
+    }
+    
+    return filteredTable;
+  }
+  
+  /**
+   * @return the average length (in bytes) of all of the packets, or 0 if there are none
+   */
+  public long getAveragePacketLength() {
+    long lengthSum = 0;
+    
+    for (int row = 0; row < size; ++row) {
+      lengthSum += lengths[row];
+    }
+    
+    return size > 0 ? lengthSum / size : 0;
+  }
+  
+  public int size() {
+    return size;
+  }
+  
+  /**
+   * @return the timestamp of the packet's record, in nanoseconds since the epoch
+   */
+  public long getTimestamp(int row) {
+    return timestamps[row];
+  }
+  
+  /**
+   * @return the length of the packet as returned by {@link Packet#getLength()}
+   */
+  public int getLength(int row) {
+    return lengths[row];
+  }
+  
+  /**
+   * @return the length of the frame on the wire, which can be larger than the captured
+   *    length
+   */
+  public int getFrameLength(int row) {
+    return frameLengths[row];
+  }
+  
+  /**
+   * @return the source MAC address in the lower 48 bits of a long
+   */
+  public long getSourceMacAddress(int row) {
+    return sourceMacAddresses[row];
+  }
+  
+  /**
+   * @return the destination MAC address in the lower 48 bits of a long
+   */
+  public long getDestMacAddress(int row) {
+    return destMacAddresses[row];
+  }
+  
+  public int getEtherType(int row) {
+    return Header.u(etherTypes[row]);
+  }
+  
+  /**
+   * @return a combination of the {@link #IP}, {@link #TCP} and {@link #UDP} flags for the
+   *    headers the packet has
+   */
+  public int getLayers(int row) {
+    return layers[row];
+  }
+  
+  public boolean hasLayer(int row, int layer) {
+    return (layers[row] & layer) != 0;
+  }
+  
+  /**
+   * @return the source IP address as a big-endian int, or 0 if the packet isn't an IP
+   *    packet
+   */
+  public int getSourceIpAddress(int row) {
+    return sourceIpAddresses[row];
+  }
+  
+  /**
+   * @return the destination IP address as a big-endian int, or 0 if the packet isn't an
+   *    IP packet
+   */
+  public int getDestIpAddress(int row) {
+    return destIpAddresses[row];
+  }
+  
+  public int getProtocol(int row) {
+    return Header.u(protocols[row]);
+  }
+  
+  public int getSourcePort(int row) {
+    return Header.u(sourcePorts[row]);
+  }
+  
+  public int getDestPort(int row) {
+    return Header.u(destPorts[row]);
+  }
+  
+  public int getTcpFlags(int row) {
+    return tcpFlags[row];
+  }
+  
+  /**
+   * @param row the row of the packet against which to run the filters
+   * @param filters the filters to run
+   * @return whether or not the packet passes all filters
+   */
+  protected boolean passesAllFilters(int row, Filter[] filters) {
+    for (Filter filter : filters) {
+      if (!filter.shouldUse(this, row)) return false;
+    }
+    
+    return true;
+  }
+  
+  private void copyRow(PacketTable table, int from) {
+    if (size == timestamps.length) grow();
+    
+    int row = size++;
+    
+    timestamps[row] = table.timestamps[from];
+    lengths[row] = table.lengths[from];
+    frameLengths[row] = table.frameLengths[from];
+    sourceMacAddresses[row] = table.sourceMacAddresses[from];
+    destMacAddresses[row] = table.destMacAddresses[from];
+    etherTypes[row] = table.etherTypes[from];
+    layers[row] = table.layers[from];
+    sourceIpAddresses[row] = table.sourceIpAddresses[from];
+    destIpAddresses[row] = table.destIpAddresses[from];
+    protocols[row] = table.protocols[from];
+    sourcePorts[row] = table.sourcePorts[from];
+    destPorts[row] = table.destPorts[from];
+    tcpFlags[row] = table.tcpFlags[from];
+  }
+  
+  private void grow() {
+    int capacity = Math.max(DEFAULT_CAPACITY, timestamps.length * 2);
+    
+    timestamps = Arrays.copyOf(timestamps, capacity);
+    lengths = Arrays.copyOf(lengths, capacity);
+    frameLengths = Arrays.copyOf(frameLengths, capacity);
+    sourceMacAddresses = Arrays.copyOf(sourceMacAddresses, capacity);
+    destMacAddresses = Arrays.copyOf(destMacAddresses, capacity);
+    etherTypes = Arrays.copyOf(etherTypes, capacity);
+    layers = Arrays.copyOf(layers, capacity);
+    sourceIpAddresses = Arrays.copyOf(sourceIpAddresses, capacity);
+    destIpAddresses = Arrays.copyOf(destIpAddresses, capacity);
+    protocols = Arrays.copyOf(protocols, capacity);
+    sourcePorts = Arrays.copyOf(sourcePorts, capacity);
+    destPorts = Arrays.copyOf(destPorts, capacity);
+    tcpFlags = Arrays.copyOf(tcpFlags, capacity);
+  }
+  
+  private static long toLong(byte[] macAddress) {
+    long value = 0;
+    
+    for (byte b : macAddress) {
+      value = (value << 8) | Header.u(b);
+    }
+    
+    return value;
+  }
+  
+  /**
+   * Simple filter function interface for filtering packets from the table. Filters read
+   * the fields of the packet at {@code row} through the table's accessors.
+   */
+  public static interface Filter {
+    public boolean shouldUse(PacketTable table, int row);
+  }
+}
@@ -0,0 +1,19 @@
+package main;
+
+import header.EthernetHeader;
+import header.RecordHeader;
+import data.Packet;
+
+/**
+ * Callback interface for push-based parsing. The parser hands each record to the visitor
+ * as soon as it has been decoded, so nothing needs to be kept around once the visitor
+ * returns.
+ */
+public interface PacketVisitor {
+  /**
+   * @param record the record header (timestamp and lengths) of the packet
+   * @param packet the ethernet packet contained in the record
+   * @return whether or not the parser should keep going
+   */
+  public boolean visit(RecordHeader record, Packet<EthernetHeader> packet);
+}
@@ -0,0 +1,267 @@
+package main;
+
+import header.GlobalHeader;
+import io.MappedReader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import main.EthernetFrameList.Filter;
+import stats.PacketStatistics;
+
+/**
+ * Parses a single LibPcap file on several threads. The file is first scanned for record
+ * boundaries using only the captured lengths in the record headers, then split into
+ * chunks of whole records that are decoded concurrently. The results are merged back in
+ * the order of the capture.
+ */
+public class ParallelLibpcapParser {
+  /** How many chunks to hand each thread, so that uneven chunks balance out. */
+  private static final int CHUNKS_PER_THREAD = 4;
+  
+  private final File file;
+  private final int numThreads;
+  private ParserMetrics metrics;
+  
+  public ParallelLibpcapParser(File libpcapFile) {
+    this(libpcapFile, Runtime.getRuntime().availableProcessors());
+  }
+  
+  /**
+   * @param libpcapFile the file to parse
+   * @param numThreads the number of threads to decode the file with
+   */
+  public ParallelLibpcapParser(File libpcapFile, int numThreads) {
+    this.file = libpcapFile;
+    this.numThreads = numThreads;
+  }
+  
+  /**
+   * Parses the LibPcap file into a list of ethernet packets.
+   * 
+   * @return a list of ethernet packets, in the order of the capture
+   * @throws IOException if there was an error while reading from the file
+   * @throws InterruptedException if the thread was interrupted while waiting for the
+   *    chunks to be decoded
+   */
+  public EthernetFrameList parse() throws IOException, InterruptedException {
+    return getAll();
+  }
+  
+  /**
+   * Parses the LibPcap file, keeping only the packets that fulfill all of the filters.
+   * The filters are run on the decoding threads, so they have to be thread safe.
+   * 
+   * @param filters the filters to run against the packets
+   * @return a list of the packets that fulfill all of the {@link Filter}s in
+   *    {@code filters}, in the order of the capture
+   * @throws IOException if there was an error while reading from the file
+   * @throws InterruptedException if the thread was interrupted while waiting for the
+   *    chunks to be decoded
+   */
+  public EthernetFrameList getAll(final Filter...filters) throws IOException, InterruptedException {
+    FileInputStream input = new FileInputStream(file);
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    
+    try {
+      final FileChannel channel = input.getChannel();
+      final GlobalHeader globalHeader = readGlobalHeader(channel);
+      List<Long> boundaries = findChunkBoundaries(channel, globalHeader, numThreads * CHUNKS_PER_THREAD);
+      final ParserMetrics sharedMetrics = metrics;
+      List<Future<EthernetFrameList>> chunks = new ArrayList<Future<EthernetFrameList>>();
+      
+      for (int i = 0; i < boundaries.size() - 1; ++i) {
+        final long start = boundaries.get(i);
+        final long end = boundaries.get(i + 1);
+        
+        chunks.add(executor.submit(new Callable<EthernetFrameList>() {
+          @Override
+          public EthernetFrameList call() throws Exception {
+            LibpcapParser parser = new LibpcapParser(
+                new MappedReader(channel, start, end, MappedReader.DEFAULT_WINDOW_SIZE), globalHeader);
+            ParserMetrics chunkMetrics = newChunkMetrics(sharedMetrics);
+            parser.setMetrics(chunkMetrics);
+            
+            try {
+              return EthernetFrameList.getAll(parser, filters);
+            } finally {
+              if (chunkMetrics != null) sharedMetrics.add(chunkMetrics);
+            }
+          }
+        }));
+      }
+      
+      EthernetFrameList frameList = new EthernetFrameList();
+      
+      for (Future<EthernetFrameList> chunk : chunks) {
+        frameList.addAll(getResult(chunk));
+      }
+      
+      return frameList;
+    } finally {
+      executor.shutdownNow();
+      input.close();
+    }
+  }
+  
+  /**
+   * Gathers the statistics of the packets in the LibPcap file. Every chunk is gathered
+   * into statistics of its own on the decoding threads, which are then merged.
+   * 
+   * @return the statistics of all of the packets in the file
+   * @throws IOException if there was an error while reading from the file
+   * @throws InterruptedException if the thread was interrupted while waiting for the
+   *    chunks to be decoded
+   */
+  public PacketStatistics getStatistics() throws IOException, InterruptedException {
+    FileInputStream input = new FileInputStream(file);
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    
+    try {
+      final FileChannel channel = input.getChannel();
+      final GlobalHeader globalHeader = readGlobalHeader(channel);
+      List<Long> boundaries = findChunkBoundaries(channel, globalHeader, numThreads * CHUNKS_PER_THREAD);
+      final ParserMetrics sharedMetrics = metrics;
+      List<Future<PacketStatistics>> chunks = new ArrayList<Future<PacketStatistics>>();
+      
+      for (int i = 0; i < boundaries.size() - 1; ++i) {
+        final long start = boundaries.get(i);
+        final long end = boundaries.get(i + 1);
+        
+        chunks.add(executor.submit(new Callable<PacketStatistics>() {
+          @Override
+          public PacketStatistics call() throws Exception {
+            LibpcapParser parser = new LibpcapParser(
+                new MappedReader(channel, start, end, MappedReader.DEFAULT_WINDOW_SIZE), globalHeader);
+            ParserMetrics chunkMetrics = newChunkMetrics(sharedMetrics);
+            parser.setMetrics(chunkMetrics);
+            PacketStatistics statistics = new PacketStatistics();
+            
+            try {
+              parser.parse(statistics);
+            } finally {
+              if (chunkMetrics != null) sharedMetrics.add(chunkMetrics);
+            }
+            
+            return statistics;
+          }
+        }));
+      }
+      
+      PacketStatistics statistics = new PacketStatistics();
+      
+      for (Future<PacketStatistics> chunk : chunks) {
+        statistics.merge(getResult(chunk));
+      }
+      
+      return statistics;
+    } finally {
+      executor.shutdownNow();
+      input.close();
+    }
+  }
+  
+  /**
+   * @param metrics the metrics that the parsers of all of the chunks add to, or
+   *    {@code null} to not gather any. Every chunk is measured with metrics of its own,
+   *    which are added to these once the chunk is done.
+   * @see CaptureParser#setMetrics(ParserMetrics)
+   */
+  public void setMetrics(ParserMetrics metrics) {
+    this.metrics = metrics;
+  }
+  
+  public ParserMetrics getMetrics() {
+    return metrics;
+  }
+  
+  /**
+   * @param channel the channel of the file
+   * @return the global header of the file
+   * @throws IOException if the global header couldn't be read, or the file isn't a
+   *    LibPcap file
+   */
+  public static GlobalHeader readGlobalHeader(FileChannel channel) throws IOException {
+    MappedReader reader = new MappedReader(channel, 0, channel.size(), GlobalHeader.LENGTH);
+    
+    try {
+      return GlobalHeader.decode(reader.read(GlobalHeader.LENGTH));
+    } finally {
+      reader.close();
+    }
+  }
+  
+  /**
+   * Walks the record headers of the file to split it into chunks of whole records.
+   * 
+   * @param channel the channel of the file to split
+   * @param numChunks the number of chunks to aim for
+   * @return the offsets at which the chunks start, followed by the end of the file
+   * @throws IOException if there was an error while reading from the file
+   */
+  public static List<Long> findChunkBoundaries(FileChannel channel, int numChunks) throws IOException {
+    return findChunkBoundaries(channel, readGlobalHeader(channel), numChunks);
+  }
+  
+  /**
+   * Walks the record headers of the file to split it into chunks of whole records.
+   * 
+   * @param channel the channel of the file to split
+   * @param globalHeader the global header of the file, which gives the byte order of the
+   *    record headers
+   * @param numChunks the number of chunks to aim for
+   * @return the offsets at which the chunks start, followed by the end of the file
+   * @throws IOException if there was an error while reading from the file
+   */
+  public static List<Long> findChunkBoundaries(FileChannel channel, GlobalHeader globalHeader, int numChunks) 
+      throws IOException {
+    
+    long fileSize = channel.size();
+    long chunkSize = Math.max(1, (fileSize - GlobalHeader.LENGTH) / numChunks);
+    
+    RecordDecoder recordDecoder = new RecordDecoder(globalHeader);
+    List<Long> boundaries = new ArrayList<Long>();
+    MappedReader reader = new MappedReader(channel, GlobalHeader.LENGTH, fileSize, MappedReader.DEFAULT_WINDOW_SIZE);
+    long nextBoundary = GlobalHeader.LENGTH;
+    
+    while (reader.hasMoreData()) {
+      long offset = reader.getOffset();
+      if (offset >= nextBoundary) {
+        boundaries.add(offset);
+        nextBoundary = offset + chunkSize;
+      }
+      
+      reader.skip(recordDecoder.getCapturedDataLength(reader.read(RecordDecoder.LENGTH, recordDecoder.getByteOrder())));
+    }
+    
+    boundaries.add(reader.getOffset());
+    reader.close();
+    
+    return boundaries;
+  }
+  
+  /**
+   * @return metrics for a single chunk, or {@code null} if no metrics are gathered
+   */
+  private static ParserMetrics newChunkMetrics(ParserMetrics sharedMetrics) {
+    return sharedMetrics != null ? new ParserMetrics() : null;
+  }
+  
+  private static <T> T getResult(Future<T> chunk) throws IOException, InterruptedException {
+    try {
+      return chunk.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    }
+  }
+}
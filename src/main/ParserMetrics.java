@@ -0,0 +1,297 @@
+package main;
+
+import header.EthernetHeader;
+import header.Header;
+import header.IpHeader;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import data.ByteData;
+import data.Data;
+import data.Packet;
+
+/**
+ * Counters and nanosecond timers for the stages a parser goes through for every record:
+ * reading it from the file, running the raw filter against it and decoding its frame.
+ * Metrics are only gathered by parsers that have been handed an instance with
+ * {@link CaptureParser#setMetrics(ParserMetrics)}; parsers without one only pay for a
+ * null check per stage.
+ * <p>
+ * The counters are atomic, so a single instance can be shared by several parsers and
+ * read from any thread while they parse. Parsers that run side by side all the time are
+ * better off with instances of their own that are {@link #add(ParserMetrics) added} up
+ * once they are done, the way the chunks of a {@link ParallelLibpcapParser} are, so that
+ * they don't contend on the counters. Once {@link #register(String) registered}, the
+ * metrics can be watched over JMX.
+ */
+public class ParserMetrics implements ParserMetricsMBean {
+  /** The JMX domain metrics are registered under. */
+  public static final String DOMAIN = "PcapParser";
+  
+  private final AtomicLong records = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong skippedRecords = new AtomicLong();
+  private final AtomicLong filteredRecords = new AtomicLong();
+  private final AtomicLong decodedPackets = new AtomicLong();
+  private final AtomicLong unparsedBytes = new AtomicLong();
+  private final AtomicLong unknownProtocols = new AtomicLong();
+  
+  private final AtomicLong readNanos = new AtomicLong();
+  private final AtomicLong filterNanos = new AtomicLong();
+  private final AtomicLong decodeNanos = new AtomicLong();
+  
+  private ObjectName objectName;
+  
+  /**
+   * Adds a record that was read from the file, including records that are skipped
+   * because they are outside of the time window.
+   * 
+   * @param nanos the time it took to read the record
+   * @param length the length of the record in the file, including its header
+   */
+  public void addRead(long nanos, long length) {
+    records.incrementAndGet();
+    bytes.addAndGet(length);
+    readNanos.addAndGet(nanos);
+  }
+  
+  /**
+   * Adds a record that was skipped because it is outside of the time window. The record
+   * is added with {@link #addRead(long, long)} as well, once it has been read past.
+   */
+  public void addSkipped() {
+    skippedRecords.incrementAndGet();
+  }
+  
+  /**
+   * @param nanos the time it took to run the raw filter against a record
+   * @param matched whether the record matched the filter
+   */
+  public void addFilter(long nanos, boolean matched) {
+    if (!matched) filteredRecords.incrementAndGet();
+    filterNanos.addAndGet(nanos);
+  }
+  
+  /**
+   * Adds a decoded frame, along with the bytes at the end of it that weren't decoded into
+   * a header. The decoding stops early for one of two reasons: there is no header type
+   * for the next protocol, which counts as an unknown protocol if it is below the
+   * transport layer, or the frame is too short to hold the next header.
+   * 
+   * @param nanos the time it took to decode the frame
+   * @param frame the decoded frame, or {@code null} if it was decoded lazily, in which
+   *    case it isn't inspected since that would decode it
+   */
+  public void addDecode(long nanos, Data frame) {
+    decodedPackets.incrementAndGet();
+    decodeNanos.addAndGet(nanos);
+    
+    if (frame == null) return;
+    
+    Header header = null;
+    Data data = frame;
+    
+    while (data instanceof Packet) {
+      Packet<?> packet = (Packet<?>) data;
+      header = packet.getHeader();
+      data = packet.getData();
+    }
+    
+    if (!(data instanceof ByteData) || data.getLength() == 0) return;
+    
+    unparsedBytes.addAndGet(data.getLength());
+    
+    if (header != null && header.getDataPacketHeaderType() == null && isBelowTransport(header)) {
+      unknownProtocols.incrementAndGet();
+    }
+  }
+  
+  /**
+   * Fragments aren't decoded any further on purpose, so they don't count as an unknown
+   * protocol.
+   */
+  private static boolean isBelowTransport(Header header) {
+    if (header instanceof EthernetHeader) return true;
+    
+    return header instanceof IpHeader && !((IpHeader) header).isFragment();
+  }
+  
+  /**
+   * Adds all of the counters and timers of other metrics to these, e.g. those of a
+   * parser that ran on another thread.
+   * 
+   * @param other the metrics to add, which shouldn't be gathered into at the same time
+   */
+  public void add(ParserMetrics other) {
+    records.addAndGet(other.getRecords());
+    bytes.addAndGet(other.getBytes());
+    skippedRecords.addAndGet(other.getSkippedRecords());
+    filteredRecords.addAndGet(other.getFilteredRecords());
+    decodedPackets.addAndGet(other.getDecodedPackets());
+    unparsedBytes.addAndGet(other.getUnparsedBytes());
+    unknownProtocols.addAndGet(other.getUnknownProtocols());
+    readNanos.addAndGet(other.getReadNanos());
+    filterNanos.addAndGet(other.getFilterNanos());
+    decodeNanos.addAndGet(other.getDecodeNanos());
+  }
+  
+  /**
+   * Registers the metrics with the platform MBean server, under
+   * {@code PcapParser:type=ParserMetrics,name=<name>}.
+   * 
+   * @param name the name to tell the metrics apart from those of other parsers
+   * @throws JMException if the name is invalid or already taken
+   */
+  public synchronized void register(String name) throws JMException {
+    if (objectName != null) unregister();
+    
+    ObjectName objectName = new ObjectName(DOMAIN + ":type=ParserMetrics,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    
+    this.objectName = objectName;
+  }
+  
+  /**
+   * Removes the metrics from the platform MBean server, if they were registered.
+   * 
+   * @throws JMException if the metrics couldn't be unregistered
+   */
+  public synchronized void unregister() throws JMException {
+    if (objectName == null) return;
+    
+    ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    objectName = null;
+  }
+  
+  /**
+   * @return the name the metrics are registered under, or {@code null} if they aren't
+   */
+  public synchronized ObjectName getObjectName() {
+    return objectName;
+  }
+  
+  /**
+   * @return the number of records read, including those that were skipped
+   */
+  @Override
+  public long getRecords() {
+    return records.get();
+  }
+  
+  /**
+   * @return the number of bytes of the records read, including their headers
+   */
+  @Override
+  public long getBytes() {
+    return bytes.get();
+  }
+  
+  /**
+   * @return the number of records skipped because they were outside of the time window
+   */
+  @Override
+  public long getSkippedRecords() {
+    return skippedRecords.get();
+  }
+  
+  /**
+   * @return the number of records the raw filter didn't match
+   */
+  @Override
+  public long getFilteredRecords() {
+    return filteredRecords.get();
+  }
+  
+  @Override
+  public long getDecodedPackets() {
+    return decodedPackets.get();
+  }
+  
+  /**
+   * @return the number of bytes at the end of decoded frames that weren't decoded into a
+   *    header, such as application payloads
+   */
+  @Override
+  public long getUnparsedBytes() {
+    return unparsedBytes.get();
+  }
+  
+  /**
+   * @return the number of decoded frames with an ether type or IP protocol that there is
+   *    no header type for
+   */
+  @Override
+  public long getUnknownProtocols() {
+    return unknownProtocols.get();
+  }
+  
+  @Override
+  public long getReadNanos() {
+    return readNanos.get();
+  }
+  
+  @Override
+  public long getFilterNanos() {
+    return filterNanos.get();
+  }
+  
+  @Override
+  public long getDecodeNanos() {
+    return decodeNanos.get();
+  }
+  
+  /**
+   * @return the total time spent in all of the stages
+   */
+  public long getTotalNanos() {
+    return readNanos.get() + filterNanos.get() + decodeNanos.get();
+  }
+  
+  /**
+   * @return the number of records read per second of time spent in the stages
+   */
+  @Override
+  public double getRecordsPerSecond() {
+    long nanos = getTotalNanos();
+    return nanos > 0 ? records.get() * 1e9 / nanos : 0;
+  }
+  
+  /**
+   * @return the number of bytes read per second of time spent in the stages
+   */
+  @Override
+  public double getBytesPerSecond() {
+    long nanos = getTotalNanos();
+    return nanos > 0 ? bytes.get() * 1e9 / nanos : 0;
+  }
+  
+  /**
+   * Sets all of the counters and timers back to zero.
+   */
+  @Override
+  public void reset() {
+    records.set(0);
+    bytes.set(0);
+    skippedRecords.set(0);
+    filteredRecords.set(0);
+    decodedPackets.set(0);
+    unparsedBytes.set(0);
+    unknownProtocols.set(0);
+    readNanos.set(0);
+    filterNanos.set(0);
+    decodeNanos.set(0);
+  }
+  
+  @Override
+  public String toString() {
+    return String.format("%d records (%d skipped, %d filtered out), %d bytes, %d packets decoded, "
+        + "%d unparsed bytes, %d unknown protocols; read %d ms, filter %d ms, decode %d ms",
+        getRecords(), getSkippedRecords(), getFilteredRecords(), getBytes(), getDecodedPackets(),
+        getUnparsedBytes(), getUnknownProtocols(),
+        getReadNanos() / 1000000, getFilterNanos() / 1000000, getDecodeNanos() / 1000000);
+  }
+}
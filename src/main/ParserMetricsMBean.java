@@ -0,0 +1,33 @@
+package main;
+
+/**
+ * The management interface of {@link ParserMetrics}, through which JMX clients such as
+ * JConsole read the metrics. Times are in nanoseconds.
+ */
+public interface ParserMetricsMBean {
+  public long getRecords();
+  
+  public long getBytes();
+  
+  public long getSkippedRecords();
+  
+  public long getFilteredRecords();
+  
+  public long getDecodedPackets();
+  
+  public long getUnparsedBytes();
+  
+  public long getUnknownProtocols();
+  
+  public long getReadNanos();
+  
+  public long getFilterNanos();
+  
+  public long getDecodeNanos();
+  
+  public double getRecordsPerSecond();
+  
+  public double getBytesPerSecond();
+  
+  public void reset();
+}
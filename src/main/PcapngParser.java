@@ -0,0 +1,495 @@
+package main;
+
+import header.Header;
+import header.InterfaceDescription;
+import header.InterfaceStatistics;
+import header.RecordHeader;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.MappedReader;
+import io.Reader;
+import data.Packet;
+
+/**
+ * Parses pcapng files one block at a time. Section headers, interface descriptions and
+ * interface statistics are kept track of as they go by, packet blocks are decoded into
+ * the same ethernet packets as {@link LibpcapParser} produces, and every other block is
+ * skipped by its length without being read.
+ */
+public class PcapngParser extends CaptureParser {
+  static final int SECTION_HEADER_BLOCK = 0x0A0D0D0A;
+  private static final int INTERFACE_DESCRIPTION_BLOCK = 1;
+  private static final int SIMPLE_PACKET_BLOCK = 3;
+  private static final int INTERFACE_STATISTICS_BLOCK = 5;
+  private static final int ENHANCED_PACKET_BLOCK = 6;
+  
+  private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+  
+  /** The length of the block type and block length at the start of every block. */
+  private static final int BLOCK_HEADER_LENGTH = 8;
+  
+  /** The length of a block with an empty body: its header and trailing block length. */
+  private static final int MIN_BLOCK_LENGTH = 12;
+  
+  private static final int SECTION_HEADER_LENGTH = 28;
+  private static final int SECTION_LENGTH_OFFSET = 16;
+  private static final int ENHANCED_PACKET_DATA_OFFSET = 20;
+  private static final int SIMPLE_PACKET_DATA_OFFSET = 4;
+  private static final int INTERFACE_OPTIONS_OFFSET = 8;
+  private static final int STATISTICS_OPTIONS_OFFSET = 12;
+  
+  private static final int OPTION_END = 0;
+  private static final int IF_NAME = 2;
+  private static final int IF_TSRESOL = 9;
+  private static final int ISB_IFRECV = 4;
+  private static final int ISB_IFDROP = 5;
+  private static final int ISB_FILTERACCEPT = 6;
+  private static final int ISB_OSDROP = 7;
+  private static final int ISB_USRDELIV = 8;
+  
+  /** Timestamps are in microseconds unless an interface says otherwise. */
+  private static final int DEFAULT_TIMESTAMP_RESOLUTION = 6;
+  
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  
+  private ByteOrder byteOrder;
+  private final List<InterfaceDescription> interfaces = new ArrayList<InterfaceDescription>();
+  private final List<LinkDecoder> linkDecoders = new ArrayList<LinkDecoder>();
+  private final List<InterfaceStatistics> statistics = new ArrayList<InterfaceStatistics>();
+  
+  public PcapngParser(File pcapngFile) throws IOException {
+    this(pcapngFile, false);
+  }
+  
+  /**
+   * @param pcapngFile the file to parse, which may be gzip compressed
+   * @param memoryMapped whether to memory map the file, in which case headers and data
+   *    blobs are slices of the mapping instead of copies
+   * @throws IOException if the file could not be opened
+   */
+  public PcapngParser(File pcapngFile, boolean memoryMapped) throws IOException {
+    this(openReader(pcapngFile, memoryMapped));
+  }
+  
+  /**
+   * @param reader the reader to parse from, positioned at the start of the file
+   */
+  public PcapngParser(Reader reader) {
+    super(reader);
+  }
+  
+  @Override
+  public Packet<RecordHeader> nextRecord()
+      throws IOException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException {
+    
+    Reader reader = getReader();
+    ParserMetrics metrics = getMetrics();
+    
+    while (hasMoreData()) {
+      long start = metrics != null ? System.nanoTime() : 0;
+      ByteBuffer blockHeader = reader.read(BLOCK_HEADER_LENGTH, byteOrder != null ? byteOrder : ByteOrder.BIG_ENDIAN);
+      int type = blockHeader.getInt(0);
+      
+      if (type == SECTION_HEADER_BLOCK) {
+        readSectionHeader(blockHeader);
+        continue;
+      }
+      
+      if (byteOrder == null) throw new IOException("Not a pcapng file, it doesn't start with a section header");
+      
+      int bodyLength = getBodyLength(blockHeader);
+      Packet<RecordHeader> record = null;
+      
+      switch (type) {
+        case ENHANCED_PACKET_BLOCK:
+          record = readEnhancedPacket(readPacketBody(bodyLength, start));
+          break;
+        case SIMPLE_PACKET_BLOCK:
+          record = readSimplePacket(readPacketBody(bodyLength, start));
+          break;
+        case INTERFACE_DESCRIPTION_BLOCK:
+          readInterfaceDescription(reader.read(bodyLength, byteOrder));
+          break;
+        case INTERFACE_STATISTICS_BLOCK:
+          statistics.add(decodeStatistics(reader.read(bodyLength, byteOrder)));
+          break;
+        default:
+          reader.skip(bodyLength);
+          break;
+      }
+      
+      // Packets that didn't match the filter come back as null.
+      if (record != null) return record;
+    }
+    
+    return null;
+  }
+  
+  /**
+   * Reads the body of a packet block, adding the block to the metrics if there are any.
+   * 
+   * @param start the time at which reading the block started
+   */
+  private ByteBuffer readPacketBody(int bodyLength, long start) throws IOException {
+    ByteBuffer body = getReader().read(bodyLength, byteOrder);
+    
+    ParserMetrics metrics = getMetrics();
+    if (metrics != null) metrics.addRead(System.nanoTime() - start, BLOCK_HEADER_LENGTH + bodyLength);
+    
+    return body;
+  }
+  
+  /**
+   * Starts a new section. The byte order of the section is given by the way the byte
+   * order magic was written, and the interfaces of the previous section no longer apply.
+   */
+  private void readSectionHeader(ByteBuffer blockHeader) throws IOException {
+    Reader reader = getReader();
+    
+    byteOrder = getByteOrder(reader.read(4, ByteOrder.BIG_ENDIAN).getInt(0));
+    interfaces.clear();
+    linkDecoders.clear();
+    
+    reader.skip(getBodyLength(blockHeader.duplicate().order(byteOrder)) - 4);
+  }
+  
+  private void readInterfaceDescription(ByteBuffer body) {
+    InterfaceDescription description = decodeInterfaceDescription(body);
+    LinkDecoder linkDecoder;
+    
+    // Interfaces with link types that can't be decoded are only a problem if they have
+    // packets.
+    try {
+      linkDecoder = LinkDecoder.forLinkType(description.getLinkType());
+    } catch (IOException e) {
+      linkDecoder = null;
+    }
+    
+    interfaces.add(description);
+    linkDecoders.add(linkDecoder);
+  }
+  
+  private Packet<RecordHeader> readEnhancedPacket(ByteBuffer body)
+      throws IOException, InstantiationException, IllegalAccessException, InvocationTargetException {
+    
+    long interfaceId = Header.u(body.getInt(0));
+    long timestamp = Header.u(body.getInt(4)) << 32 | Header.u(body.getInt(8));
+    long capturedDataLength = Header.u(body.getInt(12));
+    long frameLength = Header.u(body.getInt(16));
+    
+    if (capturedDataLength > body.limit() - ENHANCED_PACKET_DATA_OFFSET - 4) {
+      throw new IOException("Captured length " + capturedDataLength + " is longer than its block");
+    }
+    
+    LinkDecoder linkDecoder = getLinkDecoder(interfaceId);
+    InterfaceDescription description = interfaces.get((int) interfaceId);
+    RecordHeader recordHeader = new RecordHeader(
+        description.getTimestampSeconds(timestamp), description.getTimestampFraction(timestamp),
+        capturedDataLength, frameLength, description.isNanosecondPrecision());
+    
+    if (!isInTimeWindow(recordHeader.getTimestampNanos())) return null;
+    
+    ByteBuffer frame = slice(body, ENHANCED_PACKET_DATA_OFFSET, (int) capturedDataLength);
+    if (!matchesFilter(frame, linkDecoder)) return null;
+    
+    return makeRecord(recordHeader, frame, linkDecoder);
+  }
+  
+  /**
+   * Simple packet blocks have no timestamp and always belong to the first interface.
+   */
+  private Packet<RecordHeader> readSimplePacket(ByteBuffer body)
+      throws IOException, InstantiationException, IllegalAccessException, InvocationTargetException {
+    
+    LinkDecoder linkDecoder = getLinkDecoder(0);
+    long snapLength = interfaces.get(0).getSnapLength();
+    long frameLength = Header.u(body.getInt(0));
+    
+    long capturedDataLength = Math.min(frameLength, body.limit() - SIMPLE_PACKET_DATA_OFFSET - 4);
+    if (snapLength > 0) capturedDataLength = Math.min(capturedDataLength, snapLength);
+    
+    if (!isInTimeWindow(0)) return null;
+    
+    ByteBuffer frame = slice(body, SIMPLE_PACKET_DATA_OFFSET, (int) capturedDataLength);
+    if (!matchesFilter(frame, linkDecoder)) return null;
+    
+    return makeRecord(new RecordHeader(0, 0, capturedDataLength, frameLength, false), frame, linkDecoder);
+  }
+  
+  /**
+   * @param interfaceId the unsigned interface ID of a packet block
+   */
+  private LinkDecoder getLinkDecoder(long interfaceId) throws IOException {
+    if (interfaceId >= interfaces.size()) throw new IOException("Packet of undescribed interface " + interfaceId);
+    
+    LinkDecoder linkDecoder = linkDecoders.get((int) interfaceId);
+    if (linkDecoder == null) {
+      throw new IOException("Unsupported link type " + interfaces.get((int) interfaceId).getLinkType());
+    }
+    
+    return linkDecoder;
+  }
+  
+  /**
+   * @return the interfaces of the current section that have been read so far
+   */
+  public List<InterfaceDescription> getInterfaces() {
+    return Collections.unmodifiableList(interfaces);
+  }
+  
+  /**
+   * @return the interface statistics blocks that have been read so far
+   */
+  public List<InterfaceStatistics> getInterfaceStatistics() {
+    return Collections.unmodifiableList(statistics);
+  }
+  
+  /**
+   * Counts the packets in a pcapng file without decoding any of them. If the file has a
+   * single section whose interfaces all have statistics saying how many packets were
+   * written, which writers put at the end of the section, the count is read from the
+   * statistics. Otherwise the block headers are walked, skipping over the body of every
+   * block. The statistics can't be found from the end of a gzip compressed file, so the
+   * blocks of one are always walked, inflating the whole file.
+   * 
+   * @param pcapngFile the file to count the packets of, which may be gzip compressed
+   * @return the number of packet blocks in the file
+   * @throws IOException if there was an error while reading from the file
+   */
+  public static long countPackets(File pcapngFile) throws IOException {
+    if (isCompressed(pcapngFile)) return countBlocks(openReader(pcapngFile, false));
+    
+    FileInputStream input = new FileInputStream(pcapngFile);
+    
+    try {
+      FileChannel channel = input.getChannel();
+      long count = countFromStatistics(channel);
+      
+      return count >= 0 ? count : 
+          countBlocks(new MappedReader(channel, 0, channel.size(), MappedReader.DEFAULT_WINDOW_SIZE));
+    } finally {
+      input.close();
+    }
+  }
+  
+  /**
+   * @return the number of delivered packets the interface statistics at the end of the
+   *    file add up to, or -1 if they don't cover every interface
+   */
+  private static long countFromStatistics(FileChannel channel) throws IOException {
+    long fileSize = channel.size();
+    if (fileSize < SECTION_HEADER_LENGTH) return -1;
+    
+    ByteBuffer sectionHeader = readAt(channel, 0, SECTION_HEADER_LENGTH, ByteOrder.BIG_ENDIAN);
+    if (sectionHeader.getInt(0) != SECTION_HEADER_BLOCK) return -1;
+    
+    ByteOrder byteOrder = getByteOrder(sectionHeader.getInt(BLOCK_HEADER_LENGTH));
+    sectionHeader.order(byteOrder);
+    
+    // The statistics at the end of the file only cover every packet if there is a single
+    // section; the length of the section is -1 if the writer didn't know it.
+    long position = Header.u(sectionHeader.getInt(4));
+    long sectionLength = sectionHeader.getLong(SECTION_LENGTH_OFFSET);
+    if (sectionLength != -1 && position + sectionLength != fileSize) return -1;
+    
+    // Interfaces are described right after the section header.
+    int numInterfaces = 0;
+    
+    while (position + BLOCK_HEADER_LENGTH <= fileSize) {
+      ByteBuffer blockHeader = readAt(channel, position, BLOCK_HEADER_LENGTH, byteOrder);
+      if (blockHeader.getInt(0) != INTERFACE_DESCRIPTION_BLOCK) break;
+      
+      position += getBodyLength(blockHeader) + BLOCK_HEADER_LENGTH;
+      numInterfaces++;
+    }
+    
+    // Walk backwards from the end of the file, using the trailing length of each block,
+    // for as long as the blocks are interface statistics. The last block of an
+    // interface is the first one found.
+    Map<Integer, Long> delivered = new HashMap<Integer, Long>();
+    long end = fileSize;
+    
+    while (end - MIN_BLOCK_LENGTH >= position) {
+      long length = Header.u(readAt(channel, end - 4, 4, byteOrder).getInt(0));
+      if (length < MIN_BLOCK_LENGTH || end - length < position) break;
+      
+      long start = end - length;
+      if (readAt(channel, start, 4, byteOrder).getInt(0) != INTERFACE_STATISTICS_BLOCK) break;
+      
+      InterfaceStatistics blockStatistics = decodeStatistics(
+          readAt(channel, start + BLOCK_HEADER_LENGTH, (int) length - BLOCK_HEADER_LENGTH, byteOrder));
+      
+      if (!delivered.containsKey(blockStatistics.getInterfaceId())) {
+        delivered.put(blockStatistics.getInterfaceId(), blockStatistics.getDeliveredPackets());
+      }
+      
+      end = start;
+    }
+    
+    if (numInterfaces == 0) return -1;
+    
+    long count = 0;
+    
+    for (int i = 0; i < numInterfaces; ++i) {
+      Long packets = delivered.get(i);
+      if (packets == null || packets < 0) return -1;
+      
+      count += packets;
+    }
+    
+    return count;
+  }
+  
+  /**
+   * @param reader the reader to count from, positioned at the start of the file, which
+   *    is closed once the blocks have been counted
+   * @return the number of packet blocks in the file, found by skipping from one block
+   *    header to the next
+   */
+  private static long countBlocks(Reader reader) throws IOException {
+    ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+    long count = 0;
+    
+    try {
+      while (reader.hasMoreData()) {
+        ByteBuffer blockHeader = reader.read(BLOCK_HEADER_LENGTH, byteOrder);
+        int type = blockHeader.getInt(0);
+        
+        if (type == SECTION_HEADER_BLOCK) {
+          byteOrder = getByteOrder(reader.read(4, ByteOrder.BIG_ENDIAN).getInt(0));
+          reader.skip(getBodyLength(blockHeader.duplicate().order(byteOrder)) - 4);
+          continue;
+        }
+        
+        if (type == ENHANCED_PACKET_BLOCK || type == SIMPLE_PACKET_BLOCK) count++;
+        reader.skip(getBodyLength(blockHeader));
+      }
+    } finally {
+      reader.close();
+    }
+    
+    return count;
+  }
+  
+  private static InterfaceDescription decodeInterfaceDescription(ByteBuffer body) {
+    int end = body.limit() - 4;
+    int name = findOption(body, INTERFACE_OPTIONS_OFFSET, end, IF_NAME);
+    int timestampResolution = findOption(body, INTERFACE_OPTIONS_OFFSET, end, IF_TSRESOL);
+    
+    return new InterfaceDescription(Header.u(body.getShort(0)), Header.u(body.getInt(4)),
+        name >= 0 ? new String(getOptionValue(body, name), UTF_8) : null,
+        timestampResolution >= 0 ? body.get(timestampResolution + 4) & 0xFF : DEFAULT_TIMESTAMP_RESOLUTION);
+  }
+  
+  private static InterfaceStatistics decodeStatistics(ByteBuffer body) {
+    int end = body.limit() - 4;
+    
+    return new InterfaceStatistics((int) Header.u(body.getInt(0)),
+        Header.u(body.getInt(4)) << 32 | Header.u(body.getInt(8)),
+        getCounter(body, end, ISB_IFRECV),
+        getCounter(body, end, ISB_IFDROP),
+        getCounter(body, end, ISB_FILTERACCEPT),
+        getCounter(body, end, ISB_OSDROP),
+        getCounter(body, end, ISB_USRDELIV));
+  }
+  
+  /**
+   * @return the value of a 64-bit statistics option, or -1 if it isn't there
+   */
+  private static long getCounter(ByteBuffer body, int end, int code) {
+    int option = findOption(body, STATISTICS_OPTIONS_OFFSET, end, code);
+    if (option < 0 || Header.u(body.getShort(option + 2)) != 8) return -1;
+    
+    return body.getLong(option + 4);
+  }
+  
+  /**
+   * @param body the body of a block
+   * @param start the offset of the first option
+   * @param end the offset of the end of the options
+   * @param code the code of the option to find
+   * @return the offset of the option, or -1 if the block doesn't have it
+   */
+  private static int findOption(ByteBuffer body, int start, int end, int code) {
+    int position = start;
+    
+    while (position + 4 <= end) {
+      int optionCode = Header.u(body.getShort(position));
+      int optionLength = Header.u(body.getShort(position + 2));
+      
+      if (optionCode == OPTION_END) break;
+      if (optionCode == code && position + 4 + optionLength <= end) return position;
+      
+      // Option values are padded to 32 bits.
+      position += 4 + ((optionLength + 3) & ~3);
+    }
+    
+    return -1;
+  }
+  
+  private static byte[] getOptionValue(ByteBuffer body, int option) {
+    byte[] value = new byte[Header.u(body.getShort(option + 2))];
+    
+    for (int i = 0; i < value.length; ++i) {
+      value[i] = body.get(option + 4 + i);
+    }
+    
+    return value;
+  }
+  
+  private static ByteOrder getByteOrder(int byteOrderMagic) throws IOException {
+    if (byteOrderMagic == BYTE_ORDER_MAGIC) return ByteOrder.BIG_ENDIAN;
+    if (Integer.reverseBytes(byteOrderMagic) == BYTE_ORDER_MAGIC) return ByteOrder.LITTLE_ENDIAN;
+    
+    throw new IOException(String.format("Unrecognized byte order magic 0x%08x", byteOrderMagic));
+  }
+  
+  /**
+   * @return the number of bytes in the block after its header, including the trailing
+   *    block length
+   */
+  private static int getBodyLength(ByteBuffer blockHeader) throws IOException {
+    long length = Header.u(blockHeader.getInt(4));
+    
+    if (length < MIN_BLOCK_LENGTH || length % 4 != 0) throw new IOException("Invalid block length " + length);
+    
+    return (int) length - BLOCK_HEADER_LENGTH;
+  }
+  
+  /**
+   * @return the bytes of a frame in a block, in network byte order
+   */
+  private static ByteBuffer slice(ByteBuffer body, int offset, int length) {
+    ByteBuffer frame = body.duplicate();
+    frame.position(offset);
+    frame.limit(offset + length);
+    
+    return frame.slice();
+  }
+  
+  private static ByteBuffer readAt(FileChannel channel, long position, int length, ByteOrder order) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+    }
+    
+    buffer.flip();
+    buffer.order(order);
+    return buffer;
+  }
+}
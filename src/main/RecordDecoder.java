@@ -0,0 +1,121 @@
+package main;
+
+import header.GlobalHeader;
+import header.Header;
+import header.RecordHeader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes record headers in the format given by a file's {@link GlobalHeader}. The format
+ * is fixed when the decoder is created, so decoding a record doesn't check it again.
+ * Record headers can be encoded in the same format, e.g. to write them to another file.
+ */
+public class RecordDecoder {
+  public static final int LENGTH = 16;
+  
+  private static final int TIMESTAMP_SECONDS_OFFSET = 0;
+  private static final int TIMESTAMP_FRACTION_OFFSET = 4;
+  private static final int CAPTURED_LENGTH_OFFSET = 8;
+  private static final int FRAME_LENGTH_OFFSET = 12;
+  
+  private final ByteOrder byteOrder;
+  private final boolean nanosecondPrecision;
+  
+  public RecordDecoder(GlobalHeader globalHeader) {
+    byteOrder = globalHeader.getByteOrder();
+    nanosecondPrecision = globalHeader.isNanosecondPrecision();
+  }
+  
+  /**
+   * @param data the 16 bytes of the record header, from the buffer's position
+   * @return the decoded record header
+   */
+  public RecordHeader decode(ByteBuffer data) {
+    int base = data.position();
+    if (data.order() != byteOrder) data = data.duplicate().order(byteOrder);
+    
+    return new RecordHeader(
+        Header.u(data.getInt(base + TIMESTAMP_SECONDS_OFFSET)), 
+        Header.u(data.getInt(base + TIMESTAMP_FRACTION_OFFSET)),
+        Header.u(data.getInt(base + CAPTURED_LENGTH_OFFSET)), 
+        Header.u(data.getInt(base + FRAME_LENGTH_OFFSET)), 
+        nanosecondPrecision);
+  }
+  
+  /**
+   * Decodes a record header into an existing one, e.g. to reuse a single header for
+   * every record.
+   * 
+   * @param data the 16 bytes of the record header, from the buffer's position, in the
+   *    byte order of the format
+   * @param record the record header to store the decoded values in
+   */
+  public void decode(ByteBuffer data, RecordHeader record) {
+    int base = data.position();
+    
+    record.set(
+        Header.u(data.getInt(base + TIMESTAMP_SECONDS_OFFSET)), 
+        Header.u(data.getInt(base + TIMESTAMP_FRACTION_OFFSET)),
+        Header.u(data.getInt(base + CAPTURED_LENGTH_OFFSET)), 
+        Header.u(data.getInt(base + FRAME_LENGTH_OFFSET)), 
+        nanosecondPrecision);
+  }
+  
+  /**
+   * Writes a record header, converting its timestamp to the precision of the format.
+   * 
+   * @param record the record header to write
+   * @param data the buffer to write the 16 bytes of the header to, at its position
+   */
+  public void encode(RecordHeader record, ByteBuffer data) {
+    long fraction = record.getTimestampFraction();
+    
+    if (record.isNanosecondPrecision() != nanosecondPrecision) {
+      fraction = nanosecondPrecision ? fraction * 1000 : fraction / 1000;
+    }
+    
+    ByteOrder order = data.order();
+    data.order(byteOrder);
+    
+    data.putInt((int) record.getTimestampSeconds());
+    data.putInt((int) fraction);
+    data.putInt((int) record.getCapturedDataLength());
+    data.putInt((int) record.getFrameLength());
+    
+    data.order(order);
+  }
+  
+  /**
+   * @param data the bytes of a record header, from the buffer's position
+   * @return the captured length of the record, without decoding the rest of the header
+   */
+  public long getCapturedDataLength(ByteBuffer data) {
+    if (data.order() != byteOrder) data = data.duplicate().order(byteOrder);
+    
+    return Header.u(data.getInt(data.position() + CAPTURED_LENGTH_OFFSET));
+  }
+  
+  /**
+   * @param data the bytes of a record header, from the buffer's position
+   * @return the timestamp of the record in nanoseconds since the epoch, without decoding
+   *    the rest of the header
+   * @see RecordHeader#getTimestampNanos()
+   */
+  public long getTimestampNanos(ByteBuffer data) {
+    if (data.order() != byteOrder) data = data.duplicate().order(byteOrder);
+    
+    long seconds = Header.u(data.getInt(data.position() + TIMESTAMP_SECONDS_OFFSET));
+    long fraction = Header.u(data.getInt(data.position() + TIMESTAMP_FRACTION_OFFSET));
+    
+    return seconds * 1000000000L + (nanosecondPrecision ? fraction : fraction * 1000);
+  }
+  
+  /**
+   * @return the byte order records have to be read in
+   */
+  public ByteOrder getByteOrder() {
+    return byteOrder;
+  }
+}
@@ -0,0 +1,125 @@
+package main;
+
+import header.EthernetHeader;
+import header.Header;
+import header.HeaderDecoder;
+
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import data.ByteData;
+import data.Packet;
+
+/**
+ * Decodes frames into the same packets and headers every time, instead of allocating a
+ * new object graph per frame. There is one packet, with its header, per layer and header
+ * type, and one blob per layer for the bytes that are left over; decoding a frame only
+ * overwrites their fields and links them up.
+ * <p>
+ * Everything handed out is only valid until the next frame is decoded.
+ */
+class ReusingDecoder {
+  private final LinkDecoder linkDecoder;
+  private final EthernetHeader ethernetHeader = new EthernetHeader();
+  private final Packet<EthernetHeader> ethernetPacket = new Packet<EthernetHeader>(ethernetHeader, null);
+  
+  /** The packets of every layer below the link layer, by header type. */
+  private final List<Map<Class<? extends Header>, Layer>> layers = new ArrayList<Map<Class<? extends Header>, Layer>>();
+  private final List<ByteData> blobs = new ArrayList<ByteData>();
+  
+  /**
+   * @param linkDecoder the decoder for the link type of the frames
+   */
+  ReusingDecoder(LinkDecoder linkDecoder) {
+    this.linkDecoder = linkDecoder;
+  }
+  
+  /**
+   * @param frame the bytes of a frame, from the buffer's position to its limit. The
+   *    buffer is kept as the data of the innermost packet, with its position moved to
+   *    the start of that data.
+   * @return the frame's ethernet packet, or {@code null} if the frame is too short for
+   *    its link layer header
+   * @throws InstantiationException
+   * @throws IllegalAccessException
+   * @throws InvocationTargetException
+   */
+  Packet<EthernetHeader> decode(ByteBuffer frame) 
+      throws InstantiationException, IllegalAccessException, InvocationTargetException {
+    
+    if (!linkDecoder.decode(frame, ethernetHeader)) return null;
+    
+    frame.position(frame.position() + linkDecoder.getHeaderLength());
+    
+    Packet<? extends Header> packet = ethernetPacket;
+    int depth = 0;
+    
+    while (true) {
+      Class<? extends Header> type = packet.getHeader().getDataPacketHeaderType();
+      Layer layer = type != null ? getLayer(depth, type) : null;
+      
+      if (layer == null || frame.remaining() < layer.headerLength) {
+        ByteData blob = getBlob(depth);
+        blob.setBuffer(frame);
+        packet.setData(blob);
+        
+        return ethernetPacket;
+      }
+      
+      // The packet of a layer is made from the first header decoded into it.
+      if (layer.packet == null) {
+        layer.packet = new Packet<Header>(layer.decoder.decode(frame), null);
+      } else {
+        layer.decoder.decode(frame, layer.packet.getHeader());
+      }
+      
+      frame.position(frame.position() + layer.headerLength);
+      
+      packet.setData(layer.packet);
+      packet = layer.packet;
+      depth++;
+    }
+  }
+  
+  private Layer getLayer(int depth, Class<? extends Header> type) {
+    while (layers.size() <= depth) {
+      layers.add(new HashMap<Class<? extends Header>, Layer>());
+    }
+    
+    Map<Class<? extends Header>, Layer> packets = layers.get(depth);
+    Layer layer = packets.get(type);
+    
+    if (layer == null) {
+      layer = new Layer(type);
+      packets.put(type, layer);
+    }
+    
+    return layer;
+  }
+  
+  private ByteData getBlob(int depth) {
+    while (blobs.size() <= depth) {
+      blobs.add(new ByteData(new byte[0]));
+    }
+    
+    return blobs.get(depth);
+  }
+  
+  /**
+   * The packet of a single header type at a single layer.
+   */
+  private static class Layer {
+    private final HeaderDecoder<? extends Header> decoder;
+    private final int headerLength;
+    private Packet<Header> packet;
+    
+    private Layer(Class<? extends Header> type) {
+      decoder = HeaderDecoder.forType(type);
+      headerLength = (int) decoder.getHeaderLength();
+    }
+  }
+}
@@ -0,0 +1,402 @@
+package reassembly;
+
+import header.EthernetHeader;
+import header.IpHeader;
+import header.RecordHeader;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import main.PacketVisitor;
+import util.LongPairIntMap;
+import data.ByteData;
+import data.Data;
+import data.LazyPacket;
+import data.Packet;
+
+/**
+ * Puts fragmented IPv4 datagrams back together before handing them on to another
+ * {@link PacketVisitor}. Packets that aren't fragments are handed on as they are. Once
+ * every fragment of a datagram has arrived, the datagram is handed on as a single packet
+ * with the ethernet header of its first fragment, and its data is decoded by the header
+ * types of its protocol like that of any other datagram.
+ * <p>
+ * Datagrams are keyed by (source, destination, identification, protocol), packed into
+ * two longs. Incomplete datagrams are dropped once they are older than the timeout,
+ * measured in capture time, or, oldest first, whenever the fragments held on to go over
+ * the memory limit.
+ */
+public class IpDefragmenter implements PacketVisitor {
+  /** The default memory limit, in bytes. */
+  public static final long DEFAULT_MAX_MEMORY = 16 * 1024 * 1024;
+  
+  /** The default time to wait for the rest of a datagram, in milliseconds. */
+  public static final long DEFAULT_TIMEOUT = 30 * 1000;
+  
+  /** Datagrams with more fragments than this are dropped, so they can't be used to hog memory. */
+  private static final int MAX_FRAGMENTS = 64;
+  
+  /** The approximate memory used by a datagram on top of its fragments. */
+  private static final int DATAGRAM_OVERHEAD = 128;
+  
+  /** The approximate memory used by a fragment on top of its payload. */
+  private static final int FRAGMENT_OVERHEAD = 48;
+  
+  private static final int IP_HEADER_LENGTH = 20;
+  private static final int MAX_DATAGRAM_LENGTH = 65535;
+  
+  private final PacketVisitor visitor;
+  private long maxMemory = DEFAULT_MAX_MEMORY;
+  private long timeout = DEFAULT_TIMEOUT * 1000000L;
+  
+  private final LongPairIntMap index = new LongPairIntMap();
+  private Datagram[] datagrams = new Datagram[16];
+  private int[] freeIndexes = new int[16];
+  private int numFreeIndexes;
+  private int numDatagrams;
+  
+  /** The datagrams whose first fragment arrived the longest and shortest time ago. */
+  private Datagram oldest;
+  private Datagram newest;
+  
+  private long memoryUsed;
+  private long dropped;
+  
+  /**
+   * @param visitor the visitor to hand packets and whole datagrams on to
+   */
+  public IpDefragmenter(PacketVisitor visitor) {
+    this.visitor = visitor;
+  }
+  
+  @Override
+  public boolean visit(RecordHeader record, Packet<EthernetHeader> packet) {
+    long now = record.getTimestampNanos();
+    expire(now);
+    
+    Data data = packet.getData();
+    if (!(data instanceof Packet) || !(((Packet<?>) data).getHeader() instanceof IpHeader)) {
+      return visitor.visit(record, packet);
+    }
+    
+    Packet<?> ipPacket = (Packet<?>) data;
+    IpHeader ip = (IpHeader) ipPacket.getHeader();
+    
+    if (!ip.isFragment()) return visitor.visit(record, packet);
+    
+    ByteBuffer payload = getPayload(ip, ipPacket.getData());
+    if (payload == null) return true;
+    
+    long first = (long) ip.getSourceIpAddress() << 32 | (ip.getDestIpAddress() & 0xFFFFFFFFL);
+    long second = (long) ip.getDatagramIdentifier() << 8 | ip.getProtocolNumber();
+    
+    int datagramIndex = index.get(first, second);
+    Datagram datagram;
+    
+    if (datagramIndex == LongPairIntMap.NO_VALUE) {
+      datagram = open(first, second, now);
+    } else {
+      datagram = datagrams[datagramIndex];
+    }
+    
+    int offset = ip.getFragmentOffset() * 8;
+    
+    // Only the headers of the first fragment are kept, not the frame they came from.
+    if (ip.getFragmentOffset() == 0) {
+      datagram.linkHeader = packet.getHeader();
+      
+      // A lazily decoded header is a view of the frame, which may be reused or let go
+      // before the last fragment arrives, so it is decoded now to detach it.
+      datagram.linkHeader.materialize();
+      datagram.ipHeader = ip;
+    }
+    
+    if ((ip.getFlags() & IpHeader.FLAG_MORE_FRAGMENTS) == 0) datagram.length = offset + payload.remaining();
+    
+    if (offset + payload.remaining() > MAX_DATAGRAM_LENGTH - IP_HEADER_LENGTH || datagram.numFragments == MAX_FRAGMENTS) {
+      drop(datagram);
+      return true;
+    }
+    
+    add(datagram, offset, payload);
+    
+    if (datagram.isComplete()) {
+      Packet<EthernetHeader> whole = assemble(datagram);
+      long length = whole.getLength();
+      
+      close(datagram);
+      return visitor.visit(new RecordHeader(record.getTimestampSeconds(), record.getTimestampFraction(),
+          length, length, record.isNanosecondPrecision()), whole);
+    }
+    
+    while (memoryUsed > maxMemory && oldest != null) {
+      drop(oldest);
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Copies the payload of a fragment into the datagram's list of fragments, which is
+   * kept in order of offset.
+   */
+  private void add(Datagram datagram, int offset, ByteBuffer payload) {
+    Fragment previous = null;
+    Fragment next = datagram.fragments;
+    
+    while (next != null && next.offset < offset) {
+      previous = next;
+      next = next.next;
+    }
+    
+    // A duplicate of a fragment that has already arrived.
+    if (next != null && next.offset == offset && next.data.length >= payload.remaining()) return;
+    
+    byte[] data = new byte[payload.remaining()];
+    payload.get(data);
+    
+    Fragment fragment = new Fragment(offset, data);
+    fragment.next = next;
+    
+    if (previous == null) {
+      datagram.fragments = fragment;
+    } else {
+      previous.next = fragment;
+    }
+    
+    datagram.numFragments++;
+    memoryUsed += data.length + FRAGMENT_OVERHEAD;
+  }
+  
+  /**
+   * Builds the packet of a complete datagram. The IP header is that of the first
+   * fragment, without any options and with the fragmentation fields cleared.
+   */
+  private static Packet<EthernetHeader> assemble(Datagram datagram) {
+    IpHeader ip = datagram.ipHeader;
+    
+    ByteBuffer bytes = ByteBuffer.allocate(IP_HEADER_LENGTH + datagram.length);
+    bytes.put((byte) (ip.getVersion() << 4 | IP_HEADER_LENGTH / 4));
+    bytes.put((byte) ip.getTypeOfService());
+    bytes.putShort((short) (IP_HEADER_LENGTH + datagram.length));
+    bytes.putShort((short) ip.getDatagramIdentifier());
+    bytes.putShort((short) ((ip.getFlags() & IpHeader.FLAG_DONT_FRAGMENT) << 13));
+    bytes.put((byte) ip.getTimeToLive());
+    bytes.put((byte) ip.getProtocolNumber());
+    bytes.putShort((short) 0);
+    bytes.putInt(ip.getSourceIpAddress());
+    bytes.putInt(ip.getDestIpAddress());
+    bytes.putShort(10, checksum(bytes));
+    
+    // Later fragments overwrite the bytes they overlap with.
+    for (Fragment fragment = datagram.fragments; fragment != null; fragment = fragment.next) {
+      int length = Math.min(fragment.data.length, datagram.length - fragment.offset);
+      if (length <= 0) continue;
+      
+      bytes.position(IP_HEADER_LENGTH + fragment.offset);
+      bytes.put(fragment.data, 0, length);
+    }
+    
+    bytes.clear();
+    return new Packet<EthernetHeader>(datagram.linkHeader, LazyPacket.view(IpHeader.class, bytes));
+  }
+  
+  /**
+   * Drops the datagrams that are older than the timeout.
+   * 
+   * @param now the current capture time, in nanoseconds
+   */
+  public void expire(long now) {
+    while (oldest != null && now - oldest.firstSeen > timeout) {
+      drop(oldest);
+    }
+  }
+  
+  private Datagram open(long first, long second, long now) {
+    Datagram datagram = new Datagram(first, second, now);
+    
+    if (numFreeIndexes > 0) {
+      datagram.index = freeIndexes[--numFreeIndexes];
+    } else {
+      if (numDatagrams == datagrams.length) datagrams = Arrays.copyOf(datagrams, datagrams.length << 1);
+      datagram.index = numDatagrams;
+    }
+    
+    datagrams[datagram.index] = datagram;
+    index.put(first, second, datagram.index);
+    numDatagrams++;
+    memoryUsed += DATAGRAM_OVERHEAD;
+    
+    // Datagrams are never touched again, so the list is in order of arrival.
+    datagram.older = newest;
+    if (newest != null) newest.newer = datagram;
+    newest = datagram;
+    if (oldest == null) oldest = datagram;
+    
+    return datagram;
+  }
+  
+  private void drop(Datagram datagram) {
+    close(datagram);
+    dropped++;
+  }
+  
+  private void close(Datagram datagram) {
+    for (Fragment fragment = datagram.fragments; fragment != null; fragment = fragment.next) {
+      memoryUsed -= fragment.data.length + FRAGMENT_OVERHEAD;
+    }
+    
+    if (datagram.older != null) datagram.older.newer = datagram.newer;
+    if (datagram.newer != null) datagram.newer.older = datagram.older;
+    if (datagram == oldest) oldest = datagram.newer;
+    if (datagram == newest) newest = datagram.older;
+    
+    index.remove(datagram.firstKey, datagram.secondKey);
+    datagrams[datagram.index] = null;
+    if (numFreeIndexes == freeIndexes.length) freeIndexes = Arrays.copyOf(freeIndexes, freeIndexes.length << 1);
+    freeIndexes[numFreeIndexes++] = datagram.index;
+    
+    numDatagrams--;
+    memoryUsed -= DATAGRAM_OVERHEAD;
+  }
+  
+  /**
+   * @return the payload of a fragment, without IP options or any padding of the frame,
+   *    or {@code null} if the fragment is malformed
+   */
+  private static ByteBuffer getPayload(IpHeader ip, Data data) {
+    int headerLength = (int) ip.getIpHeaderLength();
+    int payloadLength = (int) ip.getTotalLength() - headerLength;
+    int optionsLength = headerLength - IP_HEADER_LENGTH;
+    
+    if (!(data instanceof ByteData) || optionsLength < 0 || payloadLength < 0) return null;
+    
+    ByteBuffer payload = ((ByteData) data).getBuffer();
+    if (payload.remaining() < optionsLength + payloadLength) return null;
+    
+    payload.position(payload.position() + optionsLength);
+    payload.limit(payload.position() + payloadLength);
+    return payload;
+  }
+  
+  private static short checksum(ByteBuffer header) {
+    int sum = 0;
+    
+    for (int i = 0; i < IP_HEADER_LENGTH; i += 2) {
+      sum += header.getShort(i) & 0xFFFF;
+    }
+    
+    while ((sum >>> 16) != 0) {
+      sum = (sum & 0xFFFF) + (sum >>> 16);
+    }
+    
+    return (short) ~sum;
+  }
+  
+  /**
+   * @param maxMemory the number of bytes the fragments held on to may take up,
+   *    approximately
+   */
+  public void setMaxMemory(long maxMemory) {
+    this.maxMemory = maxMemory;
+  }
+  
+  public long getMaxMemory() {
+    return maxMemory;
+  }
+  
+  /**
+   * @param timeout the capture time after which an incomplete datagram is dropped, in
+   *    milliseconds
+   */
+  public void setTimeout(long timeout) {
+    this.timeout = timeout * 1000000L;
+  }
+  
+  public long getTimeout() {
+    return timeout / 1000000L;
+  }
+  
+  /**
+   * @return the approximate number of bytes taken up by incomplete datagrams
+   */
+  public long getMemoryUsed() {
+    return memoryUsed;
+  }
+  
+  /**
+   * @return the number of datagrams that are waiting for more fragments
+   */
+  public int getDatagramCount() {
+    return numDatagrams;
+  }
+  
+  /**
+   * @return the number of incomplete datagrams that were dropped
+   */
+  public long getDroppedCount() {
+    return dropped;
+  }
+  
+  /**
+   * A datagram that is being put back together.
+   */
+  private static class Datagram {
+    final long firstKey;
+    final long secondKey;
+    final long firstSeen;
+    int index;
+    
+    /** The headers of the first fragment, which are used for the whole datagram. */
+    EthernetHeader linkHeader;
+    IpHeader ipHeader;
+    
+    /** The fragments that have arrived, in order of offset. */
+    Fragment fragments;
+    int numFragments;
+    
+    /** The length of the data of the datagram, or -1 until the last fragment arrives. */
+    int length = -1;
+    
+    Datagram older;
+    Datagram newer;
+    
+    Datagram(long firstKey, long secondKey, long firstSeen) {
+      this.firstKey = firstKey;
+      this.secondKey = secondKey;
+      this.firstSeen = firstSeen;
+    }
+    
+    /**
+     * @return whether the first and last fragments have arrived, and the fragments cover
+     *    every byte in between
+     */
+    boolean isComplete() {
+      if (ipHeader == null || length < 0) return false;
+      
+      int covered = 0;
+      
+      for (Fragment fragment = fragments; fragment != null; fragment = fragment.next) {
+        if (fragment.offset > covered) return false;
+        
+        covered = Math.max(covered, fragment.offset + fragment.data.length);
+      }
+      
+      return covered >= length;
+    }
+  }
+  
+  /**
+   * A copy of the payload of a fragment.
+   */
+  private static class Fragment {
+    final int offset;
+    final byte[] data;
+    Fragment next;
+    
+    Fragment(int offset, byte[] data) {
+      this.offset = offset;
+      this.data = data;
+    }
+  }
+}
@@ -0,0 +1,33 @@
+package reassembly;
+
+import java.nio.ByteBuffer;
+
+import reassembly.TcpStream.CloseReason;
+
+/**
+ * Callback interface for the byte streams put back together by a {@link TcpReassembler}.
+ * Each direction of a connection is a separate {@link TcpStream}.
+ */
+public interface StreamListener {
+  /**
+   * @param stream the stream the data belongs to
+   * @param data the next bytes of the stream, in order and without any overlap with the
+   *    bytes handed out before. The buffer is only valid until this method returns.
+   */
+  public void onData(TcpStream stream, ByteBuffer data);
+  
+  /**
+   * Called when the reassembler gives up on waiting for missing bytes, e.g. because the
+   * stream is being evicted, before handing out the data that comes after them.
+   * 
+   * @param stream the stream the bytes are missing from
+   * @param length the number of bytes that are missing
+   */
+  public void onGap(TcpStream stream, long length);
+  
+  /**
+   * @param stream the stream that was closed; it won't be handed out again
+   * @param reason why the stream was closed
+   */
+  public void onClose(TcpStream stream, CloseReason reason);
+}
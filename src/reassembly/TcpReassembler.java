@@ -0,0 +1,391 @@
+package reassembly;
+
+import header.EthernetHeader;
+import header.IpHeader;
+import header.RecordHeader;
+import header.TcpHeader;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import main.PacketVisitor;
+import reassembly.TcpStream.CloseReason;
+import reassembly.TcpStream.Segment;
+import util.LongPairIntMap;
+import data.ByteData;
+import data.Data;
+import data.Packet;
+
+/**
+ * Puts the payloads of TCP segments back together into ordered byte streams, one per
+ * direction of every connection, and hands them to a {@link StreamListener}. Segments
+ * that arrive ahead of a gap are copied and held back until the gap is filled;
+ * retransmitted and overlapping bytes are only handed out once.
+ * <p>
+ * Memory is bounded in two ways. Streams that haven't been seen for longer than the idle
+ * timeout, measured in capture time, are closed. And whenever the held back segments
+ * plus a fixed cost per stream go over the memory limit, the least recently seen streams
+ * are closed, handing out what they held back across their gaps, until the reassembler
+ * is back under the limit.
+ * <p>
+ * The reassembler is a {@link PacketVisitor}, so it can be passed straight to a parser.
+ * Fragments, datagrams with IP options and segments whose payload has been decoded into
+ * a registered header are skipped, since their payload bytes aren't available. Fragments
+ * can be put back together first by passing the packets through an
+ * {@link IpDefragmenter}.
+ */
+public class TcpReassembler implements PacketVisitor {
+  /** The default memory limit, in bytes. */
+  public static final long DEFAULT_MAX_MEMORY = 64 * 1024 * 1024;
+
+  /** The default idle timeout, in milliseconds. */
+  public static final long DEFAULT_IDLE_TIMEOUT = 120 * 1000;
+
+  /** The approximate memory used by a stream that isn't holding anything back. */
+  private static final int STREAM_OVERHEAD = 128;
+
+  /** The approximate memory used by a segment on top of its payload. */
+  private static final int SEGMENT_OVERHEAD = 48;
+
+  private static final int PROTOCOL_TCP = 6;
+  private static final int IP_HEADER_LENGTH = 20;
+  private static final int TCP_HEADER_LENGTH = 20;
+
+  private static final int FIN = 0x01;
+  private static final int SYN = 0x02;
+  private static final int RST = 0x04;
+
+  private final StreamListener listener;
+  private long maxMemory = DEFAULT_MAX_MEMORY;
+  private long idleTimeout = DEFAULT_IDLE_TIMEOUT * 1000000L;
+
+  private final LongPairIntMap index = new LongPairIntMap();
+  private TcpStream[] streams = new TcpStream[16];
+  private int[] freeIndexes = new int[16];
+  private int numFreeIndexes;
+  private int numStreams;
+
+  /** The least and most recently seen streams. */
+  private TcpStream oldest;
+  private TcpStream newest;
+
+  private long memoryUsed;
+
+  /**
+   * @param listener the listener to hand the streams to
+   */
+  public TcpReassembler(StreamListener listener) {
+    this.listener = listener;
+  }
+
+  @Override
+  public boolean visit(RecordHeader record, Packet<EthernetHeader> packet) {
+    long now = record.getTimestampNanos();
+    expire(now);
+
+    Data data = packet.getData();
+    if (!(data instanceof Packet) || !(((Packet<?>) data).getHeader() instanceof IpHeader)) return true;
+
+    Packet<?> ipPacket = (Packet<?>) data;
+    IpHeader ip = (IpHeader) ipPacket.getHeader();
+
+    if (ip.getProtocolNumber() != PROTOCOL_TCP || ip.getIpHeaderLength() != IP_HEADER_LENGTH) return true;
+    if (ip.isFragment()) return true;
+    if (!(ipPacket.getData() instanceof Packet)) return true;
+
+    Packet<?> tcpPacket = (Packet<?>) ipPacket.getData();
+    TcpHeader tcp = (TcpHeader) tcpPacket.getHeader();
+
+    ByteBuffer payload = getPayload(ip, tcp, tcpPacket.getData());
+    if (payload == null) return true;
+
+    segment(ip.getSourceIpAddress(), ip.getDestIpAddress(), tcp.getSourcePort(), tcp.getDestPort(),
+        tcp.getSequenceNumber(), tcp.getFlags(), payload, now);
+
+    return true;
+  }
+
+  /**
+   * Adds a segment to its stream, creating the stream if it is new.
+   */
+  private void segment(int sourceAddress, int destAddress, int sourcePort, int destPort,
+      long sequence, int flags, ByteBuffer payload, long now) {
+
+    long first = (long) sourceAddress << 32 | (destAddress & 0xFFFFFFFFL);
+    long second = (long) sourcePort << 16 | destPort;
+    int streamIndex = index.get(first, second);
+    TcpStream stream;
+
+    if (streamIndex == LongPairIntMap.NO_VALUE) {
+      // Resets of streams that aren't being tracked don't need a stream.
+      if ((flags & RST) != 0) return;
+
+      stream = open(first, second, sourceAddress, destAddress, sourcePort, destPort);
+      stream.nextSequence = (flags & SYN) != 0 ? (sequence + 1) & 0xFFFFFFFFL : sequence;
+    } else {
+      stream = streams[streamIndex];
+    }
+
+    stream.lastSeen = now;
+    touch(stream);
+
+    if ((flags & RST) != 0) {
+      close(stream, CloseReason.RESET);
+      return;
+    }
+
+    // The payload of a SYN starts after the sequence number the SYN itself takes up.
+    if ((flags & SYN) != 0) sequence = (sequence + 1) & 0xFFFFFFFFL;
+
+    if ((flags & FIN) != 0) stream.finSequence = (sequence + payload.remaining()) & 0xFFFFFFFFL;
+
+    if (payload.hasRemaining()) {
+      int offset = (int) (sequence - stream.nextSequence);
+
+      if (offset <= 0) {
+        deliver(stream, sequence, payload);
+        drain(stream);
+      } else {
+        hold(stream, sequence, payload);
+      }
+    }
+
+    if (stream.finSequence >= 0 && stream.nextSequence == stream.finSequence) {
+      close(stream, CloseReason.FIN);
+    }
+
+    while (memoryUsed > maxMemory && oldest != null) {
+      close(oldest, CloseReason.MEMORY);
+    }
+  }
+
+  /**
+   * Hands out the part of a segment that comes after the bytes handed out so far.
+   */
+  private void deliver(TcpStream stream, long sequence, ByteBuffer payload) {
+    int offset = (int) (sequence - stream.nextSequence);
+    int length = payload.remaining();
+
+    // Retransmitted bytes are skipped.
+    if (offset + length <= 0) return;
+
+    if (offset < 0) payload.position(payload.position() - offset);
+
+    stream.nextSequence = (sequence + length) & 0xFFFFFFFFL;
+    stream.bytesDelivered += payload.remaining();
+    listener.onData(stream, payload);
+  }
+
+  /**
+   * Hands out the held back segments that no longer have a gap before them.
+   */
+  private void drain(TcpStream stream) {
+    while (stream.pending != null && (int) (stream.pending.sequence - stream.nextSequence) <= 0) {
+      Segment segment = release(stream);
+      deliver(stream, segment.sequence, ByteBuffer.wrap(segment.data));
+    }
+  }
+
+  /**
+   * Copies a segment that arrived ahead of a gap into the stream's list of held back
+   * segments.
+   */
+  private void hold(TcpStream stream, long sequence, ByteBuffer payload) {
+    Segment previous = null;
+    Segment next = stream.pending;
+
+    while (next != null && (int) (next.sequence - sequence) < 0) {
+      previous = next;
+      next = next.next;
+    }
+
+    // A retransmission of a segment that is already held back.
+    if (next != null && next.sequence == sequence && next.data.length >= payload.remaining()) return;
+
+    byte[] data = new byte[payload.remaining()];
+    payload.get(data);
+
+    Segment segment = new Segment(sequence, data);
+    segment.next = next;
+
+    if (previous == null) {
+      stream.pending = segment;
+    } else {
+      previous.next = segment;
+    }
+
+    stream.pendingBytes += data.length;
+    memoryUsed += data.length + SEGMENT_OVERHEAD;
+  }
+
+  /**
+   * Removes the first held back segment of a stream.
+   */
+  private Segment release(TcpStream stream) {
+    Segment segment = stream.pending;
+    stream.pending = segment.next;
+
+    stream.pendingBytes -= segment.data.length;
+    memoryUsed -= segment.data.length + SEGMENT_OVERHEAD;
+    return segment;
+  }
+
+  /**
+   * Closes the streams that haven't been seen for longer than the idle timeout.
+   * 
+   * @param now the current capture time, in nanoseconds
+   */
+  public void expire(long now) {
+    while (oldest != null && now - oldest.lastSeen > idleTimeout) {
+      close(oldest, CloseReason.IDLE);
+    }
+  }
+
+  /**
+   * Closes every stream, handing out what they held back. Should be called once the end
+   * of the capture has been reached.
+   */
+  public void flush() {
+    while (oldest != null) {
+      close(oldest, CloseReason.END);
+    }
+  }
+
+  private TcpStream open(long first, long second, int sourceAddress, int destAddress, int sourcePort, int destPort) {
+    TcpStream stream = new TcpStream(sourceAddress, destAddress, sourcePort, destPort);
+
+    if (numFreeIndexes > 0) {
+      stream.index = freeIndexes[--numFreeIndexes];
+    } else {
+      if (numStreams == streams.length) streams = Arrays.copyOf(streams, streams.length << 1);
+      stream.index = numStreams;
+    }
+
+    streams[stream.index] = stream;
+    index.put(first, second, stream.index);
+    numStreams++;
+    memoryUsed += STREAM_OVERHEAD;
+
+    return stream;
+  }
+
+  /**
+   * Closes a stream. Unless the stream was reset, the segments it held back are handed
+   * out first, with the gaps between them reported to the listener.
+   */
+  private void close(TcpStream stream, CloseReason reason) {
+    while (stream.pending != null) {
+      Segment segment = release(stream);
+      if (reason == CloseReason.RESET || reason == CloseReason.FIN) continue;
+
+      int gap = (int) (segment.sequence - stream.nextSequence);
+
+      if (gap > 0) {
+        listener.onGap(stream, gap);
+        stream.nextSequence = segment.sequence;
+      }
+
+      deliver(stream, segment.sequence, ByteBuffer.wrap(segment.data));
+    }
+
+    unlink(stream);
+    index.remove((long) stream.getSourceAddress() << 32 | (stream.getDestAddress() & 0xFFFFFFFFL),
+        (long) stream.getSourcePort() << 16 | stream.getDestPort());
+
+    streams[stream.index] = null;
+    if (numFreeIndexes == freeIndexes.length) freeIndexes = Arrays.copyOf(freeIndexes, freeIndexes.length << 1);
+    freeIndexes[numFreeIndexes++] = stream.index;
+
+    numStreams--;
+    memoryUsed -= STREAM_OVERHEAD;
+
+    listener.onClose(stream, reason);
+  }
+
+  /**
+   * Moves a stream to the most recently seen end of the list of streams.
+   */
+  private void touch(TcpStream stream) {
+    if (stream == newest) return;
+
+    unlink(stream);
+
+    stream.older = newest;
+    if (newest != null) newest.newer = stream;
+    newest = stream;
+
+    if (oldest == null) oldest = stream;
+  }
+
+  private void unlink(TcpStream stream) {
+    if (stream.older != null) stream.older.newer = stream.newer;
+    if (stream.newer != null) stream.newer.older = stream.older;
+    if (stream == oldest) oldest = stream.newer;
+    if (stream == newest) newest = stream.older;
+
+    stream.older = null;
+    stream.newer = null;
+  }
+
+  /**
+   * @return the payload of a segment, without its TCP options or any padding of the
+   *    frame, or {@code null} if it isn't available
+   */
+  private static ByteBuffer getPayload(IpHeader ip, TcpHeader tcp, Data data) {
+    int tcpHeaderLength = (int) tcp.getTcpHeaderLength() * 4;
+    int payloadLength = (int) (ip.getTotalLength() - ip.getIpHeaderLength() - tcpHeaderLength);
+    int optionsLength = tcpHeaderLength - TCP_HEADER_LENGTH;
+
+    if (optionsLength < 0 || payloadLength < 0) return null;
+
+    if (!(data instanceof ByteData)) {
+      return data == null || data.getLength() == 0 ? ByteBuffer.allocate(0) : null;
+    }
+
+    ByteBuffer payload = ((ByteData) data).getBuffer();
+    if (payload.remaining() < optionsLength) return null;
+
+    payload.position(payload.position() + optionsLength);
+    if (payload.remaining() > payloadLength) payload.limit(payload.position() + payloadLength);
+
+    return payload;
+  }
+
+  /**
+   * @param maxMemory the number of bytes the held back segments and the streams
+   *    themselves may take up, approximately
+   */
+  public void setMaxMemory(long maxMemory) {
+    this.maxMemory = maxMemory;
+  }
+
+  public long getMaxMemory() {
+    return maxMemory;
+  }
+
+  /**
+   * @param idleTimeout the capture time after which a stream that hasn't been seen is
+   *    closed, in milliseconds
+   */
+  public void setIdleTimeout(long idleTimeout) {
+    this.idleTimeout = idleTimeout * 1000000L;
+  }
+
+  public long getIdleTimeout() {
+    return idleTimeout / 1000000L;
+  }
+
+  /**
+   * @return the approximate number of bytes taken up by the open streams
+   */
+  public long getMemoryUsed() {
+    return memoryUsed;
+  }
+
+  /**
+   * @return the number of open streams
+   */
+  public int getStreamCount() {
+    return numStreams;
+  }
+}
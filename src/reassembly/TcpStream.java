@@ -0,0 +1,128 @@
+package reassembly;
+
+/**
+ * One direction of a TCP connection that is being reassembled. The sequence numbers are
+ * unsigned 32-bit values, so they are compared by their signed 32-bit difference to
+ * deal with wrapping around.
+ */
+public class TcpStream {
+  public enum CloseReason {
+    /** Every byte up to the FIN has been handed out. */
+    FIN,
+    /** A RST was seen. */
+    RESET,
+    /** Nothing was seen on the stream for longer than the idle timeout. */
+    IDLE,
+    /** The stream was evicted to stay within the memory limit. */
+    MEMORY,
+    /** The reassembler was flushed, e.g. at the end of the capture. */
+    END
+  }
+  
+  private final int sourceAddress;
+  private final int destAddress;
+  private final int sourcePort;
+  private final int destPort;
+  private Object attachment;
+  
+  long nextSequence;
+  long finSequence = -1;
+  long lastSeen;
+  long bytesDelivered;
+  
+  /** Segments that arrived ahead of {@link #nextSequence}, in order of sequence number. */
+  Segment pending;
+  int pendingBytes;
+  
+  /** Neighbours in the reassembler's list of streams, from least to most recently seen. */
+  TcpStream older;
+  TcpStream newer;
+  
+  int index;
+  
+  TcpStream(int sourceAddress, int destAddress, int sourcePort, int destPort) {
+    this.sourceAddress = sourceAddress;
+    this.destAddress = destAddress;
+    this.sourcePort = sourcePort;
+    this.destPort = destPort;
+  }
+  
+  /**
+   * @return the sequence number of the next byte to hand out
+   */
+  public long getNextSequence() {
+    return nextSequence;
+  }
+  
+  /**
+   * @return the number of bytes handed out so far, not counting gaps
+   */
+  public long getBytesDelivered() {
+    return bytesDelivered;
+  }
+  
+  /**
+   * @return the number of bytes held back while waiting for missing bytes before them
+   */
+  public int getPendingBytes() {
+    return pendingBytes;
+  }
+  
+  /**
+   * @return the IPv4 address of the sender, as a big-endian int
+   */
+  public int getSourceAddress() {
+    return sourceAddress;
+  }
+  
+  /**
+   * @return the IPv4 address of the receiver, as a big-endian int
+   */
+  public int getDestAddress() {
+    return destAddress;
+  }
+  
+  public int getSourcePort() {
+    return sourcePort;
+  }
+  
+  public int getDestPort() {
+    return destPort;
+  }
+  
+  /**
+   * @return the object attached to the stream by a listener, or {@code null}
+   */
+  public Object getAttachment() {
+    return attachment;
+  }
+  
+  /**
+   * @param attachment any per-stream state a listener wants to keep, e.g. a parser for
+   *    the protocol the stream carries
+   */
+  public void setAttachment(Object attachment) {
+    this.attachment = attachment;
+  }
+  
+  @Override
+  public String toString() {
+    return String.format("%d.%d.%d.%d:%d -> %d.%d.%d.%d:%d", 
+        sourceAddress >>> 24, sourceAddress >>> 16 & 0xFF, sourceAddress >>> 8 & 0xFF, sourceAddress & 0xFF, sourcePort,
+        destAddress >>> 24, destAddress >>> 16 & 0xFF, destAddress >>> 8 & 0xFF, destAddress & 0xFF, destPort);
+  }
+  
+  /**
+   * A copy of the payload of a segment that arrived out of order.
+   */
+  static class Segment {
+    final long sequence;
+    final byte[] data;
+    Segment next;
+    
+    Segment(long sequence, byte[] data) {
+      this.sequence = sequence;
+      this.data = data;
+    }
+  }
+}
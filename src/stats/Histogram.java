@@ -0,0 +1,156 @@
+package stats;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of non-negative values with log-linear buckets. Values below
+ * {@code 2 * SUB_BUCKETS} each get a bucket of their own; above that, every power of two
+ * is split into {@code SUB_BUCKETS} buckets of equal width, so a bucket is never wider
+ * than about 1.6% of the values in it. That keeps the histogram small whatever the range
+ * of the values, while percentiles read from it are exact for small values and within
+ * that relative error for large ones.
+ * <p>
+ * Histograms only hold counts per bucket, so two of them are merged by adding the
+ * counts, which gives the same histogram as recording both sets of values into one.
+ */
+public class Histogram {
+  private static final int SUB_BUCKET_BITS = 6;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  
+  /** Enough buckets for values up to 2^22 before the histogram has to grow. */
+  private static final int DEFAULT_BUCKETS = 17 * SUB_BUCKETS;
+  
+  private long[] counts = new long[DEFAULT_BUCKETS];
+  private int numBuckets;
+  private long count;
+  private long min = Long.MAX_VALUE;
+  private long max = Long.MIN_VALUE;
+  
+  /**
+   * @param value the value to record, which has to be non-negative
+   */
+  public void record(long value) {
+    record(value, 1);
+  }
+  
+  /**
+   * @param value the value to record, which has to be non-negative
+   * @param times the number of times to record it
+   */
+  public void record(long value, long times) {
+    if (value < 0) throw new IllegalArgumentException("Values have to be non-negative");
+    
+    int bucket = getBucket(value);
+    if (bucket >= counts.length) counts = Arrays.copyOf(counts, Math.max(bucket + 1, counts.length * 2));
+    if (bucket >= numBuckets) numBuckets = bucket + 1;
+    
+    counts[bucket] += times;
+    count += times;
+    if (value < min) min = value;
+    if (value > max) max = value;
+  }
+  
+  /**
+   * Adds the counts of another histogram to this one.
+   * 
+   * @param other the histogram to merge into this one, which is left unchanged
+   */
+  public void merge(Histogram other) {
+    if (other.numBuckets > counts.length) counts = Arrays.copyOf(counts, other.numBuckets);
+    if (other.numBuckets > numBuckets) numBuckets = other.numBuckets;
+    
+    for (int bucket = 0; bucket < other.numBuckets; ++bucket) {
+      counts[bucket] += other.counts[bucket];
+    }
+    
+    count += other.count;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+  
+  /**
+   * @param percentile the percentile, between 0 and 100
+   * @return the value below or at which {@code percentile} percent of the recorded values
+   *    are, or 0 if nothing has been recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (count == 0) return 0;
+    
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    
+    for (int bucket = 0; bucket < numBuckets; ++bucket) {
+      seen += counts[bucket];
+      
+      if (seen >= rank) {
+        long lowerBound = getLowerBound(bucket);
+        long value = lowerBound + (getUpperBound(bucket) - lowerBound) / 2;
+        return Math.max(min, Math.min(max, value));
+      }
+    }
+    
+    return max;
+  }
+  
+  public long getCount() {
+    return count;
+  }
+  
+  /**
+   * @return the smallest recorded value, or {@link Long#MAX_VALUE} if nothing has been
+   *    recorded
+   */
+  public long getMin() {
+    return min;
+  }
+  
+  /**
+   * @return the largest recorded value, or {@link Long#MIN_VALUE} if nothing has been
+   *    recorded
+   */
+  public long getMax() {
+    return max;
+  }
+  
+  /**
+   * @return the number of buckets, up to and including the last one that has been
+   *    recorded into
+   */
+  public int getNumBuckets() {
+    return numBuckets;
+  }
+  
+  /**
+   * @return the number of values recorded into the bucket
+   */
+  public long getCount(int bucket) {
+    return counts[bucket];
+  }
+  
+  /**
+   * @return the smallest value that goes into the bucket
+   */
+  public static long getLowerBound(int bucket) {
+    if (bucket < 2 * SUB_BUCKETS) return bucket;
+    
+    int shift = bucket / SUB_BUCKETS - 1;
+    return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+  }
+  
+  /**
+   * @return the largest value that goes into the bucket
+   */
+  public static long getUpperBound(int bucket) {
+    if (bucket < 2 * SUB_BUCKETS) return bucket;
+    
+    int shift = bucket / SUB_BUCKETS - 1;
+    return getLowerBound(bucket) + (1L << shift) - 1;
+  }
+  
+  private static int getBucket(long value) {
+    if (value < 2 * SUB_BUCKETS) return (int) value;
+    
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+  }
+}
@@ -0,0 +1,240 @@
+package stats;
+
+import header.EthernetHeader;
+import header.IpHeader;
+import header.RecordHeader;
+
+import java.util.Arrays;
+
+import main.PacketVisitor;
+import util.LongPairIntMap;
+import data.Data;
+import data.Packet;
+
+/**
+ * Statistics of the packet lengths of a capture that are updated one packet at a time,
+ * so they can be gathered while the capture is being parsed instead of in a second pass
+ * over a list of packets. Besides the count, sum, minimum, maximum, mean and variance of
+ * the lengths, a {@link Histogram} of them gives percentiles, and the packets and bytes
+ * are counted per ether type and per IP protocol. Lengths are the lengths returned by
+ * {@link Packet#getLength()}, as in {@link main.EthernetFrameList#getAveragePacketLength()}.
+ * <p>
+ * The statistics aren't thread safe. To gather them on several threads, give every
+ * thread its own instance and {@link #merge(PacketStatistics)} them afterwards, which
+ * gives the same result as gathering them on a single thread, up to rounding.
+ */
+public class PacketStatistics implements PacketVisitor {
+  private static final int NUM_PROTOCOLS = 256;
+  private static final int DEFAULT_ETHER_TYPES = 16;
+  
+  private long count;
+  private long sum;
+  private double mean;
+  
+  /** The sum of the squared differences from the mean, as in Welford's algorithm. */
+  private double squaredDifferences;
+  
+  private final Histogram histogram = new Histogram();
+  
+  private final long[] protocolCounts = new long[NUM_PROTOCOLS];
+  private final long[] protocolLengths = new long[NUM_PROTOCOLS];
+  
+  private final LongPairIntMap etherTypeIndex = new LongPairIntMap(DEFAULT_ETHER_TYPES);
+  private int[] etherTypes = new int[DEFAULT_ETHER_TYPES];
+  private long[] etherTypeCounts = new long[DEFAULT_ETHER_TYPES];
+  private long[] etherTypeLengths = new long[DEFAULT_ETHER_TYPES];
+  private int numEtherTypes;
+  
+  @Override
+  public boolean visit(RecordHeader record, Packet<EthernetHeader> packet) {
+    add(packet);
+    return true;
+  }
+  
+  /**
+   * Adds a packet to the statistics.
+   * 
+   * @param packet the packet
+   */
+  public void add(Packet<EthernetHeader> packet) {
+    int protocol = -1;
+    
+    Data data = packet.getData();
+    if (data instanceof Packet && ((Packet<?>) data).getHeader() instanceof IpHeader) {
+      protocol = ((IpHeader) ((Packet<?>) data).getHeader()).getProtocolNumber();
+    }
+    
+    add(packet.getLength(), packet.getHeader().getTypeCode(), protocol);
+  }
+  
+  /**
+   * Adds a packet to the statistics.
+   * 
+   * @param length the length of the packet
+   * @param etherType the ether type of the packet
+   * @param protocol the IP protocol number of the packet, or -1 if it isn't an IP packet
+   */
+  public void add(long length, int etherType, int protocol) {
+    count++;
+    sum += length;
+    
+    double difference = length - mean;
+    mean += difference / count;
+    squaredDifferences += difference * (length - mean);
+    
+    histogram.record(length);
+    
+    if (protocol >= 0) {
+      protocolCounts[protocol]++;
+      protocolLengths[protocol] += length;
+    }
+    
+    int slot = getEtherTypeSlot(etherType);
+    etherTypeCounts[slot]++;
+    etherTypeLengths[slot] += length;
+  }
+  
+  /**
+   * Adds the statistics of other packets to these ones.
+   * 
+   * @param other the statistics to merge into these ones, which are left unchanged
+   */
+  public void merge(PacketStatistics other) {
+    if (other.count == 0) return;
+    
+    long total = count + other.count;
+    double difference = other.mean - mean;
+    
+    mean += difference * other.count / total;
+    squaredDifferences += other.squaredDifferences + difference * difference * count * other.count / total;
+    count = total;
+    sum += other.sum;
+    
+    histogram.merge(other.histogram);
+    
+    for (int protocol = 0; protocol < NUM_PROTOCOLS; ++protocol) {
+      protocolCounts[protocol] += other.protocolCounts[protocol];
+      protocolLengths[protocol] += other.protocolLengths[protocol];
+    }
+    
+    for (int otherSlot = 0; otherSlot < other.numEtherTypes; ++otherSlot) {
+      int slot = getEtherTypeSlot(other.etherTypes[otherSlot]);
+      etherTypeCounts[slot] += other.etherTypeCounts[otherSlot];
+      etherTypeLengths[slot] += other.etherTypeLengths[otherSlot];
+    }
+  }
+  
+  private int getEtherTypeSlot(int etherType) {
+    int slot = etherTypeIndex.get(etherType, 0);
+    if (slot != LongPairIntMap.NO_VALUE) return slot;
+    
+    if (numEtherTypes == etherTypes.length) {
+      etherTypes = Arrays.copyOf(etherTypes, numEtherTypes * 2);
+      etherTypeCounts = Arrays.copyOf(etherTypeCounts, numEtherTypes * 2);
+      etherTypeLengths = Arrays.copyOf(etherTypeLengths, numEtherTypes * 2);
+    }
+    
+    slot = numEtherTypes++;
+    etherTypes[slot] = etherType;
+    etherTypeIndex.put(etherType, 0, slot);
+    
+    return slot;
+  }
+  
+  public long getCount() {
+    return count;
+  }
+  
+  /**
+   * @return the sum of the lengths of all of the packets
+   */
+  public long getTotalLength() {
+    return sum;
+  }
+  
+  /**
+   * @return the mean length of the packets, or 0 if there are none
+   */
+  public double getMean() {
+    return mean;
+  }
+  
+  /**
+   * @return the sample variance of the lengths of the packets, or 0 if there are fewer
+   *    than two
+   */
+  public double getVariance() {
+    return count > 1 ? squaredDifferences / (count - 1) : 0;
+  }
+  
+  public double getStandardDeviation() {
+    return Math.sqrt(getVariance());
+  }
+  
+  /**
+   * @return the length of the shortest packet, or 0 if there are none
+   */
+  public long getMin() {
+    return count > 0 ? histogram.getMin() : 0;
+  }
+  
+  /**
+   * @return the length of the longest packet, or 0 if there are none
+   */
+  public long getMax() {
+    return count > 0 ? histogram.getMax() : 0;
+  }
+  
+  /**
+   * @param percentile the percentile, between 0 and 100
+   * @return the length below or at which {@code percentile} percent of the packets are,
+   *    to within the precision of the {@link Histogram}
+   */
+  public long getPercentile(double percentile) {
+    return histogram.getValueAtPercentile(percentile);
+  }
+  
+  /**
+   * @return the histogram of the lengths of the packets
+   */
+  public Histogram getHistogram() {
+    return histogram;
+  }
+  
+  /**
+   * @return the number of IP packets with the protocol number
+   */
+  public long getProtocolCount(int protocol) {
+    return protocolCounts[protocol];
+  }
+  
+  /**
+   * @return the sum of the lengths of the IP packets with the protocol number
+   */
+  public long getProtocolLength(int protocol) {
+    return protocolLengths[protocol];
+  }
+  
+  /**
+   * @return the ether types that have been seen, in the order they were first seen
+   */
+  public int[] getEtherTypes() {
+    return Arrays.copyOf(etherTypes, numEtherTypes);
+  }
+  
+  /**
+   * @return the number of packets with the ether type
+   */
+  public long getEtherTypeCount(int etherType) {
+    int slot = etherTypeIndex.get(etherType, 0);
+    return slot != LongPairIntMap.NO_VALUE ? etherTypeCounts[slot] : 0;
+  }
+  
+  /**
+   * @return the sum of the lengths of the packets with the ether type
+   */
+  public long getEtherTypeLength(int etherType) {
+    int slot = etherTypeIndex.get(etherType, 0);
+    return slot != LongPairIntMap.NO_VALUE ? etherTypeLengths[slot] : 0;
+  }
+}
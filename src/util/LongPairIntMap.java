@@ -0,0 +1,162 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from pairs of longs to non-negative ints. Keys are kept in
+ * primitive arrays and probed linearly, so neither lookups nor insertions allocate
+ * anything once the table is large enough. Composite keys such as connection tuples are
+ * packed into the two longs by the caller, and the int usually indexes into the caller's
+ * own arrays of per-key state.
+ */
+public class LongPairIntMap {
+  /** The value returned for keys that aren't in the map. */
+  public static final int NO_VALUE = -1;
+
+  private static final int DEFAULT_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.5f;
+
+  private long[] firstKeys;
+  private long[] secondKeys;
+  private int[] values;
+  private int mask;
+  private int size;
+  private int resizeThreshold;
+
+  public LongPairIntMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param expectedSize the number of keys the map should hold without resizing
+   */
+  public LongPairIntMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(DEFAULT_CAPACITY, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+    allocate(capacity);
+  }
+
+  /**
+   * @return the value of the key, or {@link #NO_VALUE} if the map doesn't hold it
+   */
+  public int get(long first, long second) {
+    int slot = hash(first, second) & mask;
+
+    while (values[slot] != NO_VALUE) {
+      if (firstKeys[slot] == first && secondKeys[slot] == second) return values[slot];
+
+      slot = (slot + 1) & mask;
+    }
+
+    return NO_VALUE;
+  }
+
+  /**
+   * @param value the value of the key, which has to be non-negative
+   * @return the previous value of the key, or {@link #NO_VALUE} if the map didn't hold it
+   */
+  public int put(long first, long second, int value) {
+    if (value < 0) throw new IllegalArgumentException("Values have to be non-negative");
+
+    int slot = hash(first, second) & mask;
+
+    while (values[slot] != NO_VALUE) {
+      if (firstKeys[slot] == first && secondKeys[slot] == second) {
+        int previous = values[slot];
+        values[slot] = value;
+        return previous;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+
+    firstKeys[slot] = first;
+    secondKeys[slot] = second;
+    values[slot] = value;
+
+    if (++size > resizeThreshold) allocate(values.length << 1);
+
+    return NO_VALUE;
+  }
+
+  /**
+   * @return the value the key had, or {@link #NO_VALUE} if the map didn't hold it
+   */
+  public int remove(long first, long second) {
+    int slot = hash(first, second) & mask;
+
+    while (values[slot] != NO_VALUE) {
+      if (firstKeys[slot] == first && secondKeys[slot] == second) {
+        int value = values[slot];
+        delete(slot);
+        return value;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+
+    return NO_VALUE;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    Arrays.fill(values, NO_VALUE);
+    size = 0;
+  }
+
+  /**
+   * Empties a slot by shifting the keys after it back, so that probing never has to skip
+   * over deleted slots.
+   */
+  private void delete(int slot) {
+    int empty = slot;
+    int next = (slot + 1) & mask;
+
+    while (values[next] != NO_VALUE) {
+      int home = hash(firstKeys[next], secondKeys[next]) & mask;
+
+      // Move the key back if its home slot isn't between the empty slot and its own.
+      if (((next - home) & mask) >= ((next - empty) & mask)) {
+        firstKeys[empty] = firstKeys[next];
+        secondKeys[empty] = secondKeys[next];
+        values[empty] = values[next];
+        empty = next;
+      }
+
+      next = (next + 1) & mask;
+    }
+
+    values[empty] = NO_VALUE;
+    size--;
+  }
+
+  private void allocate(int capacity) {
+    long[] oldFirstKeys = firstKeys;
+    long[] oldSecondKeys = secondKeys;
+    int[] oldValues = values;
+
+    firstKeys = new long[capacity];
+    secondKeys = new long[capacity];
+    values = new int[capacity];
+    Arrays.fill(values, NO_VALUE);
+
+    mask = capacity - 1;
+    resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    size = 0;
+
+    if (oldValues == null) return;
+
+    for (int i = 0; i < oldValues.length; ++i) {
+      if (oldValues[i] != NO_VALUE) put(oldFirstKeys[i], oldSecondKeys[i], oldValues[i]);
+    }
+  }
+
+  private static int hash(long first, long second) {
+    long hash = first * 0x9E3779B97F4A7C15L + second;
+    hash ^= hash >>> 32;
+    hash *= 0xC2B2AE3D27D4EB4FL;
+    return (int) (hash ^ (hash >>> 29));
+  }
+}